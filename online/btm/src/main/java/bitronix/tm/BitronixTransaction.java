@@ -20,19 +20,24 @@ import bitronix.tm.internal.BitronixRollbackException;
 import bitronix.tm.internal.BitronixRollbackSystemException;
 import bitronix.tm.internal.BitronixSystemException;
 import bitronix.tm.internal.BitronixXAException;
+import bitronix.tm.internal.ThreadContext;
 import bitronix.tm.internal.TransactionStatusChangeListener;
 import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.internal.XAResourceManager;
+import bitronix.tm.journal.AsyncJournal;
 import bitronix.tm.journal.Journal;
 import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.resource.common.DeferredReleaseSynchronization;
 import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.resource.common.XAResourceHolderStateVisitor;
 import bitronix.tm.timer.TaskScheduler;
+import bitronix.tm.twopc.CommitTrace;
 import bitronix.tm.twopc.Committer;
 import bitronix.tm.twopc.PhaseException;
 import bitronix.tm.twopc.Preparer;
 import bitronix.tm.twopc.Rollbacker;
 import bitronix.tm.twopc.executor.Executor;
+import bitronix.tm.twopc.executor.Job;
 import bitronix.tm.utils.Decoder;
 import bitronix.tm.utils.ExceptionUtils;
 import bitronix.tm.utils.ManagementRegistrar;
@@ -55,12 +60,18 @@ import javax.transaction.Transaction;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Implementation of {@link Transaction}.
@@ -79,6 +90,17 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     private volatile boolean timeout = false;
     private volatile Date timeoutDate;
 
+    /**
+     * Completion of the latest status logged in the background, null if none is pending.
+     */
+    private volatile CompletableFuture<Void> pendingStatusLog;
+
+    /**
+     * Timings of the commit in progress, null unless {@link Configuration#isCommitTracing()} is set and the
+     * transaction is preparing or committing.
+     */
+    private volatile CommitTrace commitTrace;
+
     private final Executor executor = TransactionManagerServices.getExecutor();
     private final TaskScheduler taskScheduler = TransactionManagerServices.getTaskScheduler();
 
@@ -236,6 +258,8 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
 
         taskScheduler.cancelTransactionTimeout(this);
 
+        CommitTrace trace = TransactionManagerServices.getConfiguration().isCommitTracing() ? new CommitTrace(resourceManager.getGtrid()) : null;
+
         // beforeCompletion must be called before the check to STATUS_MARKED_ROLLBACK as the synchronization
         // can still set the status to STATUS_MARKED_ROLLBACK.
         try {
@@ -247,6 +271,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             rollback();
             throw new BitronixRollbackException("RuntimeException thrown during beforeCompletion cycle caused transaction rollback", ex);
         }
+        if (trace != null) trace.stageCompleted(CommitTrace.BEFORE_COMPLETION);
 
         // The following if statements and try/catch block must not be included in the prepare try-catch block as
         // they call rollback().
@@ -265,6 +290,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             // the caught BitronixRollbackException's message is pre-formatted to be appended to this message
             throw new BitronixRollbackException("delistment error caused transaction rollback" + ex.getMessage());
         }
+        if (trace != null) trace.stageCompleted(CommitTrace.DELISTMENT);
 
         if (status == Status.STATUS_MARKED_ROLLBACK) {
             if (log.isDebugEnabled()) { log.debug("transaction marked as rollback only"); }
@@ -272,6 +298,9 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             throw new BitronixRollbackException("transaction was marked as rollback only and has been rolled back");
         }
 
+        boolean committed = false;
+        boolean coalesced = false;
+        commitTrace = trace;
         try {
             List<XAResourceHolderState> interestedResources;
 
@@ -279,7 +308,10 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             try {
                 if (log.isDebugEnabled()) { log.debug("committing, " + resourceManager.size() + " enlisted resource(s)"); }
 
+                coalesced = expectCoalescedCommits();
+
                 interestedResources = preparer.prepare(this);
+                if (trace != null) trace.stageCompleted(CommitTrace.PREPARE);
             }
             catch (RollbackException ex) {
                 if (log.isDebugEnabled()) { log.debug("caught rollback exception during prepare, trying to rollback"); }
@@ -294,6 +326,8 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             if (log.isDebugEnabled()) { log.debug(interestedResources.size() + " interested resource(s)"); }
 
             committer.commit(this, interestedResources);
+            if (trace != null) trace.stageCompleted(CommitTrace.COMMIT);
+            committed = true;
 
             if (resourceManager.size() == 0 && TransactionManagerServices.getConfiguration().isDebugZeroResourceTransaction()) {
                 log.warn(buildZeroTransactionDebugMessage(activationStackTrace, new StackTrace()));
@@ -302,7 +336,16 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             if (log.isDebugEnabled()) { log.debug("successfully committed " + this); }
         }
         finally {
+            if (coalesced)
+                TransactionManagerServices.getCommitCoalescer().forget(resourceManager.getGtrid());
+            commitTrace = null;
+            if (trace != null && !committed) trace.stageSkipped();
             fireAfterCompletionEvent();
+            if (trace != null) {
+                trace.stageCompleted(CommitTrace.AFTER_COMPLETION);
+                trace.completed(committed);
+                TransactionManagerServices.getCommitTracer().commitTraced(trace);
+            }
         }
     }
 
@@ -388,18 +431,37 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         setStatus(status, resourceManager.collectUniqueNames());
     }
 
+    /**
+     * Change the status of the transaction and log it to the journal.
+     * <p>When {@link Configuration#isAsynchronousStatusLogging()} is set and the journal is an {@link AsyncJournal},
+     * the statuses recovery does not depend on are logged in the background so that writing them overlaps with the
+     * work following the status change. The other statuses are only logged once all the ones logged in the background
+     * have been written, which keeps the records of the transaction in order and reports background write failures.</p>
+     * @param status the new status.
+     * @param uniqueNames the unique names of the resources the status applies to.
+     * @throws BitronixSystemException if the status cannot be logged.
+     */
     public void setStatus(int status, Set<String> uniqueNames) throws BitronixSystemException {
         try {
             boolean force = (resourceManager.size() > 1) && (status == Status.STATUS_COMMITTING);
-            if (log.isDebugEnabled()) { log.debug("changing transaction status to " + Decoder.decodeStatus(status) + (force ? " (forced)" : "")); }
+            Journal journal = TransactionManagerServices.getJournal();
+            boolean pipelined = !force && isPipelined(status, journal);
+            if (log.isDebugEnabled()) { log.debug("changing transaction status to " + Decoder.decodeStatus(status) + (force ? " (forced)" : "") + (pipelined ? " (pipelined)" : "")); }
 
             int oldStatus = this.status;
             this.status = status;
-            Journal journal = TransactionManagerServices.getJournal();
-            journal.log(status, resourceManager.getGtrid(), uniqueNames);
-            if (force) {
-                journal.force();
+            CommitTrace trace = commitTrace;
+            long started = trace != null ? System.nanoTime() : 0L;
+            if (pipelined) {
+                pendingStatusLog = ((AsyncJournal) journal).logAsync(status, resourceManager.getGtrid(), uniqueNames);
+            } else {
+                awaitPendingStatusLog();
+                journal.log(status, resourceManager.getGtrid(), uniqueNames);
+                if (force) {
+                    journal.force();
+                }
             }
+            if (trace != null) trace.journalWritten(System.nanoTime() - started);
 
             if (status == Status.STATUS_ACTIVE)
                 ManagementRegistrar.register("bitronix.tm:type=Transaction,Gtrid=" + resourceManager.getGtrid(), this);
@@ -411,6 +473,63 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         }
     }
 
+    /**
+     * Change the status of the transaction without logging it to the journal. The 2PC engine uses this for the
+     * statuses recovery can never need, see {@link Configuration#isSkipUnneededStatusLogs()}.
+     * @param status the new status.
+     * @throws BitronixSystemException if a status previously logged in the background could not be logged.
+     */
+    public void setUnloggedStatus(int status) throws BitronixSystemException {
+        try {
+            if (!isPipelined(status, TransactionManagerServices.getJournal()))
+                awaitPendingStatusLog();
+        } catch (IOException ex) {
+            throw new BitronixSystemException("error logging status", ex);
+        }
+        if (log.isDebugEnabled()) { log.debug("changing transaction status to " + Decoder.decodeStatus(status) + " (not logged)"); }
+
+        int oldStatus = this.status;
+        this.status = status;
+        TransactionManagerServices.getPhaseStatistics().statusNotLogged();
+
+        fireTransactionStatusChangedEvent(oldStatus, status);
+    }
+
+    private static boolean isPipelined(int status, Journal journal) {
+        if (!TransactionManagerServices.getConfiguration().isAsynchronousStatusLogging() || !(journal instanceof AsyncJournal))
+            return false;
+
+        switch (status) {
+            case Status.STATUS_COMMITTING:
+            case Status.STATUS_COMMITTED:
+            case Status.STATUS_ROLLEDBACK:
+            case Status.STATUS_UNKNOWN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void awaitPendingStatusLog() throws IOException {
+        CompletableFuture<Void> pending = pendingStatusLog;
+        if (pending == null)
+            return;
+
+        try {
+            pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a status to be logged");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("error logging status in the background", ex.getCause());
+        } finally {
+            if (pending.isDone())
+                pendingStatusLog = null;
+        }
+    }
+
     private void fireTransactionStatusChangedEvent(int oldStatus, int newStatus) {
         if (log.isDebugEnabled()) log.debug("transaction status is changing from " + Decoder.decodeStatus(oldStatus) + " to " +
                 Decoder.decodeStatus(newStatus) + " - executing " + transactionStatusListeners.size() + " listener(s)");
@@ -500,6 +619,25 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         }
     }
 
+    /**
+     * Let the {@link bitronix.tm.twopc.CommitCoalescer} know about the branches this transaction is going to commit
+     * in phase 2, so that the commits of other transactions on the same resources can wait for them.
+     * @return true if the branches are expected by the commit coalescer.
+     */
+    private boolean expectCoalescedCommits() {
+        if (resourceManager.size() < 2 || !TransactionManagerServices.getConfiguration().isCommitCoalescing())
+            return false;
+
+        List<String> uniqueNames = new ArrayList<String>();
+        for (XAResourceHolderState resource : resourceManager.getAllResources()) {
+            // emulated XA resources are always committed directly
+            if (resource.getTwoPcOrderingPosition() != Scheduler.ALWAYS_LAST_POSITION)
+                uniqueNames.add(resource.getUniqueName());
+        }
+        TransactionManagerServices.getCommitCoalescer().expect(resourceManager.getGtrid(), uniqueNames);
+        return true;
+    }
+
     /**
      * Rollback resources after a phase 1 prepare failure. All resources must be rolled back as prepared ones
      * are in-doubt and non-prepared ones have started/ended work done that must also be cleaned.
@@ -536,6 +674,11 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
      */
     private void fireBeforeCompletionEvent() throws BitronixSystemException {
         if (log.isDebugEnabled()) { log.debug("before completion, " + synchronizationScheduler.size() + " synchronization(s) to execute"); }
+        if (TransactionManagerServices.getConfiguration().isParallelSynchronizations()) {
+            fireParallelSynchronizations(true);
+            return;
+        }
+
         Iterator<Synchronization> it = synchronizationScheduler.reverseIterator();
         while (it.hasNext()) {
             Synchronization synchronization = it.next();
@@ -555,18 +698,156 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         getResourceManager().clearXAResourceHolderStates();
 
         if (log.isDebugEnabled()) { log.debug("after completion, " + synchronizationScheduler.size() + " synchronization(s) to execute"); }
-        for (Synchronization synchronization : synchronizationScheduler) {
+        if (TransactionManagerServices.getConfiguration().isParallelSynchronizations()) {
             try {
-                if (log.isDebugEnabled()) { log.debug("executing synchronization " + synchronization + " with status=" + Decoder.decodeStatus(status)); }
-                synchronization.afterCompletion(status);
-            } catch (Exception ex) {
-                log.warn("Synchronization.afterCompletion() call failed for " + synchronization, ex);
+                fireParallelSynchronizations(false);
+            } catch (BitronixSystemException ex) {
+                // cannot happen, afterCompletion failures are only logged
+                log.warn("error executing synchronizations after completion", ex);
+            }
+        } else {
+            for (Synchronization synchronization : synchronizationScheduler) {
+                fireAfterCompletion(synchronization);
             }
         }
 
         ManagementRegistrar.unregister("bitronix.tm:type=Transaction,Gtrid=" + resourceManager.getGtrid());
     }
 
+    private void fireAfterCompletion(Synchronization synchronization) {
+        try {
+            if (log.isDebugEnabled()) { log.debug("executing synchronization " + synchronization + " with status=" + Decoder.decodeStatus(status)); }
+            synchronization.afterCompletion(status);
+        } catch (Exception ex) {
+            log.warn("Synchronization.afterCompletion() call failed for " + synchronization, ex);
+        }
+    }
+
+    /**
+     * Run the synchronizations position by position, the ones sharing a position being executed in parallel by the
+     * 2PC executor. Synchronizations registered at a position while it is being executed are executed before moving
+     * on to the next position. The synchronizations releasing the state bound to the committing thread are executed
+     * serially by that thread once the other synchronizations of their position completed, see
+     * {@link #isBoundToCommittingThread(Integer, Synchronization)}.
+     * @param beforeCompletion true to run beforeCompletion() in reverse position order, false to run
+     *        afterCompletion() in position order.
+     * @throws bitronix.tm.internal.BitronixSystemException if status changing due to a synchronization throwing an
+     *         exception fails.
+     */
+    private void fireParallelSynchronizations(boolean beforeCompletion) throws BitronixSystemException {
+        Set<Synchronization> executed = Collections.newSetFromMap(new IdentityHashMap<Synchronization, Boolean>());
+        Integer position = null;
+        while ((position = nextSynchronizationPosition(position, beforeCompletion)) != null) {
+            while (true) {
+                List<Synchronization> concurrent = new ArrayList<Synchronization>();
+                List<Synchronization> serial = new ArrayList<Synchronization>();
+                for (Synchronization synchronization : getSynchronizationsOfPosition(position, beforeCompletion)) {
+                    if (!executed.add(synchronization))
+                        continue;
+                    if (isBoundToCommittingThread(position, synchronization))
+                        serial.add(synchronization);
+                    else
+                        concurrent.add(synchronization);
+                }
+                if (concurrent.isEmpty() && serial.isEmpty())
+                    break;
+
+                if (concurrent.size() == 1)
+                    fireSerialSynchronizations(concurrent, beforeCompletion);
+                else if (!concurrent.isEmpty())
+                    fireConcurrentSynchronizations(concurrent, beforeCompletion);
+                fireSerialSynchronizations(serial, beforeCompletion);
+            }
+        }
+    }
+
+    /**
+     * Check if a synchronization must be executed by the committing thread: the ones clearing the thread context,
+     * releasing connections to their pool and clearing the resources of the synchronization registry. Any other one,
+     * interposed synchronizations included, can be executed by the 2PC executor.
+     * @param position the position the synchronization is registered at.
+     * @param synchronization the synchronization.
+     * @return true if the synchronization must be executed by the committing thread.
+     */
+    private static boolean isBoundToCommittingThread(Integer position, Synchronization synchronization) {
+        return position == Scheduler.ALWAYS_LAST_POSITION - 1 ||
+                synchronization instanceof DeferredReleaseSynchronization ||
+                synchronization instanceof BitronixTransactionSynchronizationRegistry.ClearRegistryResourcesSynchronization;
+    }
+
+    private Integer nextSynchronizationPosition(Integer position, boolean beforeCompletion) {
+        SortedSet<Integer> positions = beforeCompletion ?
+                synchronizationScheduler.getReverseOrderPositions() :
+                synchronizationScheduler.getNaturalOrderPositions();
+        if (position != null)
+            positions = positions.tailSet(position);
+        for (Integer next : positions) {
+            if (!next.equals(position))
+                return next;
+        }
+        return null;
+    }
+
+    private List<Synchronization> getSynchronizationsOfPosition(Integer position, boolean beforeCompletion) {
+        synchronized (synchronizationScheduler) {
+            List<Synchronization> synchronizations = synchronizationScheduler.getByNaturalOrderForPosition(position);
+            if (synchronizations == null)
+                return Collections.emptyList();
+            synchronizations = new ArrayList<Synchronization>(synchronizations);
+            if (beforeCompletion)
+                Collections.reverse(synchronizations);
+            return synchronizations;
+        }
+    }
+
+    private void fireSerialSynchronizations(List<Synchronization> synchronizations, boolean beforeCompletion) throws BitronixSystemException {
+        for (Synchronization synchronization : synchronizations) {
+            if (!beforeCompletion) {
+                fireAfterCompletion(synchronization);
+                continue;
+            }
+            try {
+                if (log.isDebugEnabled()) { log.debug("executing synchronization " + synchronization); }
+                synchronization.beforeCompletion();
+            } catch (RuntimeException ex) {
+                if (log.isDebugEnabled()) { log.debug("Synchronization.beforeCompletion() call failed for " + synchronization + ", marking transaction as rollback only - " + ex); }
+                setStatus(Status.STATUS_MARKED_ROLLBACK);
+                throw ex;
+            }
+        }
+    }
+
+    private void fireConcurrentSynchronizations(List<Synchronization> synchronizations, boolean beforeCompletion) throws BitronixSystemException {
+        if (log.isDebugEnabled()) { log.debug("executing " + synchronizations.size() + " synchronization(s) in parallel"); }
+        List<SynchronizationJob> jobs = new ArrayList<SynchronizationJob>(synchronizations.size());
+        CompletableFuture<?>[] completions = new CompletableFuture<?>[synchronizations.size()];
+        for (int i = 0; i < synchronizations.size(); i++) {
+            SynchronizationJob job = new SynchronizationJob(synchronizations.get(i), beforeCompletion);
+            jobs.add(job);
+            completions[i] = executor.submit(job);
+        }
+        CompletableFuture.allOf(completions).join();
+
+        // every failure is reported, the first beforeCompletion one is rethrown
+        RuntimeException failure = null;
+        for (SynchronizationJob job : jobs) {
+            RuntimeException ex = job.getRuntimeException();
+            if (ex == null)
+                continue;
+            if (!beforeCompletion) {
+                log.warn("Synchronization.afterCompletion() call failed for " + job.synchronization, ex);
+            } else {
+                if (log.isDebugEnabled()) { log.debug("Synchronization.beforeCompletion() call failed for " + job.synchronization + ", marking transaction as rollback only - " + ex); }
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+        if (failure != null) {
+            setStatus(Status.STATUS_MARKED_ROLLBACK);
+            throw failure;
+        }
+    }
+
     static String buildZeroTransactionDebugMessage(StackTrace activationStackTrace, StackTrace commitStackTrace) {
         String lineSeparator = System.getProperty("line.separator");
         final StringBuilder sb = new StringBuilder();
@@ -602,6 +883,52 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         return false;
     }
 
+    /**
+     * Executes a synchronization callback on the 2PC executor. The transaction is bound to the executor thread for the
+     * duration of the callback, as the callbacks executed on the committing thread can rely on
+     * {@link javax.transaction.TransactionManager#getTransaction()} and on resources enlisting themselves in the current
+     * transaction.
+     */
+    private final class SynchronizationJob extends Job {
+        private final Synchronization synchronization;
+        private final boolean beforeCompletion;
+
+        private SynchronizationJob(Synchronization synchronization, boolean beforeCompletion) {
+            super(null);
+            this.synchronization = synchronization;
+            this.beforeCompletion = beforeCompletion;
+        }
+
+        @Override
+        public String getPhase() {
+            return beforeCompletion ? "beforeCompletion" : "afterCompletion";
+        }
+
+        @Override
+        protected void execute() {
+            if (log.isDebugEnabled()) { log.debug("executing synchronization " + synchronization + (beforeCompletion ? "" : " with status=" + Decoder.decodeStatus(status))); }
+            ThreadContext threadContext = ThreadContext.getThreadContext();
+            BitronixTransaction previousTransaction = threadContext.getTransaction();
+            threadContext.setTransaction(BitronixTransaction.this);
+            try {
+                if (beforeCompletion)
+                    synchronization.beforeCompletion();
+                else
+                    synchronization.afterCompletion(status);
+            } finally {
+                if (previousTransaction != null)
+                    threadContext.setTransaction(previousTransaction);
+                else
+                    threadContext.clearTransaction();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "a SynchronizationJob (" + getPhase() + ") with " + synchronization;
+        }
+    }
+
     /* management */
 
     @Override
@@ -18,12 +18,12 @@ package bitronix.tm;
 import bitronix.tm.internal.BitronixSystemException;
 import bitronix.tm.internal.ThreadContext;
 import bitronix.tm.internal.XAResourceManager;
-import bitronix.tm.utils.ClassLoaderUtils;
 import bitronix.tm.utils.Decoder;
 import bitronix.tm.utils.InitializationException;
 import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Scheduler;
 import bitronix.tm.utils.Service;
+import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -45,13 +45,10 @@ import javax.transaction.TransactionManager;
 import javax.transaction.UserTransaction;
 import javax.transaction.xa.XAException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -64,7 +61,9 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
     private final static Logger log = LoggerFactory.getLogger(BitronixTransactionManager.class);
     private final static String MDC_GTRID_KEY = "btm-gtrid";
 
-    private final SortedMap<BitronixTransaction, ClearContextSynchronization> inFlightTransactions;
+    private final InFlightTransactions<ClearContextSynchronization> inFlightTransactions = new InFlightTransactions<ClearContextSynchronization>();
+    // GTRIDs of the completed transactions with deferred phase commands still running, with their command count
+    private final Map<Uid, Integer> deferredGtrids = new HashMap<Uid, Integer>();
 
     private volatile boolean shuttingDown;
 
@@ -89,8 +88,6 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
                 throw new InitializationException("invalid configuration value for backgroundRecoveryIntervalSeconds, found '" + backgroundRecoveryInterval + "' but it must be greater than 0");
             }
 
-            inFlightTransactions = createInFlightTransactionsMap();
-
             if (log.isDebugEnabled()) { log.debug("recovery will run in the background every " + backgroundRecoveryInterval + " second(s)"); }
             Date nextExecutionDate = new Date(MonotonicClock.currentTimeMillis() + (backgroundRecoveryInterval * 1000L));
             TransactionManagerServices.getTaskScheduler().scheduleRecovery(TransactionManagerServices.getRecoverer(), nextExecutionDate);
@@ -103,40 +100,6 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         }
     }
 
-    private SortedMap<BitronixTransaction, ClearContextSynchronization> createInFlightTransactionsMap()
-            throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
-        final boolean debug = log.isDebugEnabled();
-        if (debug) { log.debug("Creating sorted memory storage for inflight transactions."); }
-
-        final Comparator<BitronixTransaction> timestampSortComparator = new Comparator<BitronixTransaction>() {
-                @Override
-                public int compare(BitronixTransaction t1, BitronixTransaction t2) {
-                    Long timestamp1 = t1.getResourceManager().getGtrid().extractTimestamp();
-                    Long timestamp2 = t2.getResourceManager().getGtrid().extractTimestamp();
-
-                    int compareTo = timestamp1.compareTo(timestamp2);
-                    if (compareTo == 0 && !t1.getResourceManager().getGtrid().equals(t2.getResourceManager().getGtrid())) {
-                        // if timestamps are equal, use the Uid as the tie-breaker.  the !equals() check above avoids an expensive string compare() here.
-                        return t1.getGtrid().compareTo(t2.getGtrid());
-                    }
-                    return compareTo;
-                }
-            };
-
-        if (debug) { log.debug("Attempting to use a concurrent sorted map of type 'ConcurrentSkipListMap' (from jre6 or custom supplied backport)"); }
-        try {
-            @SuppressWarnings("unchecked")
-            SortedMap<BitronixTransaction, ClearContextSynchronization> mapInstance = (SortedMap<BitronixTransaction, ClearContextSynchronization>)
-                    ClassLoaderUtils.loadClass("java.util.concurrent.ConcurrentSkipListMap").
-                            getConstructor(Comparator.class).newInstance(timestampSortComparator);
-            return mapInstance;
-        } catch (ClassNotFoundException e) {
-            if (debug) { log.debug("Concurrent sorted map 'ConcurrentSkipListMap' is not available. Falling back to a synchronized TreeMap."); }
-            return Collections.synchronizedSortedMap(
-                    new TreeMap<BitronixTransaction, ClearContextSynchronization>(timestampSortComparator));
-        }
-    }
-
     /**
      * Start a new transaction and bind the context to the calling thread.
      * @throws NotSupportedException if a transaction is already bound to the calling thread.
@@ -297,20 +260,50 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
     }
 
     /**
-     * Return the timestamp of the oldest in-flight transaction.
+     * Return the timestamp of the oldest in-flight transaction. Completed transactions with phase commands still
+     * running after having been deferred are considered in-flight until these commands complete.
      * @return the timestamp or Long.MIN_VALUE if there is no in-flight transaction.
      */
     public long getOldestInFlightTransactionTimestamp() {
-        try {
-        	// The inFlightTransactions map is sorted by timestamp, so the first transaction is always the oldest
-        	BitronixTransaction oldestTransaction = inFlightTransactions.firstKey();
-        	long oldestTimestamp = oldestTransaction.getResourceManager().getGtrid().extractTimestamp();
-        	if (log.isDebugEnabled()) { log.debug("oldest in-flight transaction's timestamp: " + oldestTimestamp); }
-        	return oldestTimestamp;
-
-        } catch (NoSuchElementException e) {
-        	if (log.isDebugEnabled()) { log.debug("oldest in-flight transaction's timestamp: " + Long.MIN_VALUE); }
-        	return Long.MIN_VALUE;
+        long oldestTimestamp = inFlightTransactions.getOldestTimestamp();
+        // Long.MIN_VALUE already makes the recoverer skip every transaction
+        if (oldestTimestamp != Long.MIN_VALUE) {
+            synchronized (deferredGtrids) {
+                for (Uid gtrid : deferredGtrids.keySet()) {
+                    oldestTimestamp = Math.min(oldestTimestamp, gtrid.extractTimestamp());
+                }
+            }
+        }
+        if (log.isDebugEnabled()) { log.debug("oldest in-flight transaction's timestamp: " + oldestTimestamp); }
+        return oldestTimestamp;
+    }
+
+    /**
+     * Keep a transaction visible to the recovery service as in-flight while one of its phase commands is still
+     * running after the phase stopped waiting for it, so that recovery does not complete its branch concurrently.
+     * @param gtrid the GTRID of the transaction.
+     * @see bitronix.tm.Configuration#isAdaptive2PcTimeouts()
+     */
+    public void registerDeferredCommand(Uid gtrid) {
+        synchronized (deferredGtrids) {
+            Integer count = deferredGtrids.get(gtrid);
+            deferredGtrids.put(gtrid, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Signal the completion of a phase command registered with {@link #registerDeferredCommand(Uid)}.
+     * @param gtrid the GTRID of the transaction.
+     */
+    public void unregisterDeferredCommand(Uid gtrid) {
+        synchronized (deferredGtrids) {
+            Integer count = deferredGtrids.get(gtrid);
+            if (count == null)
+                return;
+            if (count == 1)
+                deferredGtrids.remove(gtrid);
+            else
+                deferredGtrids.put(gtrid, count - 1);
         }
     }
 
@@ -337,13 +330,11 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         if (!log.isDebugEnabled())
             return;
 
-        // We're using an iterator, so we must synchronize on the collection
-    	synchronized (inFlightTransactions) {
-	        log.debug("dumping " + inFlightTransactions.size() + " transaction context(s)");
-	        for (BitronixTransaction tx : inFlightTransactions.keySet()) {
-	            log.debug(tx.toString());
-	        }
-    	}
+        List<BitronixTransaction> transactions = inFlightTransactions.getTransactions();
+        log.debug("dumping " + transactions.size() + " transaction context(s)");
+        for (BitronixTransaction tx : transactions) {
+            log.debug(tx.toString());
+        }
     }
 
     /**
@@ -372,6 +363,11 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         if (log.isDebugEnabled()) { log.debug("shutting down executor"); }
         TransactionManagerServices.getExecutor().shutdown();
 
+        if (TransactionManagerServices.isCommitCoalescerRunning()) {
+            if (log.isDebugEnabled()) { log.debug("shutting down commit coalescer"); }
+            TransactionManagerServices.getCommitCoalescer().shutdown();
+        }
+
         if (log.isDebugEnabled()) { log.debug("shutting down task scheduler"); }
         TransactionManagerServices.getTaskScheduler().shutdown();
 
@@ -381,6 +377,16 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         if (log.isDebugEnabled()) { log.debug("shutting down recoverer"); }
         TransactionManagerServices.getRecoverer().shutdown();
 
+        if (TransactionManagerServices.isPhaseStatisticsRunning()) {
+            if (log.isDebugEnabled()) { log.debug("shutting down phase statistics"); }
+            TransactionManagerServices.getPhaseStatistics().shutdown();
+        }
+
+        if (TransactionManagerServices.isCommitTracerRunning()) {
+            if (log.isDebugEnabled()) { log.debug("shutting down commit tracer"); }
+            TransactionManagerServices.getCommitTracer().shutdown();
+        }
+
         if (log.isDebugEnabled()) { log.debug("shutting down configuration"); }
         TransactionManagerServices.getConfiguration().shutdown();
 
@@ -174,7 +174,10 @@ public class BitronixTransactionSynchronizationRegistry implements TransactionSy
         );
     }
 
-    private final class ClearRegistryResourcesSynchronization implements Synchronization {
+    /**
+     * Clears the resources of the committing thread, must thus be executed by it.
+     */
+    final class ClearRegistryResourcesSynchronization implements Synchronization {
         @Override
         public void beforeCompletion() {
         }
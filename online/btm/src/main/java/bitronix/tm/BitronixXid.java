@@ -46,7 +46,7 @@ public class BitronixXid implements Xid {
     private final Uid globalTransactionId;
     private final Uid branchQualifier;
     private final int hashCodeValue;
-    private final String toStringValue;
+    private String toStringValue;
 
     /**
      * Create a new XID using the specified GTRID and BQUAL.
@@ -56,14 +56,12 @@ public class BitronixXid implements Xid {
     public BitronixXid(Uid globalTransactionId, Uid branchQualifier) {
         this.globalTransactionId = globalTransactionId;
         this.branchQualifier = branchQualifier;
-        this.toStringValue = precalculateToString();
         this.hashCodeValue = precalculateHashCode();
     }
 
     public BitronixXid(Xid xid) {
         this.globalTransactionId = new Uid(xid.getGlobalTransactionId());
         this.branchQualifier = new Uid(xid.getBranchQualifier());
-        this.toStringValue = precalculateToString();
         this.hashCodeValue = precalculateHashCode();
     }
 
@@ -108,10 +106,16 @@ public class BitronixXid implements Xid {
      */
     @Override
     public String toString() {
-        return toStringValue;
+        // XIDs mostly get printed when debug logging is enabled, build the string on first use only
+        String value = toStringValue;
+        if (value == null) {
+            value = buildToString();
+            toStringValue = value;
+        }
+        return value;
     }
 
-    private String precalculateToString() {
+    private String buildToString() {
         StringBuilder sb = new StringBuilder(288);
         sb.append("a Bitronix XID [");
         sb.append(globalTransactionId.toString());
@@ -57,10 +57,29 @@ public class Configuration implements Service {
     private volatile String logPart2Filename;
     private volatile boolean forcedWriteEnabled;
     private volatile boolean forceBatchingEnabled;
+    private volatile boolean memoryMappedJournal;
+    private volatile int journalFormatVersion;
     private volatile int maxLogSizeInMb;
+    private volatile int journalSegments;
+    private volatile int checkpointIntervalInKb;
     private volatile boolean filterLogStatus;
+    private volatile boolean asynchronousStatusLogging;
     private volatile boolean skipCorruptedLogs;
     private volatile boolean asynchronous2Pc;
+    private volatile String asynchronous2PcExecutor;
+    private volatile int asynchronous2PcMaxThreads;
+    private volatile int asynchronous2PcMaxJobsPerResource;
+    private volatile int asynchronous2PcQueueSize;
+    private volatile boolean pipelined2Pc;
+    private volatile boolean skipUnneededStatusLogs;
+    private volatile boolean adaptive2PcTimeouts;
+    private volatile int adaptive2PcTimeoutMultiplier;
+    private volatile int adaptive2PcMinTimeout;
+    private volatile boolean commitCoalescing;
+    private volatile int commitCoalescingWindow;
+    private volatile int commitCoalescingMaxBatch;
+    private volatile boolean commitTracing;
+    private volatile boolean parallelSynchronizations;
     private volatile boolean warnAboutZeroResourceTransaction;
     private volatile boolean debugZeroResourceTransaction;
     private volatile int defaultTransactionTimeout;
@@ -105,10 +124,29 @@ public class Configuration implements Service {
             logPart2Filename = getString(properties, "bitronix.tm.journal.disk.logPart2Filename", "btm2.tlog");
             forcedWriteEnabled = getBoolean(properties, "bitronix.tm.journal.disk.forcedWriteEnabled", true);
             forceBatchingEnabled = getBoolean(properties, "bitronix.tm.journal.disk.forceBatchingEnabled", true);
+            memoryMappedJournal = getBoolean(properties, "bitronix.tm.journal.disk.memoryMapped", false);
+            journalFormatVersion = getInt(properties, "bitronix.tm.journal.disk.formatVersion", 1);
             maxLogSizeInMb = getInt(properties, "bitronix.tm.journal.disk.maxLogSize", 2);
+            journalSegments = getInt(properties, "bitronix.tm.journal.disk.segments", 4);
+            checkpointIntervalInKb = getInt(properties, "bitronix.tm.journal.disk.checkpointInterval", 256);
             filterLogStatus = getBoolean(properties, "bitronix.tm.journal.disk.filterLogStatus", false);
+            asynchronousStatusLogging = getBoolean(properties, "bitronix.tm.journal.asynchronousStatusLogging", false);
             skipCorruptedLogs = getBoolean(properties, "bitronix.tm.journal.disk.skipCorruptedLogs", false);
             asynchronous2Pc = getBoolean(properties, "bitronix.tm.2pc.async", false);
+            asynchronous2PcExecutor = getString(properties, "bitronix.tm.2pc.executor", "cached");
+            asynchronous2PcMaxThreads = getInt(properties, "bitronix.tm.2pc.maxThreads", 64);
+            asynchronous2PcMaxJobsPerResource = getInt(properties, "bitronix.tm.2pc.maxJobsPerResource", 16);
+            asynchronous2PcQueueSize = getInt(properties, "bitronix.tm.2pc.queueSize", 256);
+            pipelined2Pc = getBoolean(properties, "bitronix.tm.2pc.pipelined", false);
+            skipUnneededStatusLogs = getBoolean(properties, "bitronix.tm.2pc.skipUnneededStatusLogs", false);
+            adaptive2PcTimeouts = getBoolean(properties, "bitronix.tm.2pc.adaptiveTimeouts", false);
+            adaptive2PcTimeoutMultiplier = getInt(properties, "bitronix.tm.2pc.adaptiveTimeoutMultiplier", 4);
+            adaptive2PcMinTimeout = getInt(properties, "bitronix.tm.2pc.adaptiveMinTimeout", 1000);
+            commitCoalescing = getBoolean(properties, "bitronix.tm.2pc.commitCoalescing", false);
+            commitCoalescingWindow = getInt(properties, "bitronix.tm.2pc.commitCoalescingWindow", 200);
+            commitCoalescingMaxBatch = getInt(properties, "bitronix.tm.2pc.commitCoalescingMaxBatch", 64);
+            commitTracing = getBoolean(properties, "bitronix.tm.2pc.commitTracing", false);
+            parallelSynchronizations = getBoolean(properties, "bitronix.tm.2pc.parallelSynchronizations", false);
             warnAboutZeroResourceTransaction = getBoolean(properties, "bitronix.tm.2pc.warnAboutZeroResourceTransactions", true);
             debugZeroResourceTransaction = getBoolean(properties, "bitronix.tm.2pc.debugZeroResourceTransactions", false);
             defaultTransactionTimeout = getInt(properties, "bitronix.tm.timer.defaultTransactionTimeout", 60);
@@ -220,7 +258,9 @@ public class Configuration implements Service {
     }
 
     /**
-     * Are disk forces batched? Disabling batching can seriously lower the transaction manager's throughput.
+     * Are disk forces batched? When enabled, the disk journal forces the log once for all the transactions concurrently
+     * waiting on it instead of once per transaction. Disabling batching can seriously lower the transaction manager's
+     * throughput.
      * <p>Property name:<br><b>bitronix.tm.journal.disk.forceBatchingEnabled -</b> <i>(defaults to true)</i></p>
      * @return true if disk forces are batched, false otherwise.
      */
@@ -236,11 +276,58 @@ public class Configuration implements Service {
      */
     public Configuration setForceBatchingEnabled(boolean forceBatchingEnabled) {
         checkNotStarted();
-        log.warn("forceBatchingEnabled is not longer used");
         this.forceBatchingEnabled = forceBatchingEnabled;
         return this;
     }
 
+    /**
+     * Are the journal fragments accessed through a memory mapping? Memory-mapped fragments need less system calls and
+     * buffer copies per logged status but the whole fragments are mapped in the process' address space.
+     * <p>Property name:<br><b>bitronix.tm.journal.disk.memoryMapped -</b> <i>(defaults to false)</i></p>
+     * @return true if the journal fragments are memory-mapped, false otherwise.
+     */
+    public boolean isMemoryMappedJournal() {
+        return memoryMappedJournal;
+    }
+
+    /**
+     * Set if the journal fragments are accessed through a memory mapping. Memory-mapped fragments need less system
+     * calls and buffer copies per logged status but the whole fragments are mapped in the process' address space.
+     * @see #isMemoryMappedJournal()
+     * @param memoryMappedJournal true if the journal fragments should be memory-mapped, false otherwise.
+     * @return this.
+     */
+    public Configuration setMemoryMappedJournal(boolean memoryMappedJournal) {
+        checkNotStarted();
+        this.memoryMappedJournal = memoryMappedJournal;
+        return this;
+    }
+
+    /**
+     * Version of the format of the journal fragments created by the disk journal. Version 2 stores varint-encoded
+     * records referring to the resources' unique names through a per-fragment dictionary, which makes records almost
+     * half the size of the version 1 ones. Existing fragments keep the format they have been created with, both
+     * versions can be read.
+     * <p>Property name:<br><b>bitronix.tm.journal.disk.formatVersion -</b> <i>(defaults to 1)</i></p>
+     * @return the format version of the journal fragments, 1 or 2.
+     */
+    public int getJournalFormatVersion() {
+        return journalFormatVersion;
+    }
+
+    /**
+     * Set the version of the format of the journal fragments created by the disk journal. Version 2 stores
+     * varint-encoded records referring to the resources' unique names through a per-fragment dictionary.
+     * @see #getJournalFormatVersion()
+     * @param journalFormatVersion the format version of the journal fragments, 1 or 2.
+     * @return this.
+     */
+    public Configuration setJournalFormatVersion(int journalFormatVersion) {
+        checkNotStarted();
+        this.journalFormatVersion = journalFormatVersion;
+        return this;
+    }
+
     /**
      * Maximum size in megabytes of the journal fragments. Larger logs allow transactions to stay longer in-doubt but
      * the TM pauses longer when a fragment is full.
@@ -264,6 +351,54 @@ public class Configuration implements Service {
         return this;
     }
 
+    /**
+     * Number of segments of the striped journal. Each segment is a pair of journal fragments with its own write
+     * position and force, transactions are spread over the segments according to their GTRID. This value cannot be
+     * changed as long as the segments contain in-doubt transactions.
+     * <p>Property name:<br><b>bitronix.tm.journal.disk.segments -</b> <i>(defaults to 4)</i></p>
+     * @return the number of segments of the striped journal.
+     * @see bitronix.tm.journal.StripedDiskJournal
+     */
+    public int getJournalSegments() {
+        return journalSegments;
+    }
+
+    /**
+     * Set the number of segments of the striped journal. Each segment is a pair of journal fragments with its own
+     * write position and force, transactions are spread over the segments according to their GTRID.
+     * @see #getJournalSegments()
+     * @param journalSegments the number of segments of the striped journal.
+     * @return this.
+     */
+    public Configuration setJournalSegments(int journalSegments) {
+        checkNotStarted();
+        this.journalSegments = journalSegments;
+        return this;
+    }
+
+    /**
+     * Amount of kilobytes written to a journal fragment between two checkpoints. A checkpoint copies the dangling
+     * records to the fragment so that recovery only has to read the records written after the latest checkpoint
+     * instead of the whole fragment. Zero disables checkpoints.
+     * <p>Property name:<br><b>bitronix.tm.journal.disk.checkpointInterval -</b> <i>(defaults to 256)</i></p>
+     * @return the amount of kilobytes written between two checkpoints.
+     */
+    public int getCheckpointIntervalInKb() {
+        return checkpointIntervalInKb;
+    }
+
+    /**
+     * Set the amount of kilobytes written to a journal fragment between two checkpoints. Zero disables checkpoints.
+     * @see #getCheckpointIntervalInKb()
+     * @param checkpointIntervalInKb the amount of kilobytes written between two checkpoints.
+     * @return this.
+     */
+    public Configuration setCheckpointIntervalInKb(int checkpointIntervalInKb) {
+        checkNotStarted();
+        this.checkpointIntervalInKb = checkpointIntervalInKb;
+        return this;
+    }
+
     /**
      * Should only mandatory logs be written? Enabling this parameter lowers space usage of the fragments but makes
      * debugging more complex.
@@ -287,6 +422,30 @@ public class Configuration implements Service {
         return this;
     }
 
+    /**
+     * Should the statuses not needed by recovery be logged in the background? When the journal supports it (see
+     * {@link bitronix.tm.journal.AsyncJournal}), transactions then only wait for the records of the COMMITTING,
+     * COMMITTED, ROLLEDBACK and UNKNOWN statuses to be written, the other ones being written while the transaction
+     * goes on, ie: while the resources are being prepared.
+     * <p>Property name:<br><b>bitronix.tm.journal.asynchronousStatusLogging -</b> <i>(defaults to false)</i></p>
+     * @return true if the statuses not needed by recovery are logged in the background.
+     */
+    public boolean isAsynchronousStatusLogging() {
+        return asynchronousStatusLogging;
+    }
+
+    /**
+     * Set if the statuses not needed by recovery should be logged in the background when the journal supports it.
+     * @see #isAsynchronousStatusLogging()
+     * @param asynchronousStatusLogging true if the statuses not needed by recovery should be logged in the background.
+     * @return this.
+     */
+    public Configuration setAsynchronousStatusLogging(boolean asynchronousStatusLogging) {
+        checkNotStarted();
+        this.asynchronousStatusLogging = asynchronousStatusLogging;
+        return this;
+    }
+
     /**
      * Should corrupted logs be skipped?
      * <p>Property name:<br><b>bitronix.tm.journal.disk.skipCorruptedLogs -</b> <i>(defaults to false)</i></p>
@@ -333,6 +492,340 @@ public class Configuration implements Service {
         return this;
     }
 
+    /**
+     * Get the executor running the jobs of the asynchronous two phase commit. Can be <code>cached</code> for an
+     * unbounded cached thread pool, <code>bounded</code> for a {@link bitronix.tm.twopc.executor.BoundedExecutor},
+     * <code>virtual</code> for a {@link bitronix.tm.twopc.executor.VirtualThreadExecutor} when the JVM supports virtual
+     * threads or a class name. Only used when {@link #isAsynchronous2Pc()} is true.
+     * <p>Property name:<br><b>bitronix.tm.2pc.executor -</b> <i>(defaults to cached)</i></p>
+     * @return the asynchronous two phase commit executor name.
+     */
+    public String getAsynchronous2PcExecutor() {
+        return asynchronous2PcExecutor;
+    }
+
+    /**
+     * Set the executor running the jobs of the asynchronous two phase commit. Can be <code>cached</code>,
+     * <code>bounded</code>, <code>virtual</code> or a class name.
+     * @see #getAsynchronous2PcExecutor()
+     * @param asynchronous2PcExecutor the asynchronous two phase commit executor name.
+     * @return this.
+     */
+    public Configuration setAsynchronous2PcExecutor(String asynchronous2PcExecutor) {
+        checkNotStarted();
+        this.asynchronous2PcExecutor = asynchronous2PcExecutor;
+        return this;
+    }
+
+    /**
+     * Maximum number of threads of the bounded asynchronous two phase commit executor.
+     * <p>Property name:<br><b>bitronix.tm.2pc.maxThreads -</b> <i>(defaults to 64)</i></p>
+     * @return the maximum number of threads running two phase commit jobs.
+     */
+    public int getAsynchronous2PcMaxThreads() {
+        return asynchronous2PcMaxThreads;
+    }
+
+    /**
+     * Set the maximum number of threads of the bounded asynchronous two phase commit executor.
+     * @see #getAsynchronous2PcMaxThreads()
+     * @param asynchronous2PcMaxThreads the maximum number of threads running two phase commit jobs.
+     * @return this.
+     */
+    public Configuration setAsynchronous2PcMaxThreads(int asynchronous2PcMaxThreads) {
+        checkNotStarted();
+        this.asynchronous2PcMaxThreads = asynchronous2PcMaxThreads;
+        return this;
+    }
+
+    /**
+     * Maximum number of two phase commit jobs of a single resource the bounded executor runs or queues at the same
+     * time. Transactions submitting more jobs for a resource wait for the previous ones to complete, so a slow
+     * resource cannot take over all the executor threads.
+     * <p>Property name:<br><b>bitronix.tm.2pc.maxJobsPerResource -</b> <i>(defaults to 16)</i></p>
+     * @return the maximum number of concurrent two phase commit jobs per resource.
+     */
+    public int getAsynchronous2PcMaxJobsPerResource() {
+        return asynchronous2PcMaxJobsPerResource;
+    }
+
+    /**
+     * Set the maximum number of two phase commit jobs of a single resource the bounded executor runs or queues at the
+     * same time.
+     * @see #getAsynchronous2PcMaxJobsPerResource()
+     * @param asynchronous2PcMaxJobsPerResource the maximum number of concurrent two phase commit jobs per resource.
+     * @return this.
+     */
+    public Configuration setAsynchronous2PcMaxJobsPerResource(int asynchronous2PcMaxJobsPerResource) {
+        checkNotStarted();
+        this.asynchronous2PcMaxJobsPerResource = asynchronous2PcMaxJobsPerResource;
+        return this;
+    }
+
+    /**
+     * Size of the queue of the bounded asynchronous two phase commit executor. When all threads are busy and the
+     * queue is full, jobs are run by the thread submitting them.
+     * <p>Property name:<br><b>bitronix.tm.2pc.queueSize -</b> <i>(defaults to 256)</i></p>
+     * @return the number of two phase commit jobs that can wait for a thread.
+     */
+    public int getAsynchronous2PcQueueSize() {
+        return asynchronous2PcQueueSize;
+    }
+
+    /**
+     * Set the size of the queue of the bounded asynchronous two phase commit executor.
+     * @see #getAsynchronous2PcQueueSize()
+     * @param asynchronous2PcQueueSize the number of two phase commit jobs that can wait for a thread.
+     * @return this.
+     */
+    public Configuration setAsynchronous2PcQueueSize(int asynchronous2PcQueueSize) {
+        checkNotStarted();
+        this.asynchronous2PcQueueSize = asynchronous2PcQueueSize;
+        return this;
+    }
+
+    /**
+     * Should the positions of asynchronous two phase commit be pipelined? When enabled, the resources left at the
+     * default 2PC ordering position do not wait for the other positions to complete, and are not waited for by them.
+     * The positions explicitly configured on resources still run one after the other, and the reserved first and
+     * last positions (used by Last Resource Commit and emulated XA resources) are still waited for before and after
+     * all other positions. Only used when {@link #isAsynchronous2Pc()} is true.
+     * <p>Property name:<br><b>bitronix.tm.2pc.pipelined -</b> <i>(defaults to false)</i></p>
+     * @return true if the positions of two phase commit should be pipelined.
+     */
+    public boolean isPipelined2Pc() {
+        return pipelined2Pc;
+    }
+
+    /**
+     * Set if the positions of asynchronous two phase commit should be pipelined.
+     * @see #isPipelined2Pc()
+     * @param pipelined2Pc true if the positions of two phase commit should be pipelined.
+     * @return this.
+     */
+    public Configuration setPipelined2Pc(boolean pipelined2Pc) {
+        checkNotStarted();
+        this.pipelined2Pc = pipelined2Pc;
+        return this;
+    }
+
+    /**
+     * Should the statuses of transactions that recovery can never need be kept out of the journal? This is the case
+     * when a transaction has a single resource, committed with the one-phase optimization, and when no resource is
+     * left to commit in phase 2 because none was enlisted or all of them voted read-only during prepare. Such
+     * transactions then write no status record from preparation onwards and never force the journal.
+     * <p>Property name:<br><b>bitronix.tm.2pc.skipUnneededStatusLogs -</b> <i>(defaults to false)</i></p>
+     * @return true if statuses that recovery can never need should not be logged.
+     */
+    public boolean isSkipUnneededStatusLogs() {
+        return skipUnneededStatusLogs;
+    }
+
+    /**
+     * Set if the statuses of transactions that recovery can never need should be kept out of the journal.
+     * @see #isSkipUnneededStatusLogs()
+     * @param skipUnneededStatusLogs true if statuses that recovery can never need should not be logged.
+     * @return this.
+     */
+    public Configuration setSkipUnneededStatusLogs(boolean skipUnneededStatusLogs) {
+        checkNotStarted();
+        this.skipUnneededStatusLogs = skipUnneededStatusLogs;
+        return this;
+    }
+
+    /**
+     * Should phase 2 of asynchronous two phase commit stop waiting for slow resources? When enabled, the latency of
+     * the commit and rollback commands is tracked per resource and each command gets a deadline derived from it.
+     * A command still running when its deadline passes is left to the recovery service and the transaction
+     * completes without it, the connection it runs on only returning to its pool once it completes. Commands of
+     * one-phase commits and of resources emulating XA are always waited for as recovery cannot complete them.
+     * Only used when {@link #isAsynchronous2Pc()} is true.
+     * <p>Property name:<br><b>bitronix.tm.2pc.adaptiveTimeouts -</b> <i>(defaults to false)</i></p>
+     * @return true if phase 2 should stop waiting for commands running past their deadline.
+     */
+    public boolean isAdaptive2PcTimeouts() {
+        return adaptive2PcTimeouts;
+    }
+
+    /**
+     * Set if phase 2 of asynchronous two phase commit should stop waiting for slow resources.
+     * @see #isAdaptive2PcTimeouts()
+     * @param adaptive2PcTimeouts true if phase 2 should stop waiting for commands running past their deadline.
+     * @return this.
+     */
+    public Configuration setAdaptive2PcTimeouts(boolean adaptive2PcTimeouts) {
+        checkNotStarted();
+        this.adaptive2PcTimeouts = adaptive2PcTimeouts;
+        return this;
+    }
+
+    /**
+     * Factor applied to the usual latency of a resource to get the deadline of its phase 2 commands. The usual
+     * latency is the highest of the moving average and of the 99th percentile of the recent commands.
+     * <p>Property name:<br><b>bitronix.tm.2pc.adaptiveTimeoutMultiplier -</b> <i>(defaults to 4)</i></p>
+     * @return the factor applied to the usual latency of a resource.
+     */
+    public int getAdaptive2PcTimeoutMultiplier() {
+        return adaptive2PcTimeoutMultiplier;
+    }
+
+    /**
+     * Set the factor applied to the usual latency of a resource to get the deadline of its phase 2 commands.
+     * @see #getAdaptive2PcTimeoutMultiplier()
+     * @param adaptive2PcTimeoutMultiplier the factor applied to the usual latency of a resource.
+     * @return this.
+     */
+    public Configuration setAdaptive2PcTimeoutMultiplier(int adaptive2PcTimeoutMultiplier) {
+        checkNotStarted();
+        this.adaptive2PcTimeoutMultiplier = adaptive2PcTimeoutMultiplier;
+        return this;
+    }
+
+    /**
+     * Shortest deadline in milliseconds given to a phase 2 command, whatever the usual latency of its resource.
+     * <p>Property name:<br><b>bitronix.tm.2pc.adaptiveMinTimeout -</b> <i>(defaults to 1000)</i></p>
+     * @return the shortest deadline of a phase 2 command in milliseconds.
+     */
+    public int getAdaptive2PcMinTimeout() {
+        return adaptive2PcMinTimeout;
+    }
+
+    /**
+     * Set the shortest deadline in milliseconds given to a phase 2 command.
+     * @see #getAdaptive2PcMinTimeout()
+     * @param adaptive2PcMinTimeout the shortest deadline of a phase 2 command in milliseconds.
+     * @return this.
+     */
+    public Configuration setAdaptive2PcMinTimeout(int adaptive2PcMinTimeout) {
+        checkNotStarted();
+        this.adaptive2PcMinTimeout = adaptive2PcMinTimeout;
+        return this;
+    }
+
+    /**
+     * Should the phase 2 commits of concurrent transactions be delayed to reach their resource together? This is a
+     * group-commit delay similar to PostgreSQL's <code>commit_delay</code>: the first branch committing on a resource
+     * waits up to {@link #getCommitCoalescingWindow()} for the branches of other transactions which are being
+     * committed on the same resource, then they are all committed in parallel. Each branch is still committed with
+     * its own XA call, the gain only comes from resources grouping the writes of their own log, at the cost of a
+     * slightly higher commit latency. A commit is never delayed when no other transaction is committing on the same
+     * resource. One-phase commits and resources emulating XA are always committed directly.
+     * <p>Property name:<br><b>bitronix.tm.2pc.commitCoalescing -</b> <i>(defaults to false)</i></p>
+     * @return true if phase 2 commits should be coalesced per resource.
+     */
+    public boolean isCommitCoalescing() {
+        return commitCoalescing;
+    }
+
+    /**
+     * Set if the phase 2 commits of concurrent transactions should be lined up per resource.
+     * @see #isCommitCoalescing()
+     * @param commitCoalescing true if phase 2 commits should be coalesced per resource.
+     * @return this.
+     */
+    public Configuration setCommitCoalescing(boolean commitCoalescing) {
+        checkNotStarted();
+        this.commitCoalescing = commitCoalescing;
+        return this;
+    }
+
+    /**
+     * Longest time in microseconds the first branch committing on a resource waits for the branches of other
+     * transactions being committed on the same resource.
+     * <p>Property name:<br><b>bitronix.tm.2pc.commitCoalescingWindow -</b> <i>(defaults to 200)</i></p>
+     * @return the time a batch of commits is collected during in microseconds, 0 to commit branches right away.
+     */
+    public int getCommitCoalescingWindow() {
+        return commitCoalescingWindow;
+    }
+
+    /**
+     * Set the time in microseconds the first branch committing on a resource waits for the branches of other
+     * transactions.
+     * @see #getCommitCoalescingWindow()
+     * @param commitCoalescingWindow the time a batch of commits is collected during in microseconds.
+     * @return this.
+     */
+    public Configuration setCommitCoalescingWindow(int commitCoalescingWindow) {
+        checkNotStarted();
+        this.commitCoalescingWindow = commitCoalescingWindow;
+        return this;
+    }
+
+    /**
+     * Maximum number of branches committed together on a resource, the batch is committed as soon as it is full.
+     * <p>Property name:<br><b>bitronix.tm.2pc.commitCoalescingMaxBatch -</b> <i>(defaults to 64)</i></p>
+     * @return the maximum number of commits in a batch.
+     */
+    public int getCommitCoalescingMaxBatch() {
+        return commitCoalescingMaxBatch;
+    }
+
+    /**
+     * Set the maximum number of branches committed together on a resource.
+     * @see #getCommitCoalescingMaxBatch()
+     * @param commitCoalescingMaxBatch the maximum number of commits in a batch.
+     * @return this.
+     */
+    public Configuration setCommitCoalescingMaxBatch(int commitCoalescingMaxBatch) {
+        checkNotStarted();
+        this.commitCoalescingMaxBatch = commitCoalescingMaxBatch;
+        return this;
+    }
+
+    /**
+     * Should the time spent by transactions in each stage of their commit and by each XA call of the 2PC engine be
+     * measured? The timings are aggregated into latency histograms published via JMX by the
+     * {@link bitronix.tm.twopc.CommitTracer} and handed to its {@link bitronix.tm.twopc.CommitTraceListener}s.
+     * <p>Property name:<br><b>bitronix.tm.2pc.commitTracing -</b> <i>(defaults to false)</i></p>
+     * @return true if commit stages and XA calls should be timed.
+     */
+    public boolean isCommitTracing() {
+        return commitTracing;
+    }
+
+    /**
+     * Set if the time spent by transactions in each stage of their commit and by each XA call of the 2PC engine
+     * should be measured.
+     * @see #isCommitTracing()
+     * @param commitTracing true if commit stages and XA calls should be timed.
+     * @return this.
+     */
+    public Configuration setCommitTracing(boolean commitTracing) {
+        checkNotStarted();
+        this.commitTracing = commitTracing;
+        return this;
+    }
+
+    /**
+     * Should the synchronizations registered at the same position be executed in parallel? When enabled, the
+     * beforeCompletion and afterCompletion callbacks of the synchronizations sharing a position are executed
+     * concurrently by the 2PC executor while positions are still executed one after the other, interposed
+     * synchronizations included. The synchronizations clearing the thread context, releasing the connections and
+     * clearing the synchronization registry are always executed serially by the committing thread, after the other
+     * ones of their position. Parallel callbacks run on executor threads to which the transaction is bound
+     * for their duration, any other state bound to the committing thread is not available to them. Only effective
+     * when {@link #isAsynchronous2Pc()} is true.
+     * <p>Property name:<br><b>bitronix.tm.2pc.parallelSynchronizations -</b> <i>(defaults to false)</i></p>
+     * @return true if the synchronizations registered at the same position should be executed in parallel.
+     */
+    public boolean isParallelSynchronizations() {
+        return parallelSynchronizations;
+    }
+
+    /**
+     * Set if the synchronizations registered at the same position should be executed in parallel.
+     * @see #isParallelSynchronizations()
+     * @param parallelSynchronizations true if the synchronizations registered at the same position should be
+     *        executed in parallel.
+     * @return this.
+     */
+    public Configuration setParallelSynchronizations(boolean parallelSynchronizations) {
+        checkNotStarted();
+        this.parallelSynchronizations = parallelSynchronizations;
+        return this;
+    }
+
     /**
      * Should transactions executed without a single enlisted resource result in a warning or not? Most of the time
      * transactions executed with no enlisted resource reflect a bug or a mis-configuration somewhere.
@@ -566,7 +1059,8 @@ public class Configuration implements Service {
     }
 
     /**
-     * Get the journal implementation. Can be <code>disk</code>, <code>null</code> or a class name.
+     * Get the journal implementation. Can be <code>disk</code>, <code>striped</code>, <code>segmented</code>,
+     * <code>null</code> or a class name.
      * @return the journal name.
      */
     public String getJournal() {
@@ -574,7 +1068,8 @@ public class Configuration implements Service {
     }
 
     /**
-     * Set the journal name. Can be <code>disk</code>, <code>null</code> or a class name.
+     * Set the journal name. Can be <code>disk</code>, <code>striped</code>, <code>segmented</code>,
+     * <code>null</code> or a class name.
      * @see #getJournal()
      * @param journal the journal name.
      * @return this.
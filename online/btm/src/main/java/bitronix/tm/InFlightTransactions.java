@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the transactions started by the {@link BitronixTransactionManager} and not yet completed.
+ * <p>Transactions are spread over a set of independently locked stripes selected by their GTRID hash so that
+ * concurrent begins and completions rarely contend. Every stripe lazily maintains the lowest GTRID timestamp it
+ * contains: registering a transaction lowers it, unregistering the oldest one only marks it stale and the next
+ * {@link #getOldestTimestamp()} call rescans that single stripe. Begin and completion therefore are O(1) while the
+ * oldest timestamp query, only run by the {@link bitronix.tm.recovery.Recoverer}, stays cheap.</p>
+ *
+ * @author Ludovic Orban
+ */
+final class InFlightTransactions<V> {
+
+    private final Stripe<V>[] stripes;
+    private final int mask;
+
+    @SuppressWarnings("unchecked")
+    InFlightTransactions() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<V>();
+        }
+        mask = count - 1;
+    }
+
+    void put(BitronixTransaction transaction, V value) {
+        long timestamp = transaction.getResourceManager().getGtrid().extractTimestamp();
+        Stripe<V> stripe = stripeOf(transaction);
+        synchronized (stripe) {
+            stripe.entries.put(transaction, new Entry<V>(value, timestamp));
+            if (!stripe.stale && timestamp < stripe.oldestTimestamp)
+                stripe.oldestTimestamp = timestamp;
+        }
+    }
+
+    V get(BitronixTransaction transaction) {
+        Stripe<V> stripe = stripeOf(transaction);
+        synchronized (stripe) {
+            Entry<V> entry = stripe.entries.get(transaction);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    V remove(BitronixTransaction transaction) {
+        Stripe<V> stripe = stripeOf(transaction);
+        synchronized (stripe) {
+            Entry<V> entry = stripe.entries.remove(transaction);
+            if (entry == null)
+                return null;
+            if (stripe.entries.isEmpty()) {
+                stripe.oldestTimestamp = Long.MAX_VALUE;
+                stripe.stale = false;
+            } else if (entry.timestamp == stripe.oldestTimestamp) {
+                stripe.stale = true;
+            }
+            return entry.value;
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get a copy of the registered transactions, in no particular order.
+     * @return the in-flight transactions.
+     */
+    List<BitronixTransaction> getTransactions() {
+        List<BitronixTransaction> transactions = new ArrayList<BitronixTransaction>();
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                transactions.addAll(stripe.entries.keySet());
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * Get the GTRID timestamp of the oldest registered transaction.
+     * @return the timestamp or Long.MIN_VALUE if there is no in-flight transaction.
+     */
+    long getOldestTimestamp() {
+        long oldest = Long.MAX_VALUE;
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.stale) {
+                    long timestamp = Long.MAX_VALUE;
+                    for (Entry<V> entry : stripe.entries.values()) {
+                        timestamp = Math.min(timestamp, entry.timestamp);
+                    }
+                    stripe.oldestTimestamp = timestamp;
+                    stripe.stale = false;
+                }
+                oldest = Math.min(oldest, stripe.oldestTimestamp);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? Long.MIN_VALUE : oldest;
+    }
+
+    private Stripe<V> stripeOf(BitronixTransaction transaction) {
+        int hash = transaction.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static final class Stripe<V> {
+        private final Map<BitronixTransaction, Entry<V>> entries = new HashMap<BitronixTransaction, Entry<V>>();
+        private long oldestTimestamp = Long.MAX_VALUE;
+        private boolean stale;
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long timestamp;
+
+        private Entry(V value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+}
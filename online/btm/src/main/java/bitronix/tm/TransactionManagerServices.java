@@ -18,12 +18,19 @@ package bitronix.tm;
 import bitronix.tm.journal.DiskJournal;
 import bitronix.tm.journal.Journal;
 import bitronix.tm.journal.NullJournal;
+import bitronix.tm.journal.SegmentedDiskJournal;
+import bitronix.tm.journal.StripedDiskJournal;
 import bitronix.tm.recovery.Recoverer;
 import bitronix.tm.resource.ResourceLoader;
 import bitronix.tm.timer.TaskScheduler;
+import bitronix.tm.twopc.CommitCoalescer;
+import bitronix.tm.twopc.CommitTracer;
+import bitronix.tm.twopc.PhaseStatistics;
 import bitronix.tm.twopc.executor.AsyncExecutor;
+import bitronix.tm.twopc.executor.BoundedExecutor;
 import bitronix.tm.twopc.executor.Executor;
 import bitronix.tm.twopc.executor.SyncExecutor;
+import bitronix.tm.twopc.executor.VirtualThreadExecutor;
 import bitronix.tm.utils.ClassLoaderUtils;
 import bitronix.tm.utils.DefaultExceptionAnalyzer;
 import bitronix.tm.utils.ExceptionAnalyzer;
@@ -38,7 +45,7 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * Container for all BTM services.
  * <p>The different services available are: {@link BitronixTransactionManager}, {@link BitronixTransactionSynchronizationRegistry}
- * {@link Configuration}, {@link Journal}, {@link TaskScheduler}, {@link ResourceLoader}, {@link Recoverer} and {@link Executor}.
+ * {@link Configuration}, {@link Journal}, {@link TaskScheduler}, {@link ResourceLoader}, {@link Recoverer}, {@link Executor}, {@link PhaseStatistics}, {@link CommitCoalescer} and {@link CommitTracer}.
  * They are used in all places of the TM so they must be globally reachable.</p>
  *
  * @author Ludovic Orban
@@ -58,6 +65,9 @@ public class TransactionManagerServices {
     private static final AtomicReference<Recoverer> recovererRef = new AtomicReference<Recoverer>();
     private static final AtomicReference<Executor> executorRef = new AtomicReference<Executor>();
     private static final AtomicReference<ExceptionAnalyzer> exceptionAnalyzerRef = new AtomicReference<ExceptionAnalyzer>();
+    private static final AtomicReference<PhaseStatistics> phaseStatisticsRef = new AtomicReference<PhaseStatistics>();
+    private static final AtomicReference<CommitCoalescer> commitCoalescerRef = new AtomicReference<CommitCoalescer>();
+    private static final AtomicReference<CommitTracer> commitTracerRef = new AtomicReference<CommitTracer>();
 
     /**
      * Create an initialized transaction manager.
@@ -117,6 +127,10 @@ public class TransactionManagerServices {
                 journal = new NullJournal();
             } else if ("disk".equals(configuredJournal)) {
                 journal = new DiskJournal();
+            } else if ("striped".equals(configuredJournal)) {
+                journal = new StripedDiskJournal();
+            } else if ("segmented".equals(configuredJournal)) {
+                journal = new SegmentedDiskJournal();
             } else {
                 try {
                     Class<?> clazz = ClassLoaderUtils.loadClass(configuredJournal);
@@ -189,8 +203,30 @@ public class TransactionManagerServices {
         Executor executor = executorRef.get();
         if (executor == null) {
             if (getConfiguration().isAsynchronous2Pc()) {
-                if (log.isDebugEnabled()) { log.debug("using AsyncExecutor"); }
-                executor = new AsyncExecutor();
+                String configuredExecutor = getConfiguration().getAsynchronous2PcExecutor();
+                if ("bounded".equals(configuredExecutor)) {
+                    if (log.isDebugEnabled()) { log.debug("using BoundedExecutor"); }
+                    executor = new BoundedExecutor();
+                } else if ("virtual".equals(configuredExecutor)) {
+                    if (VirtualThreadExecutor.isSupported()) {
+                        if (log.isDebugEnabled()) { log.debug("using VirtualThreadExecutor"); }
+                        executor = new VirtualThreadExecutor();
+                    } else {
+                        log.info("virtual threads are not supported by this JVM, using AsyncExecutor instead");
+                        executor = new AsyncExecutor();
+                    }
+                } else if ("cached".equals(configuredExecutor) || null == configuredExecutor) {
+                    if (log.isDebugEnabled()) { log.debug("using AsyncExecutor"); }
+                    executor = new AsyncExecutor();
+                } else {
+                    try {
+                        Class<?> clazz = ClassLoaderUtils.loadClass(configuredExecutor);
+                        executor = (Executor) clazz.newInstance();
+                    } catch (Exception ex) {
+                        throw new InitializationException("invalid 2PC executor implementation '" + configuredExecutor + "'", ex);
+                    }
+                    if (log.isDebugEnabled()) { log.debug("using custom 2PC executor " + executor); }
+                }
             } else {
                 if (log.isDebugEnabled()) { log.debug("using SyncExecutor"); }
                 executor = new SyncExecutor();
@@ -203,6 +239,54 @@ public class TransactionManagerServices {
         return executor;
     }
 
+    /**
+     * Create the 2PC engine statistics.
+     * @return the 2PC engine statistics.
+     */
+    public static PhaseStatistics getPhaseStatistics() {
+        PhaseStatistics phaseStatistics = phaseStatisticsRef.get();
+        if (phaseStatistics == null) {
+            phaseStatistics = new PhaseStatistics();
+            if (!phaseStatisticsRef.compareAndSet(null, phaseStatistics)) {
+                phaseStatistics.shutdown();
+                phaseStatistics = phaseStatisticsRef.get();
+            }
+        }
+        return phaseStatistics;
+    }
+
+    /**
+     * Create the phase 2 commit coalescer.
+     * @return the phase 2 commit coalescer.
+     */
+    public static CommitCoalescer getCommitCoalescer() {
+        CommitCoalescer commitCoalescer = commitCoalescerRef.get();
+        if (commitCoalescer == null) {
+            commitCoalescer = new CommitCoalescer();
+            if (!commitCoalescerRef.compareAndSet(null, commitCoalescer)) {
+                commitCoalescer.shutdown();
+                commitCoalescer = commitCoalescerRef.get();
+            }
+        }
+        return commitCoalescer;
+    }
+
+    /**
+     * Create the commit tracer.
+     * @return the commit tracer.
+     */
+    public static CommitTracer getCommitTracer() {
+        CommitTracer commitTracer = commitTracerRef.get();
+        if (commitTracer == null) {
+            commitTracer = new CommitTracer();
+            if (!commitTracerRef.compareAndSet(null, commitTracer)) {
+                commitTracer.shutdown();
+                commitTracer = commitTracerRef.get();
+            }
+        }
+        return commitTracer;
+    }
+
     /**
      * Create the exception analyzer.
      * @return the exception analyzer.
@@ -243,6 +327,30 @@ public class TransactionManagerServices {
         return taskSchedulerRef.get() != null;
     }
 
+    /**
+     * Check if the 2PC engine statistics have been created.
+     * @return true if the 2PC engine statistics have been created.
+     */
+    public static boolean isPhaseStatisticsRunning() {
+        return phaseStatisticsRef.get() != null;
+    }
+
+    /**
+     * Check if the phase 2 commit coalescer has been created.
+     * @return true if the phase 2 commit coalescer has been created.
+     */
+    public static boolean isCommitCoalescerRunning() {
+        return commitCoalescerRef.get() != null;
+    }
+
+    /**
+     * Check if the commit tracer has been created.
+     * @return true if the commit tracer has been created.
+     */
+    public static boolean isCommitTracerRunning() {
+        return commitTracerRef.get() != null;
+    }
+
     /**
      * Clear services references. Called at the end of the shutdown procedure.
      */
@@ -257,6 +365,9 @@ public class TransactionManagerServices {
         recovererRef.set(null);
         executorRef.set(null);
         exceptionAnalyzerRef.set(null);
+        phaseStatisticsRef.set(null);
+        commitCoalescerRef.set(null);
+        commitTracerRef.set(null);
     }
 
 }
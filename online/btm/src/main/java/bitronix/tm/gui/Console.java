@@ -15,10 +15,10 @@
  */
 package bitronix.tm.gui;
 
-import bitronix.tm.BitronixXid;
 import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.journal.JournalRecord;
+import bitronix.tm.journal.TransactionLogHeader;
 import bitronix.tm.journal.TransactionLogRecord;
 import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
@@ -200,7 +200,7 @@ public class Console extends JFrame {
         try {
 	        activeRandomAccessFile = new RandomAccessFile(file1, "r");
 	        int formatId1 = activeRandomAccessFile.readInt();
-	        if (formatId1 != BitronixXid.FORMAT_ID)
+	        if (!TransactionLogHeader.isSupportedFormatId(formatId1))
 	            throw new IOException("log file 1 " + file1.getName() + " is not a Bitronix Log file (incorrect header)");
 	        timestamp1 = activeRandomAccessFile.readLong();
         }
@@ -211,7 +211,7 @@ public class Console extends JFrame {
         activeRandomAccessFile = new RandomAccessFile(file2, "r");
         try {
 	        int formatId2 = activeRandomAccessFile.readInt();
-	        if (formatId2 != BitronixXid.FORMAT_ID)
+	        if (!TransactionLogHeader.isSupportedFormatId(formatId2))
 	            throw new IOException("log file 2 " + file2.getName() + " is not a Bitronix Log file (incorrect header)");
 	        long timestamp2 = activeRandomAccessFile.readLong();
 
@@ -35,23 +35,27 @@ public class TransactionLogHeaderPanel extends JPanel {
     private final static Logger log = LoggerFactory.getLogger(TransactionLogHeaderPanel.class);
 
     private final JTextField logFileField = new JTextField();
+    private final JTextField formatField = new JTextField();
     private final JTextField timestampField = new JTextField();
     private final JTextField stateField = new JTextField();
     private final JTextField positionField = new JTextField();
 
     public TransactionLogHeaderPanel() {
         logFileField.setEditable(false);
+        formatField.setEditable(false);
         timestampField.setEditable(false);
         stateField.setEditable(false);
         positionField.setEditable(false);
 
         logFileField.setBorder(null);
+        formatField.setBorder(null);
         timestampField.setBorder(null);
         stateField.setBorder(null);
         positionField.setBorder(null);
 
         setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
         add(logFileField);
+        add(formatField);
         add(timestampField);
         add(stateField);
         add(positionField);
@@ -61,6 +65,10 @@ public class TransactionLogHeaderPanel extends JPanel {
         logFileField.setText(logFile.getName());
     }
 
+    public void setFormatId(int formatId) {
+        formatField.setText(Decoder.decodeHeaderFormatId(formatId));
+    }
+
     public void setTimestamp(long timestamp) {
         timestampField.setText(Console.dateFormatter.format(new Date(timestamp)));
     }
@@ -79,6 +87,7 @@ public class TransactionLogHeaderPanel extends JPanel {
         raf.close();
         if (log.isDebugEnabled()) { log.debug("read header: " + header); }
         setLogFile(logFile);
+        setFormatId(header.getFormatId());
         setTimestamp(header.getTimestamp());
         setState(header.getState());
         setPosition(header.getPosition());
@@ -91,6 +100,7 @@ public class TransactionLogHeaderPanel extends JPanel {
             font = logFileField.getFont().deriveFont(Font.PLAIN);
         }
         logFileField.setFont(font);
+        formatField.setFont(font);
         timestampField.setFont(font);
         stateField.setFont(font);
         positionField.setFont(font);
@@ -28,11 +28,14 @@ import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * Every {@link bitronix.tm.BitronixTransaction} contains an instance of this class that is used to register
@@ -46,6 +49,16 @@ public class XAResourceManager {
 
     private final Uid gtrid;
     private final Scheduler<XAResourceHolderState> resources = new Scheduler<XAResourceHolderState>();
+    /**
+     * The first enlisted {@link XAResourceHolderState} of every {@link XAResource}, in the scheduler's order.
+     * Guarded by the resources scheduler's monitor.
+     */
+    private final Map<XAResource, XAResourceHolderState> resourcesByXAResource = new IdentityHashMap<XAResource, XAResourceHolderState>();
+    /**
+     * Immutable views of the enlisted resources, built on first use once enlistment is over and dropped whenever the
+     * enlisted resources change. Guarded by the resources scheduler's monitor.
+     */
+    private volatile Snapshot snapshot;
 
     /**
      * Create a resource manager for the specified GTRID.
@@ -112,12 +125,18 @@ public class XAResourceManager {
         xaResourceHolderState.start(flag);
 
 
-        // in case of a JOIN, the resource holder is already in the scheduler -> do not add it twice
-        if (toBeJoinedHolderState != null) {
-            resources.remove(toBeJoinedHolderState);
+        synchronized (resources) {
+            // in case of a JOIN, the resource holder is already in the scheduler -> do not add it twice
+            if (toBeJoinedHolderState != null) {
+                resources.remove(toBeJoinedHolderState);
+                unindex(toBeJoinedHolderState);
+            }
+            // this must be done only after start() successfully returned
+            resources.add(xaResourceHolderState, xaResourceHolderState.getTwoPcOrderingPosition());
+            if (!resourcesByXAResource.containsKey(xaResourceHolderState.getXAResource()))
+                resourcesByXAResource.put(xaResourceHolderState.getXAResource(), xaResourceHolderState);
+            snapshot = null;
         }
-        // this must be done only after start() successfully returned
-        resources.add(xaResourceHolderState, xaResourceHolderState.getTwoPcOrderingPosition());
     }
 
     /**
@@ -191,12 +210,29 @@ public class XAResourceManager {
      * @throws BitronixSystemException if an internal error happens.
      */
     public XAResourceHolderState findXAResourceHolderState(XAResource xaResource) throws BitronixSystemException {
-        for (XAResourceHolderState xaResourceHolderState : resources) {
-            if (xaResourceHolderState.getXAResource() == xaResource)
-                return xaResourceHolderState;
+        synchronized (resources) {
+            return resourcesByXAResource.get(xaResource);
         }
+    }
 
-        return null;
+    /**
+     * Remove a {@link XAResourceHolderState} taken out of the scheduler from the {@link XAResource} index, falling
+     * back to the next enlisted state of the same {@link XAResource} if there is one. Must be called while holding
+     * the resources scheduler's monitor.
+     * @param xaResourceHolderState the removed {@link XAResourceHolderState}.
+     */
+    private void unindex(XAResourceHolderState xaResourceHolderState) {
+        XAResource xaResource = xaResourceHolderState.getXAResource();
+        if (resourcesByXAResource.get(xaResource) != xaResourceHolderState)
+            return;
+
+        resourcesByXAResource.remove(xaResource);
+        for (XAResourceHolderState remaining : resources) {
+            if (remaining.getXAResource() == xaResource) {
+                resourcesByXAResource.put(xaResource, remaining);
+                break;
+            }
+        }
     }
 
     /**
@@ -249,42 +285,59 @@ public class XAResourceManager {
 
             it.remove();
         }
+        synchronized (resources) {
+            resourcesByXAResource.clear();
+            snapshot = null;
+        }
     }
 
     /**
-     * Get a {@link Set} of unique names of all the enlisted {@link XAResourceHolderState}s.
+     * Get a {@link Set} of unique names of all the enlisted {@link XAResourceHolderState}s. The set is naturally
+     * sorted so that the journal does not have to copy it.
      * @return a {@link Set} of unique names of all the enlisted {@link XAResourceHolderState}s.
      */
     public Set<String> collectUniqueNames() {
-        Set<String> names = new HashSet<String>(resources.size());
-        for (XAResourceHolderState xaResourceHolderState : resources) {
-            names.add(xaResourceHolderState.getUniqueName());
-        }
-        return Collections.unmodifiableSet(names);
+        return getSnapshot().uniqueNames;
     }
 
     public SortedSet<Integer> getNaturalOrderPositions() {
-        return Collections.unmodifiableSortedSet(resources.getNaturalOrderPositions());
+        return getSnapshot().naturalOrderPositions;
     }
 
     public SortedSet<Integer> getReverseOrderPositions() {
-        return Collections.unmodifiableSortedSet(resources.getReverseOrderPositions());
+        return getSnapshot().reverseOrderPositions;
     }
 
     public List<XAResourceHolderState> getNaturalOrderResourcesForPosition(Integer position) {
-        return Collections.unmodifiableList(resources.getByNaturalOrderForPosition(position));
+        return getSnapshot().getResourcesForPosition(position, false);
     }
 
     public List<XAResourceHolderState> getReverseOrderResourcesForPosition(Integer position) {
-        return Collections.unmodifiableList(resources.getByReverseOrderForPosition(position));
+        return getSnapshot().getResourcesForPosition(position, true);
     }
 
+    /**
+     * Get all the enlisted {@link XAResourceHolderState}s in natural position and enlistment order.
+     * <p>This and the other views of the enlisted resources are immutable and shared until the enlisted resources
+     * change, callers must not copy them.</p>
+     * @return an immutable list of the enlisted {@link XAResourceHolderState}s.
+     */
     public List<XAResourceHolderState> getAllResources() {
-        List<XAResourceHolderState> result = new ArrayList<XAResourceHolderState>(resources.size());
-        for (Integer positionKey : resources.getNaturalOrderPositions()) {
-            result.addAll(resources.getByNaturalOrderForPosition(positionKey));
+        return getSnapshot().allResources;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (resources) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(resources);
+                    snapshot = current;
+                }
+            }
         }
-        return Collections.unmodifiableList(result);
+        return current;
     }
 
     /**
@@ -312,4 +365,46 @@ public class XAResourceManager {
         return "a XAResourceManager with GTRID [" + gtrid + "] and " + resources;
     }
 
+    /**
+     * Position ordered views of the enlisted resources.
+     */
+    private final static class Snapshot {
+        private final SortedSet<Integer> naturalOrderPositions;
+        private final SortedSet<Integer> reverseOrderPositions;
+        private final Map<Integer, List<XAResourceHolderState>> naturalOrderResources = new HashMap<Integer, List<XAResourceHolderState>>();
+        private final Map<Integer, List<XAResourceHolderState>> reverseOrderResources = new HashMap<Integer, List<XAResourceHolderState>>();
+        private final List<XAResourceHolderState> allResources;
+        private final Set<String> uniqueNames;
+
+        private Snapshot(Scheduler<XAResourceHolderState> resources) {
+            SortedSet<Integer> positions = resources.getNaturalOrderPositions();
+            SortedSet<Integer> reversePositions = new TreeSet<Integer>(Collections.reverseOrder());
+            reversePositions.addAll(positions);
+            this.naturalOrderPositions = Collections.unmodifiableSortedSet(positions);
+            this.reverseOrderPositions = Collections.unmodifiableSortedSet(reversePositions);
+
+            List<XAResourceHolderState> all = new ArrayList<XAResourceHolderState>(resources.size());
+            SortedSet<String> names = new TreeSet<String>();
+            for (Integer position : positions) {
+                List<XAResourceHolderState> natural = new ArrayList<XAResourceHolderState>(resources.getByNaturalOrderForPosition(position));
+                List<XAResourceHolderState> reverse = new ArrayList<XAResourceHolderState>(natural);
+                Collections.reverse(reverse);
+                naturalOrderResources.put(position, Collections.unmodifiableList(natural));
+                reverseOrderResources.put(position, Collections.unmodifiableList(reverse));
+
+                all.addAll(natural);
+                for (XAResourceHolderState xaResourceHolderState : natural) {
+                    names.add(xaResourceHolderState.getUniqueName());
+                }
+            }
+            this.allResources = Collections.unmodifiableList(all);
+            this.uniqueNames = Collections.unmodifiableSortedSet(names);
+        }
+
+        private List<XAResourceHolderState> getResourcesForPosition(Integer position, boolean reverse) {
+            List<XAResourceHolderState> result = reverse ? reverseOrderResources.get(position) : naturalOrderResources.get(position);
+            return result == null ? Collections.<XAResourceHolderState>emptyList() : result;
+        }
+    }
+
 }
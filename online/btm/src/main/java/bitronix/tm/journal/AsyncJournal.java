@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.utils.Uid;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * May be implemented by journal implementations that can write records in the background, letting the caller go on
+ * with its work while the record is being written.
+ *
+ * @see bitronix.tm.Configuration#isAsynchronousStatusLogging()
+ *
+ * @author Ludovic Orban
+ */
+public interface AsyncJournal {
+    /**
+     * Log a new transaction status to journal without waiting for the record to be written. Records logged with this
+     * method are written in call order, but they are not forced: call {@link Journal#force()} once the future
+     * completed to make them durable.
+     *
+     * @param status transaction status to log.
+     * @param gtrid GTRID of the transaction.
+     * @param uniqueNames unique names of the RecoverableXAResourceProducers participating in the transaction. The set
+     * must not be modified after this call.
+     * @return a future completed once the record has been written, or completed exceptionally with the
+     * {@link java.io.IOException} which prevented it from being written.
+     */
+    CompletableFuture<Void> logAsync(int status, Uid gtrid, Set<String> uniqueNames);
+}
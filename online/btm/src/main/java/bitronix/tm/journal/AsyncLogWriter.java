@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background writer thread backing the {@link AsyncJournal} implementations.
+ * <p>Records are handed over to a single thread which logs them in submission order through the blocking
+ * {@link Journal#log(int, Uid, Set)} method of the journal.</p>
+ *
+ * @author Ludovic Orban
+ */
+final class AsyncLogWriter {
+
+    private final static Logger log = LoggerFactory.getLogger(AsyncLogWriter.class);
+
+    private final Journal journal;
+    private final ExecutorService executor;
+
+    AsyncLogWriter(Journal journal, final String threadName) {
+        this.journal = journal;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                // shutdown() takes care of writing the queued records
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a record to be logged by the writer thread.
+     * @return a future completed once the record has been written.
+     */
+    CompletableFuture<Void> log(final int status, final Uid gtrid, final Set<String> uniqueNames) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        journal.log(status, gtrid, uniqueNames);
+                        future.complete(null);
+                    } catch (IOException ex) {
+                        future.completeExceptionally(ex);
+                    } catch (RuntimeException ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(new IOException("cannot write log, asynchronous log writer is shut down"));
+        }
+        return future;
+    }
+
+    /**
+     * Stop the writer thread once all the queued records have been written.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (log.isDebugEnabled()) { log.debug("waiting for the asynchronous log writer of " + journal + " to write the queued records"); }
+            }
+        } catch (InterruptedException ex) {
+            log.error("interrupted while waiting for the asynchronous log writer of " + journal + " to stop");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a future completed exceptionally with the specified exception.
+     */
+    static CompletableFuture<Void> failed(IOException ex) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+}
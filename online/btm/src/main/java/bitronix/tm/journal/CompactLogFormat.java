@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Encoding of the records of the version 2 log files, which header format ID is
+ * {@link TransactionLogHeader#COMPACT_FORMAT_ID}.
+ * <p>The records hold the same information as the original ones (see {@link TransactionLogRecord}) in almost half the
+ * space: integers are varints (7 bits per byte, the high bit telling if more bytes follow), the fields which can be
+ * recalculated are not stored and unique names are replaced by small IDs. A record looks like this:</p>
+ * <p><code>[STATUS :1] [RECORD LENGTH :V] [TIME :V] [SEQUENCE NUMBER :V] [GTRID LENGTH :1] [GTRID :A]
+ * [UNIQUE NAMES COUNT :V] ([UNIQUE NAME ID :V] ...) [CRC32 :4]</code></p>
+ * <p>The record length is the one of the fields following it and the CRC32 covers all the fields preceding it.</p>
+ * <p>The IDs are defined by {@link TransactionLogRecord#STATUS_NAME_DEFINITION} records written in the log file
+ * before the first record using the unique name. Every log file has its own dictionary, which is started over when
+ * the file is rewound:</p>
+ * <p><code>[STATUS :1] [RECORD LENGTH :V] [UNIQUE NAME ID :V] [UNIQUE NAME LENGTH :V] [UNIQUE NAME :Y] [CRC32 :4]</code></p>
+ *
+ * @see NameDictionary
+ *
+ * @author Ludovic Orban
+ */
+final class CompactLogFormat {
+
+    private final static Logger log = LoggerFactory.getLogger(CompactLogFormat.class);
+
+    private final static int WALK_BLOCK_SIZE = 64 * 1024;
+
+    // size assumed for the ID of a name not defined yet
+    private final static int MAX_VARINT_SIZE = 5;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final static ThreadLocal<CRC32> threadLocalCrc32 = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    private CompactLogFormat() {
+    }
+
+    /**
+     * Called back for each record found by {@link CompactLogFormat#walkFrames}.
+     */
+    interface FrameHandler {
+        /**
+         * @param status the status of the record.
+         * @param position the position of the record in the log file.
+         * @param block a buffer holding the whole record.
+         * @param offset the offset of the record in the buffer.
+         * @param frameLength the total length of the record.
+         * @throws IOException if the record cannot be handled.
+         */
+        void frame(int status, long position, ByteBuffer block, int offset, int frameLength) throws IOException;
+    }
+
+    /*
+     * Encoding
+     */
+
+    /**
+     * Calculate the size of a record once encoded. Names not defined in the dictionary yet are counted with the
+     * biggest possible ID.
+     * @param tlog the record.
+     * @param dictionary the dictionary of the log file.
+     * @return the total size of the record.
+     */
+    static int recordSize(TransactionLogRecord tlog, NameDictionary dictionary) {
+        int length = recordLength(tlog, dictionary);
+        return 1 + varIntSize(length) + length;
+    }
+
+    /**
+     * Serialize a record into a buffer starting at its current position. The unique names of the record must all be
+     * defined in the dictionary. The buffer's position is moved past the end of the record.
+     * @param tlog the record.
+     * @param dictionary the dictionary of the log file.
+     * @param buf the buffer to write to, it must have at least {@link #recordSize} bytes remaining.
+     */
+    static void writeTo(TransactionLogRecord tlog, NameDictionary dictionary, ByteBuffer buf) {
+        int start = buf.position();
+        buf.put((byte) tlog.getStatus());
+        putVarInt(buf, recordLength(tlog, dictionary));
+
+        if (tlog.getStatus() == TransactionLogRecord.STATUS_NAME_DEFINITION) {
+            String name = tlog.getUniqueNames().iterator().next();
+            byte[] nameBytes = TransactionLogRecord.encodeName(name);
+            putVarInt(buf, idOf(dictionary, name));
+            putVarInt(buf, nameBytes.length);
+            buf.put(nameBytes);
+        } else {
+            Uid gtrid = tlog.getGtrid();
+            Set<String> uniqueNames = tlog.getUniqueNames();
+            putVarLong(buf, tlog.getTime());
+            putVarInt(buf, tlog.getSequenceNumber());
+            buf.put((byte) gtrid.length());
+            buf.put(gtrid.getArray());
+            putVarInt(buf, uniqueNames.size());
+            for (String name : uniqueNames) {
+                putVarInt(buf, idOf(dictionary, name));
+            }
+        }
+
+        buf.putInt(crc32(buf, start, buf.position()));
+    }
+
+    private static int recordLength(TransactionLogRecord tlog, NameDictionary dictionary) {
+        if (tlog.getStatus() == TransactionLogRecord.STATUS_NAME_DEFINITION) {
+            String name = tlog.getUniqueNames().iterator().next();
+            int nameLength = TransactionLogRecord.encodeName(name).length;
+            return idSize(dictionary, name) + varIntSize(nameLength) + nameLength + 4;
+        }
+
+        Set<String> uniqueNames = tlog.getUniqueNames();
+        int length = varLongSize(tlog.getTime()) + varIntSize(tlog.getSequenceNumber()) + 1 + tlog.getGtrid().length() + varIntSize(uniqueNames.size());
+        for (String name : uniqueNames) {
+            length += idSize(dictionary, name);
+        }
+        return length + 4;
+    }
+
+    private static int idSize(NameDictionary dictionary, String name) {
+        int id = dictionary.idOf(name);
+        return id < 0 ? MAX_VARINT_SIZE : varIntSize(id);
+    }
+
+    private static int idOf(NameDictionary dictionary, String name) {
+        int id = dictionary.idOf(name);
+        if (id < 0)
+            throw new IllegalStateException("unique name " + name + " is not defined in " + dictionary);
+        return id;
+    }
+
+    /*
+     * Decoding
+     */
+
+    /**
+     * Get the total length of the record starting at the specified offset of a buffer, in either format.
+     * @param buf the buffer.
+     * @param offset the offset of the record in the buffer.
+     * @param compact true if the buffer holds records of the version 2 format.
+     * @return the total length of the record, 0 if the buffer ends before the record length or -1 if the record
+     * length is invalid.
+     */
+    static int frameLength(ByteBuffer buf, int offset, boolean compact) {
+        if (!compact) {
+            if (offset + 8 > buf.limit())
+                return 0;
+            int recordLength = buf.getInt(offset + 4);
+            if (recordLength < 0 || recordLength > Integer.MAX_VALUE - 8)
+                return -1;
+            return 8 + recordLength;
+        }
+
+        int position = offset + 1;
+        int recordLength = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            if (position >= buf.limit())
+                return 0;
+            byte b = buf.get(position++);
+            recordLength |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                int headerLength = position - offset;
+                if (recordLength < 0 || recordLength > Integer.MAX_VALUE - headerLength)
+                    return -1;
+                return headerLength + recordLength;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the status of the record starting at the specified offset of a buffer, in either format.
+     * @param buf the buffer.
+     * @param offset the offset of the record in the buffer.
+     * @param compact true if the buffer holds records of the version 2 format.
+     * @return the status of the record.
+     */
+    static int status(ByteBuffer buf, int offset, boolean compact) {
+        return compact ? buf.get(offset) & 0xFF : buf.getInt(offset);
+    }
+
+    /**
+     * Deserialize the record starting at the current position of a buffer. Name definition records are registered
+     * into the dictionary. The buffer's position is moved past the end of the record, even if it is corrupted.
+     * @param page the buffer holding the whole record.
+     * @param frameLength the total length of the record, as returned by {@link #frameLength}.
+     * @param dictionary the dictionary of the log file.
+     * @param skipCrcCheck true if the CRC must not be checked.
+     * @param position the position of the record in the log file, used for error reporting.
+     * @return the record or null if it is a name definition.
+     * @throws CorruptedTransactionLogException if the record is corrupted.
+     */
+    static TransactionLogRecord readRecord(ByteBuffer page, int frameLength, NameDictionary dictionary, boolean skipCrcCheck, long position) throws CorruptedTransactionLogException {
+        int start = page.position();
+        int end = start + frameLength;
+        ByteBuffer frame = page.duplicate();
+        frame.limit(end);
+        page.position(end);
+
+        // status + record length + at least one field + CRC32
+        if (frameLength < 1 + 1 + 1 + 4)
+            throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (record too short: " + frameLength + ")");
+
+        if (!skipCrcCheck) {
+            int recorded = frame.getInt(end - 4);
+            int calculated = crc32(frame, start, end - 4);
+            if (recorded != calculated)
+                throw new CorruptedTransactionLogException("corrupted log found at position " + position
+                        + " (invalid CRC, recorded: " + recorded + ", calculated: " + calculated + ")");
+        }
+
+        try {
+            int status = frame.get() & 0xFF;
+            getVarInt(frame, position);
+
+            if (status == TransactionLogRecord.STATUS_NAME_DEFINITION) {
+                int id = getVarInt(frame, position);
+                byte[] nameBytes = new byte[checkedLength(getVarInt(frame, position), frame, position)];
+                frame.get(nameBytes);
+                checkEndOfRecord(frame, position);
+                dictionary.define(id, new String(nameBytes, US_ASCII));
+                return null;
+            }
+
+            long time = getVarLong(frame, position);
+            int sequenceNumber = getVarInt(frame, position);
+            byte[] gtridArray = new byte[checkedLength(frame.get() & 0xFF, frame, position)];
+            frame.get(gtridArray);
+            int uniqueNamesCount = checkedLength(getVarInt(frame, position), frame, position);
+            SortedSet<String> uniqueNames = new TreeSet<String>();
+            for (int i = 0; i < uniqueNamesCount; i++) {
+                int id = getVarInt(frame, position);
+                String name = dictionary.nameOf(id);
+                if (name == null)
+                    throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (undefined unique name ID " + id + ")");
+                uniqueNames.add(name);
+            }
+            checkEndOfRecord(frame, position);
+
+            return new TransactionLogRecord(status, time, sequenceNumber, new Uid(gtridArray), uniqueNames);
+        } catch (BufferUnderflowException ex) {
+            throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (fields outside of record bounds)");
+        }
+    }
+
+    private static int checkedLength(int length, ByteBuffer frame, long position) throws CorruptedTransactionLogException {
+        if (length < 0 || length > frame.remaining())
+            throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (invalid length " + length + ")");
+        return length;
+    }
+
+    private static void checkEndOfRecord(ByteBuffer frame, long position) throws CorruptedTransactionLogException {
+        if (frame.remaining() != 4)
+            throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (record length mismatch)");
+    }
+
+    /*
+     * Walking
+     */
+
+    /**
+     * Walk the records of a log file without decoding them.
+     * @param fc the channel of the log file.
+     * @param startPosition the position of the first record.
+     * @param endPosition the position at which the walk must stop.
+     * @param compact true if the log file is in the version 2 format.
+     * @param handler called back for each record.
+     * @return the position of the first record which could not be walked, endPosition if all records were.
+     * @throws IOException if an I/O error occurs or if the handler fails.
+     */
+    static long walkFrames(FileChannel fc, long startPosition, long endPosition, boolean compact, FrameHandler handler) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(WALK_BLOCK_SIZE);
+        long position = startPosition;
+
+        while (position < endPosition) {
+            block.clear();
+            if (block.capacity() > endPosition - position)
+                block.limit((int) (endPosition - position));
+            while (block.hasRemaining()) {
+                if (fc.read(block, position + block.position()) < 0)
+                    break;
+            }
+            block.flip();
+
+            int walked = walkBlock(block, position, 0, compact, handler);
+            if (walked == 0) {
+                // either a corrupted or truncated record, or one bigger than the block
+                int frameLength = frameLength(block, 0, compact);
+                if (frameLength <= block.capacity() || position + frameLength > endPosition)
+                    break;
+                block = ByteBuffer.allocate(frameLength);
+                continue;
+            }
+            position += walked;
+        }
+        return position;
+    }
+
+    /**
+     * Walk the records of a log file loaded in memory without decoding them.
+     * @param image the content of the log file, starting at offset 0.
+     * @param startPosition the position of the first record.
+     * @param endPosition the position at which the walk must stop.
+     * @param compact true if the log file is in the version 2 format.
+     * @param handler called back for each record.
+     * @return the position of the first record which could not be walked, endPosition if all records were.
+     * @throws IOException if the handler fails.
+     */
+    static long walkFrames(ByteBuffer image, long startPosition, long endPosition, boolean compact, FrameHandler handler) throws IOException {
+        ByteBuffer block = image.duplicate();
+        block.limit((int) endPosition);
+        return walkBlock(block, 0L, (int) startPosition, compact, handler);
+    }
+
+    private static int walkBlock(ByteBuffer block, long blockPosition, int offset, boolean compact, FrameHandler handler) throws IOException {
+        while (true) {
+            int frameLength = frameLength(block, offset, compact);
+            if (frameLength <= 0 || frameLength > block.limit() - offset)
+                return offset;
+            handler.frame(status(block, offset, compact), blockPosition + offset, block, offset, frameLength);
+            offset += frameLength;
+        }
+    }
+
+    /**
+     * Register into a dictionary the name definitions of a log file found between two positions.
+     * @param fc the channel of the log file.
+     * @param startPosition the position of the first record.
+     * @param endPosition the position at which reading must stop.
+     * @param dictionary the dictionary to fill.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void loadDefinitions(FileChannel fc, long startPosition, long endPosition, NameDictionary dictionary) throws IOException {
+        walkFrames(fc, startPosition, endPosition, true, new DefinitionLoader(dictionary));
+        if (log.isDebugEnabled()) { log.debug("loaded " + dictionary); }
+    }
+
+    /**
+     * Register into a dictionary the name definitions of a log file loaded in memory found between two positions.
+     * @param image the content of the log file, starting at offset 0.
+     * @param startPosition the position of the first record.
+     * @param endPosition the position at which reading must stop.
+     * @param dictionary the dictionary to fill.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void loadDefinitions(ByteBuffer image, long startPosition, long endPosition, NameDictionary dictionary) throws IOException {
+        walkFrames(image, startPosition, endPosition, true, new DefinitionLoader(dictionary));
+        if (log.isDebugEnabled()) { log.debug("loaded " + dictionary); }
+    }
+
+    private static final class DefinitionLoader implements FrameHandler {
+        private final NameDictionary dictionary;
+
+        private DefinitionLoader(NameDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public void frame(int status, long position, ByteBuffer block, int offset, int frameLength) {
+            if (status != TransactionLogRecord.STATUS_NAME_DEFINITION)
+                return;
+
+            ByteBuffer frame = block.duplicate();
+            frame.position(offset);
+            try {
+                readRecord(frame, frameLength, dictionary, false, position);
+            } catch (CorruptedTransactionLogException ex) {
+                log.error("skipping corrupted unique name definition", ex);
+            }
+        }
+    }
+
+    /*
+     * Varints
+     */
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0L) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer buf, long position) throws CorruptedTransactionLogException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (malformed varint)");
+    }
+
+    static long getVarLong(ByteBuffer buf, long position) throws CorruptedTransactionLogException {
+        long value = 0L;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new CorruptedTransactionLogException("corrupted log found at position " + position + " (malformed varint)");
+    }
+
+    private static int crc32(ByteBuffer buf, int start, int end) {
+        ByteBuffer range = buf.duplicate();
+        range.limit(end);
+        range.position(start);
+        CRC32 crc32 = threadLocalCrc32.get();
+        crc32.reset();
+        crc32.update(range);
+        return (int) crc32.getValue();
+    }
+}
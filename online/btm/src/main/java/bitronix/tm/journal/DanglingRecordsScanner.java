@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Status;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Collects the dangling records of a log file by scanning it in parallel.
+ * <p>The file is read sequentially in chunks cut at record boundaries. Each chunk is parsed and CRC-checked by a
+ * fork-join worker which summarizes its effect per GTRID, while the next chunks are being read. The summaries are
+ * then merged in file order, which gives the same result as a sequential scan. Only a bounded number of chunks is
+ * kept in memory at any time.</p>
+ *
+ * @author Ludovic Orban
+ */
+final class DanglingRecordsScanner {
+
+    private final static Logger log = LoggerFactory.getLogger(DanglingRecordsScanner.class);
+
+    final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final TransactionLogAppender tla;
+    private final int chunkSize;
+    private final boolean skipCorruptedLogs;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    DanglingRecordsScanner(TransactionLogAppender tla) {
+        this(tla, DEFAULT_CHUNK_SIZE);
+    }
+
+    DanglingRecordsScanner(TransactionLogAppender tla, int chunkSize) {
+        this.tla = tla;
+        this.chunkSize = chunkSize;
+        this.skipCorruptedLogs = TransactionManagerServices.getConfiguration().isSkipCorruptedLogs();
+    }
+
+    /**
+     * Check if a log file holds enough records for a parallel scan to be faster than a sequential one.
+     * @param tla the TransactionLogAppender to scan.
+     * @param startPosition the position of the first record to scan.
+     * @return true if the log file should be scanned by a DanglingRecordsScanner.
+     */
+    static boolean isWorthScanning(TransactionLogAppender tla, long startPosition) {
+        long length = tla.getHeader().getPosition() - startPosition;
+        return ForkJoinPool.getCommonPoolParallelism() > 1 && length >= 2L * DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Create a Map of TransactionLogRecord with COMMITTING status objects using the GTRID as key that have no
+     * corresponding COMMITTED record.
+     * @param startPosition the position of the first record to scan, either the first one of the file or the one
+     * starting a checkpoint.
+     * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
+     * @throws IOException in case of disk IO failure.
+     */
+    Map<Uid, JournalRecord> scan(long startPosition) throws IOException {
+        FileChannel fc = tla.getFileChannel();
+        long endPosition = tla.getHeader().getPosition();
+        int maxInFlight = pool.getParallelism() * 2;
+
+        Deque<ChunkScanTask> inFlight = new ArrayDeque<ChunkScanTask>();
+        Map<Uid, DanglingState> states = new HashMap<Uid, DanglingState>(64);
+        int chunks = 0;
+        int committing = 0;
+        int committed = 0;
+
+        try {
+            long chunkStart = startPosition;
+            long readPosition = chunkStart;
+            ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+
+            while (chunkStart < endPosition) {
+                while (chunk.hasRemaining() && readPosition < endPosition) {
+                    if (chunk.remaining() > endPosition - readPosition)
+                        chunk.limit(chunk.position() + (int) (endPosition - readPosition));
+                    int read = fc.read(chunk, readPosition);
+                    if (read < 0)
+                        throw new IOException("end of " + tla + " reached at " + readPosition + " before the end of its records at " + endPosition);
+                    readPosition += read;
+                }
+                chunk.flip();
+
+                boolean last = readPosition >= endPosition;
+                int boundary = last ? chunk.limit() : lastRecordBoundary(chunk, tla.getDictionary() != null);
+                if (boundary == 0) {
+                    // a single record does not fit in the chunk
+                    ByteBuffer bigger = ByteBuffer.allocate(chunk.capacity() * 2);
+                    bigger.put(chunk);
+                    chunk = bigger;
+                    continue;
+                }
+
+                ByteBuffer records = chunk.duplicate();
+                records.limit(boundary);
+                ChunkScanTask task = new ChunkScanTask(records, chunkStart, last ? endPosition : chunkStart + boundary);
+                pool.execute(task);
+                inFlight.addLast(task);
+                chunks++;
+
+                chunkStart += boundary;
+                chunk.position(boundary);
+                ByteBuffer next = ByteBuffer.allocate(Math.max(chunkSize, chunk.remaining()));
+                next.put(chunk);
+                chunk = next;
+
+                while (inFlight.size() > maxInFlight) {
+                    ChunkDelta delta = join(inFlight.removeFirst());
+                    committing += delta.committing;
+                    committed += delta.committed + merge(states, delta);
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                ChunkDelta delta = join(inFlight.removeFirst());
+                committing += delta.committing;
+                committed += delta.committed + merge(states, delta);
+            }
+        } finally {
+            for (ChunkScanTask task : inFlight) {
+                task.cancel(false);
+            }
+        }
+
+        Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(states.size() * 2);
+        for (Map.Entry<Uid, DanglingState> entry : states.entrySet()) {
+            DanglingState state = entry.getValue();
+            if (state.uniqueNames.size() == state.record.getUniqueNames().size())
+                danglingRecords.put(entry.getKey(), state.record);
+            else
+                danglingRecords.put(entry.getKey(), new TransactionLogRecord(state.record.getStatus(), entry.getKey(), state.uniqueNames));
+        }
+
+        if (log.isDebugEnabled()) { log.debug("collected dangling records of " + tla + " in " + chunks + " chunk(s), committing: " + committing + ", committed: " + committed + ", delta: " + danglingRecords.size()); }
+        return danglingRecords;
+    }
+
+    /**
+     * Find the end of the last complete record of a chunk.
+     * @param chunk the chunk, between 0 and its limit.
+     * @param compact true if the log file is in the version 2 format.
+     * @return the offset of the first byte following the last complete record, 0 if there is none.
+     */
+    private static int lastRecordBoundary(ByteBuffer chunk, boolean compact) {
+        int boundary = 0;
+        while (true) {
+            int frameLength = CompactLogFormat.frameLength(chunk, boundary, compact);
+            if (frameLength <= 0 || frameLength > chunk.limit() - boundary)
+                break;
+            boundary += frameLength;
+        }
+        return boundary;
+    }
+
+    private static ChunkDelta join(ChunkScanTask task) throws IOException {
+        ChunkDelta delta = task.join();
+        if (delta.failure != null)
+            throw delta.failure;
+        return delta;
+    }
+
+    /**
+     * Apply the summary of a chunk to the dangling records of all the chunks preceding it.
+     * @return the number of dangling records of the preceding chunks committed by this one.
+     */
+    private static int merge(Map<Uid, DanglingState> states, ChunkDelta delta) {
+        int committed = 0;
+        for (Map.Entry<Uid, GtridDelta> entry : delta.gtrids.entrySet()) {
+            Uid gtrid = entry.getKey();
+            GtridDelta gtridDelta = entry.getValue();
+
+            if (gtridDelta.record != null) {
+                if (gtridDelta.uniqueNames.isEmpty())
+                    states.remove(gtrid);
+                else
+                    states.put(gtrid, new DanglingState(gtridDelta.record, gtridDelta.uniqueNames));
+            } else {
+                DanglingState state = states.get(gtrid);
+                if (state != null) {
+                    state.uniqueNames.removeAll(gtridDelta.uniqueNames);
+                    if (state.uniqueNames.isEmpty()) {
+                        states.remove(gtrid);
+                        committed++;
+                    }
+                }
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Parses a chunk and summarizes its effect on the dangling records.
+     */
+    private final class ChunkScanTask extends RecursiveTask<ChunkDelta> {
+        private final ByteBuffer records;
+        private final long startPosition;
+        private final long endPosition;
+
+        private ChunkScanTask(ByteBuffer records, long startPosition, long endPosition) {
+            this.records = records;
+            this.startPosition = startPosition;
+            this.endPosition = endPosition;
+        }
+
+        @Override
+        protected ChunkDelta compute() {
+            ChunkDelta delta = new ChunkDelta();
+            TransactionLogCursor tlc = new TransactionLogCursor(records, startPosition, endPosition, tla.getDictionary());
+            try {
+                while (true) {
+                    TransactionLogRecord tlog;
+                    try {
+                        tlog = tlc.readLog();
+                    } catch (CorruptedTransactionLogException ex) {
+                        if (skipCorruptedLogs) {
+                            log.error("skipping corrupted log", ex);
+                            continue;
+                        }
+                        throw ex;
+                    }
+
+                    if (tlog == null)
+                        break;
+                    delta.apply(tlog);
+                }
+            } catch (IOException ex) {
+                delta.failure = ex;
+            }
+            return delta;
+        }
+    }
+
+    /**
+     * The effect of a chunk on the dangling records, per GTRID.
+     */
+    private static final class ChunkDelta {
+        private final Map<Uid, GtridDelta> gtrids = new HashMap<Uid, GtridDelta>(64);
+        private int committing;
+        private int committed;
+        private IOException failure;
+
+        private void apply(TransactionLogRecord tlog) {
+            int status = tlog.getStatus();
+            if (status == Status.STATUS_COMMITTING) {
+                GtridDelta gtridDelta = gtrids.get(tlog.getGtrid());
+                if (gtridDelta == null) {
+                    gtridDelta = new GtridDelta();
+                    gtrids.put(tlog.getGtrid(), gtridDelta);
+                }
+                gtridDelta.record = tlog;
+                gtridDelta.uniqueNames = new HashSet<String>(tlog.getUniqueNames());
+                committing++;
+            }
+
+            // COMMITTED is when there was no problem in the transaction
+            // UNKNOWN is when a 2PC transaction heuristically terminated
+            // ROLLEDBACK is when a 1PC transaction rolled back during commit
+            if (status == Status.STATUS_COMMITTED || status == Status.STATUS_UNKNOWN || status == Status.STATUS_ROLLEDBACK) {
+                GtridDelta gtridDelta = gtrids.get(tlog.getGtrid());
+                if (gtridDelta == null) {
+                    gtridDelta = new GtridDelta();
+                    gtridDelta.uniqueNames = new HashSet<String>(tlog.getUniqueNames());
+                    gtrids.put(tlog.getGtrid(), gtridDelta);
+                } else if (gtridDelta.record == null) {
+                    gtridDelta.uniqueNames.addAll(tlog.getUniqueNames());
+                } else if (!gtridDelta.uniqueNames.isEmpty()) {
+                    gtridDelta.uniqueNames.removeAll(tlog.getUniqueNames());
+                    if (gtridDelta.uniqueNames.isEmpty())
+                        committed++;
+                }
+            }
+        }
+    }
+
+    /**
+     * When record is set, the chunk contains a COMMITTING record and the GTRID is left with uniqueNames to commit
+     * (none meaning it is not dangling anymore). Otherwise the chunk only removes uniqueNames from whatever the
+     * preceding chunks left to commit.
+     */
+    private static final class GtridDelta {
+        private TransactionLogRecord record;
+        private Set<String> uniqueNames;
+    }
+
+    private static final class DanglingState {
+        private final TransactionLogRecord record;
+        private final Set<String> uniqueNames;
+
+        private DanglingState(TransactionLogRecord record, Set<String> uniqueNames) {
+            this.record = record;
+            this.uniqueNames = uniqueNames;
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Group-commit thread of the {@link DiskJournal}.
+ * <p>Threads needing their records to be forced to disk enqueue a {@link ForceRequest} then block on it. This thread
+ * drains all the requests queued at once and forces the journal a single time for all of them, so N concurrently
+ * committing transactions only pay for one disk force instead of N.</p>
+ * <p>A request is only completed by a force that started after it has been enqueued, so all records written before
+ * calling {@link #enqueue()} are guaranteed to be on disk when {@link ForceRequest#waitFor()} returns.</p>
+ *
+ * @author Ludovic Orban
+ */
+final class DiskForceBatcherThread extends Thread {
+
+    private final static Logger log = LoggerFactory.getLogger(DiskForceBatcherThread.class);
+
+    private final DiskJournal journal;
+    private final Object queueLock = new Object();
+    private List<ForceRequest> waitQueue = new ArrayList<ForceRequest>();
+    private volatile boolean alive = true;
+
+    DiskForceBatcherThread(DiskJournal journal) {
+        this.journal = journal;
+        // a pending force would otherwise prevent the JVM from exiting, shutdown() takes care of flushing the queue.
+        setDaemon(true);
+        setName("bitronix-disk-force-batcher");
+    }
+
+    /**
+     * Enqueue a force request that will be executed by the next batch.
+     * @return the request to wait on.
+     * @throws IOException if the batcher has been shut down.
+     */
+    ForceRequest enqueue() throws IOException {
+        ForceRequest request = new ForceRequest();
+        synchronized (queueLock) {
+            if (!alive)
+                throw new IOException("cannot force log writing, disk force batcher is shut down");
+            waitQueue.add(request);
+            queueLock.notify();
+        }
+        return request;
+    }
+
+    /**
+     * Stop the batcher thread once all the currently queued requests have been executed.
+     */
+    void shutdown() {
+        synchronized (queueLock) {
+            alive = false;
+            queueLock.notify();
+        }
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            log.error("interrupted while waiting for the disk force batcher to stop");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<ForceRequest> batch;
+            synchronized (queueLock) {
+                while (alive && waitQueue.isEmpty()) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException ex) {
+                        // ignore, only shutdown() can stop this thread
+                    }
+                }
+                if (waitQueue.isEmpty())
+                    break;
+                batch = waitQueue;
+                waitQueue = new ArrayList<ForceRequest>();
+            }
+
+            IOException failure = null;
+            try {
+                if (log.isDebugEnabled()) { log.debug("forcing journal for a batch of " + batch.size() + " request(s)"); }
+                journal.forceNow();
+            } catch (IOException ex) {
+                log.error("error forcing the journal, failing " + batch.size() + " request(s)", ex);
+                failure = ex;
+            }
+
+            for (ForceRequest request : batch) {
+                request.complete(failure);
+            }
+        }
+        if (log.isDebugEnabled()) { log.debug("disk force batcher stopped"); }
+    }
+
+    /**
+     * Completion handle of a force request.
+     */
+    static final class ForceRequest {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        private void complete(IOException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * Block until the batch containing this request has been forced to disk. This method cannot be interrupted
+         * as returning before the force is done would break the durability guarantee, the interrupted status is
+         * restored when it returns.
+         * @throws IOException if the force failed.
+         */
+        void waitFor() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (failure != null)
+                throw new IOException("error forcing the journal", failure);
+        }
+    }
+
+}
@@ -15,7 +15,6 @@
  */
 package bitronix.tm.journal;
 
-import bitronix.tm.BitronixXid;
 import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.utils.Decoder;
@@ -36,6 +35,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
@@ -47,6 +53,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Simple implementation of a journal that writes on a two-files disk log.
  * <p>Files are pre-allocated in size, never grow and when the first one is full, dangling records are copied to the
  * second file and logging starts again on the latter.</p>
+ * <p>When {@link bitronix.tm.Configuration#isForceBatchingEnabled()} is set, forces are grouped by a
+ * {@link DiskForceBatcherThread} so that concurrently committing transactions share a single disk force.</p>
+ * <p>When {@link bitronix.tm.Configuration#isMemoryMappedJournal()} is set, both files are accessed through a
+ * {@link MappedTransactionLogAppender}.</p>
+ * <p>Records logged with {@link #logAsync(int, Uid, Set)} are written by a background thread started on first use.</p>
  * <p>This implementation is not highly efficient but quite robust and simple. It is based on one of the implementations
  * proposed by Mike Spille.</p>
  * <p>Configurable properties are all starting with <code>bitronix.tm.journal.disk</code>.</p>
@@ -57,10 +68,15 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * @author Ludovic Orban
  * @author Brett Wooldridge
  */
-public class DiskJournal implements Journal, MigratableJournal, ReadableJournal {
+public class DiskJournal implements Journal, AsyncJournal, MigratableJournal, ReadableJournal {
 
     private final static Logger log = LoggerFactory.getLogger(DiskJournal.class);
 
+    /**
+     * Fill ratio of the active log file, in percent, above which the passive log file starts being staged.
+     */
+    private final static int STAGING_THRESHOLD_PERCENT = 75;
+
     /**
      * The active log appender. This is exactly the same reference as tla1 or tla2 depending on which one is
      * currently active
@@ -84,13 +100,54 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
 
 	private final Configuration configuration;
 
+    /**
+     * The fragment file names, null when the ones of the configuration must be used.
+     */
+    private final String logPart1Filename;
+    private final String logPart2Filename;
+
+    /**
+     * The group-commit thread, only set when force batching is enabled and the journal is open.
+     */
+    private volatile DiskForceBatcherThread forceBatcher;
+
+    /**
+     * The thread writing the records logged asynchronously, only set once one has been logged.
+     */
+    private volatile AsyncLogWriter asyncWriter;
+
+    /**
+     * The thread staging the passive log file, only set when the journal is open.
+     */
+    private volatile ExecutorService stagingExecutor;
+
+    /**
+     * Guards the passive log file while it is being staged and the staged state below.
+     */
+    private final Lock stagingLock = new ReentrantLock();
+    private final AtomicBoolean stagingTriggered = new AtomicBoolean();
+    private TransactionLogAppender stagedTla;
+    private Map<Uid, Set<String>> stagedDanglingRecords;
+
     /**
      * Create an uninitialized disk journal. You must call open() prior you can use it.
      */
     public DiskJournal() {
+        this(null, null);
+    }
+
+    /**
+     * Create an uninitialized disk journal writing on the specified files rather than on the ones of the configuration.
+     * You must call open() prior you can use it.
+     * @param logPart1Filename the journal fragment file 1 name.
+     * @param logPart2Filename the journal fragment file 2 name.
+     */
+    public DiskJournal(String logPart1Filename, String logPart2Filename) {
     	configuration = TransactionManagerServices.getConfiguration();
     	needsForce = new AtomicBoolean();
     	activeTla = new AtomicReference<TransactionLogAppender>();
+    	this.logPart1Filename = logPart1Filename;
+    	this.logPart2Filename = logPart2Filename;
     }
 
     /**
@@ -108,14 +165,11 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
         if (activeTla.get() == null)
             throw new IOException("cannot write log, disk logger is not open");
 
-        if (configuration.isFilterLogStatus()) {
-            if (status != Status.STATUS_COMMITTING && status != Status.STATUS_COMMITTED && status != Status.STATUS_UNKNOWN) {
-                if (log.isDebugEnabled()) { log.debug("filtered out write to log for status " + Decoder.decodeStatus(status)); }
-                return;
-            }
-        }
+        if (isFilteredOut(configuration, status))
+            return;
 
         TransactionLogRecord tlog = new TransactionLogRecord(status, gtrid, uniqueNames);
+        TransactionLogAppender stagingCandidate = null;
 
         try {
         	if (configuration.isConservativeJournaling()) {
@@ -123,6 +177,17 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
         	}
 
 	        synchronized (positionLock) {
+	            long checkpointInterval = configuration.getCheckpointIntervalInKb() * 1024L;
+	            if (checkpointInterval > 0 && activeTla.get().isCheckpointDue(checkpointInterval)) {
+	                swapForceLock.writeLock().lock();
+	                try {
+	                    activeTla.get().writeCheckpoint();
+	                }
+	                finally {
+	                    swapForceLock.writeLock().unlock();
+	                }
+	            }
+
 	        	boolean rollover = activeTla.get().setPositionAndAdvance(tlog);
 	            if (rollover) {
 	                // time to swap log files
@@ -136,6 +201,11 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
 	                }
 	            }
 
+	            TransactionLogAppender tla = activeTla.get();
+	            if (tla.getPosition() > tla.getMaxFileLength() / 100 * STAGING_THRESHOLD_PERCENT && stagingTriggered.compareAndSet(false, true)) {
+	                stagingCandidate = tla;
+	            }
+
                 // this read lock MUST be acquired under positionLock
 	        	swapForceLock.readLock().lock();
 	        }
@@ -153,10 +223,15 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
         		conservativeJournalingLock.unlock();
         	}
         }
+
+        if (stagingCandidate != null) {
+            startStaging(stagingCandidate);
+        }
     }
 
     /**
-     * Force active log file to synchronize with the underlying disk device.
+     * Force active log file to synchronize with the underlying disk device. When force batching is enabled, the
+     * calling thread blocks until the {@link DiskForceBatcherThread} has forced a batch containing its request.
      *
      * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
      */
@@ -166,17 +241,87 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             throw new IOException("cannot force log writing, disk logger is not open");
 
         if (needsForce.get() && configuration.isForcedWriteEnabled()) {
-	        swapForceLock.writeLock().lock();
-	        try {
-	        	activeTla.get().force();
-	        	needsForce.set(false);
-	        }
-	        finally {
-	        	swapForceLock.writeLock().unlock();
-	        }
+            DiskForceBatcherThread batcher = forceBatcher;
+            if (batcher != null) {
+                batcher.enqueue().waitFor();
+            } else {
+                forceNow();
+            }
+        }
+    }
+
+    /**
+     * Force the active log file right away, on the calling thread.
+     *
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    void forceNow() throws IOException {
+        swapForceLock.writeLock().lock();
+        try {
+            TransactionLogAppender tla = activeTla.get();
+            if (tla == null)
+                throw new IOException("cannot force log writing, disk logger is not open");
+            tla.force();
+            needsForce.set(false);
+        }
+        finally {
+            swapForceLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Tell if records have been written since the active log file was last forced.
+     * @return true if the active log file needs to be forced.
+     */
+    boolean isForceNeeded() {
+        return needsForce.get();
+    }
+
+    /**
+     * Log a new transaction status to journal from a background thread. Records logged with this method are written
+     * in call order.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @return a future completed once the record has been written, or exceptionally in case of disk IO failure or if
+     * the disk journal is not open.
+     */
+    @Override
+    public CompletableFuture<Void> logAsync(int status, Uid gtrid, Set<String> uniqueNames) {
+        if (activeTla.get() == null)
+            return AsyncLogWriter.failed(new IOException("cannot write log, disk logger is not open"));
+        if (isFilteredOut(configuration, status))
+            return CompletableFuture.completedFuture(null);
+
+        AsyncLogWriter writer = asyncWriter;
+        if (writer == null) {
+            writer = startAsyncWriter();
+            if (writer == null)
+                return AsyncLogWriter.failed(new IOException("cannot write log, disk logger is not open"));
+        }
+        return writer.log(status, gtrid, uniqueNames);
+    }
+
+    private synchronized AsyncLogWriter startAsyncWriter() {
+        if (activeTla.get() == null)
+            return null;
+        if (asyncWriter == null)
+            asyncWriter = new AsyncLogWriter(this, "bitronix-disk-journal-writer");
+        return asyncWriter;
+    }
+
+    static boolean isFilteredOut(Configuration configuration, int status) {
+        if (configuration.isFilterLogStatus()) {
+            if (status != Status.STATUS_COMMITTING && status != Status.STATUS_COMMITTED && status != Status.STATUS_UNKNOWN) {
+                if (log.isDebugEnabled()) { log.debug("filtered out write to log for status " + Decoder.decodeStatus(status)); }
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Open the disk journal. Files are checked for integrity and DiskJournal will refuse to open corrupted log files.
      * If files are not present on disk, this method will create and pre-allocate them.
@@ -190,12 +335,18 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             return;
         }
 
-        File file1 = new File(configuration.getLogPart1Filename());
-        File file2 = new File(configuration.getLogPart2Filename());
+        File file1 = new File(logPart1Filename != null ? logPart1Filename : configuration.getLogPart1Filename());
+        File file2 = new File(logPart2Filename != null ? logPart2Filename : configuration.getLogPart2Filename());
 
         if (!file1.exists() && !file2.exists()) {
             log.debug("creation of log files");
-            createLogfile(file2, configuration.getMaxLogSizeInMb());
+            int formatId;
+            try {
+                formatId = TransactionLogHeader.formatIdOf(configuration.getJournalFormatVersion());
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("cannot create disk journal files: " + ex.getMessage());
+            }
+            createLogfile(file2, formatId, configuration.getMaxLogSizeInMb());
 
             // make the clock run a little before creating the 2nd log file to ensure the timestamp headers are not the same
             long before = MonotonicClock.currentTimeMillis();
@@ -203,7 +354,7 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
                 try { Thread.sleep(100); } catch (InterruptedException ex) { /* ignore */ }
             }
 
-            createLogfile(file1, configuration.getMaxLogSizeInMb());
+            createLogfile(file1, formatId, configuration.getMaxLogSizeInMb());
         }
 
         if (file1.length() != file2.length()) {
@@ -215,15 +366,43 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
         long maxFileLength = Math.max(file1.length(), file2.length());
         if (log.isDebugEnabled()) { log.debug("disk journal files max length: " + maxFileLength); }
 
-        tla1 = new TransactionLogAppender(file1, maxFileLength);
-        tla2 = new TransactionLogAppender(file2, maxFileLength);
+        if (configuration.isMemoryMappedJournal()) {
+            tla1 = new MappedTransactionLogAppender(file1, maxFileLength);
+            tla2 = new MappedTransactionLogAppender(file2, maxFileLength);
+        } else {
+            tla1 = new TransactionLogAppender(file1, maxFileLength);
+            tla2 = new TransactionLogAppender(file2, maxFileLength);
+        }
 
         byte cleanStatus = pickActiveJournalFile(tla1, tla2);
         if (cleanStatus != TransactionLogHeader.CLEAN_LOG_STATE) {
             log.warn("active log file is unclean, did you call BitronixTransactionManager.shutdown() at the end of the last run?");
         }
 
-        if (log.isDebugEnabled()) { log.debug("disk journal opened"); }
+        stagingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bitronix-disk-journal-stager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // the records left dangling by the previous run must be copied by checkpoints and rollovers too
+        try {
+            activeTla.get().trackDanglingRecords(collectDanglingRecords().values());
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+
+        if (configuration.isForceBatchingEnabled()) {
+            DiskForceBatcherThread batcher = new DiskForceBatcherThread(this);
+            batcher.start();
+            forceBatcher = batcher;
+        }
+
+        if (log.isDebugEnabled()) { log.debug("disk journal opened" + (forceBatcher != null ? " with force batching" : "")); }
     }
 
     /**
@@ -237,19 +416,55 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             return;
         }
 
-        try {
-            tla1.close();
-        } catch (IOException ex) {
-            log.error("cannot close " + tla1, ex);
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            asyncWriter = null;
+            writer.shutdown();
+        }
+
+        DiskForceBatcherThread batcher = forceBatcher;
+        if (batcher != null) {
+            forceBatcher = null;
+            batcher.shutdown();
         }
-        tla1 = null;
+
+        // wait for a running staging to finish, it must not write to closed files
+        ExecutorService executor = stagingExecutor;
+        if (executor != null) {
+            stagingExecutor = null;
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    if (log.isDebugEnabled()) { log.debug("waiting for the disk journal staging to finish"); }
+                }
+            } catch (InterruptedException ex) {
+                log.error("interrupted while waiting for the disk journal staging to finish");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        stagingLock.lock();
         try {
-            tla2.close();
-        } catch (IOException ex) {
-            log.error("cannot close " + tla2, ex);
+            try {
+                tla1.close();
+            } catch (IOException ex) {
+                log.error("cannot close " + tla1, ex);
+            }
+            tla1 = null;
+            try {
+                tla2.close();
+            } catch (IOException ex) {
+                log.error("cannot close " + tla2, ex);
+            }
+            tla2 = null;
+            activeTla.set(null);
+            stagedTla = null;
+            stagedDanglingRecords = null;
+            stagingTriggered.set(false);
+        }
+        finally {
+            stagingLock.unlock();
         }
-        tla2 = null;
-        activeTla.set(null);
 
         if (log.isDebugEnabled()) { log.debug("disk journal closed"); }
     }
@@ -264,7 +479,8 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     }
 
     /**
-     * Collect all dangling records of the active log file.
+     * Collect all dangling records of the active log file. Only the records written since the latest checkpoint
+     * are read, big amounts of records are scanned in parallel by a {@link DanglingRecordsScanner}.
      *
      * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
      * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
@@ -273,7 +489,12 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     public Map<Uid, JournalRecord> collectDanglingRecords() throws IOException {
         if (activeTla.get() == null)
             throw new IOException("cannot collect dangling records, disk logger is not open");
-        return collectDanglingRecords(activeTla.get());
+
+        TransactionLogAppender tla = activeTla.get();
+        long startPosition = tla.getCheckpointPosition();
+        if (DanglingRecordsScanner.isWorthScanning(tla, startPosition))
+            return new DanglingRecordsScanner(tla).scan(startPosition);
+        return collectDanglingRecords(tla, startPosition);
     }
 
     /**
@@ -311,10 +532,11 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     /**
      * Create a fresh log file on disk. If the specified file already exists it will be deleted then recreated.
      * @param logfile the file to create
+     * @param formatId the format ID of the file, see {@link TransactionLogHeader#FORMAT_ID_HEADER}
      * @param maxLogSizeInMb the file size in megabytes to preallocate
      * @throws java.io.IOException in case of disk IO failure.
      */
-    private static void createLogfile(File logfile, int maxLogSizeInMb) throws IOException {
+    static void createLogfile(File logfile, int formatId, int maxLogSizeInMb) throws IOException {
         if (logfile.isDirectory())
             throw new IOException("log file is referring to a directory: " + logfile.getAbsolutePath());
         if (logfile.exists()) {
@@ -331,7 +553,7 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
             raf = new RandomAccessFile(logfile, "rw");
 
             raf.seek(TransactionLogHeader.FORMAT_ID_HEADER);
-            raf.writeInt(BitronixXid.FORMAT_ID);
+            raf.writeInt(formatId);
             raf.writeLong(MonotonicClock.currentTimeMillis());
             raf.writeByte(TransactionLogHeader.CLEAN_LOG_STATE);
             raf.writeLong((long) TransactionLogHeader.HEADER_LENGTH);
@@ -374,53 +596,176 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
     }
 
 
+    /**
+     * Start staging the passive log file in the background, see {@link #stagePassiveFile(TransactionLogAppender)}.
+     * @param active the active log file which is filling up.
+     */
+    private void startStaging(final TransactionLogAppender active) {
+        ExecutorService executor = stagingExecutor;
+        if (executor == null)
+            return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stagePassiveFile(active);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // closing, the rollover copies all dangling records
+            if (log.isDebugEnabled()) { log.debug("disk journal closing, " + active + " not staged"); }
+        }
+    }
+
+    /**
+     * Copy the dangling records of the active log file to the passive one ahead of the rollover, without blocking
+     * the threads logging to the active file. Transactions keep completing while this happens so the copied state is
+     * only a snapshot: {@link #swapJournalFiles()} then only has to write the records which changed since.
+     * <p>If staging fails, the rollover falls back to copying all dangling records.</p>
+     *
+     * @param active the active log file at the time the staging was triggered.
+     */
+    private void stagePassiveFile(TransactionLogAppender active) {
+        stagingLock.lock();
+        try {
+            if (activeTla.get() != active) {
+                if (log.isDebugEnabled()) { log.debug("log files swapped or closed before " + active + " could be staged"); }
+                return;
+            }
+
+            TransactionLogAppender passiveTla = (tla1 == active ? tla2 : tla1);
+            stagedTla = null;
+            stagedDanglingRecords = null;
+            passiveTla.clearDanglingLogs();
+            passiveTla.rewind();
+
+            List<TransactionLogRecord> danglingLogs = active.getDanglingLogs();
+            Map<Uid, Set<String>> staged = new HashMap<Uid, Set<String>>(danglingLogs.size() * 2);
+            for (TransactionLogRecord tlog : danglingLogs) {
+                copyLog(passiveTla, tlog);
+                staged.put(tlog.getGtrid(), tlog.getUniqueNames());
+            }
+            passiveTla.force();
+
+            stagedTla = passiveTla;
+            stagedDanglingRecords = staged;
+            if (log.isDebugEnabled()) { log.debug(danglingLogs.size() + " dangling record(s) staged in " + passiveTla); }
+        } catch (IOException ex) {
+            log.warn("cannot stage passive log file, rollover will copy all dangling records", ex);
+        } finally {
+            stagingLock.unlock();
+        }
+    }
+
     /**
      * <p>Swap the active and the passive journal files so that the active one becomes passive and the passive one
      * becomes active.</p>
      * List of actions taken by this method:
      * <ul>
-     *   <li>ensure the all data has been forced to the active log file.</li>
-     *   <li>copy dangling COMMITTING records to the passive log file.</li>
+     *   <li>copy dangling COMMITTING records to the passive log file. When the passive log file has been staged, only
+     *   the differences between the staged and the current dangling records are copied.</li>
      *   <li>update header timestamp of passive log file (makes it become active).</li>
      *   <li>do a force on passive log file. It is now the active file.</li>
      *   <li>switch references of active/passive files.</li>
      * </ul>
+     * <p>The active log file does not need to be forced: the passive log file contains all records needed for
+     * recovery once forced and the active one is never read again after that.</p>
      *
      * @throws java.io.IOException in case of disk IO failure.
      */
     private synchronized void swapJournalFiles() throws IOException {
         if (log.isDebugEnabled()) { log.debug("swapping journal log file to " + getPassiveTransactionLogAppender()); }
 
-        //step 1
-        activeTla.get().force();
-
-        //step 2
-        TransactionLogAppender passiveTla = getPassiveTransactionLogAppender();
-        passiveTla.rewind();
+        stagingLock.lock();
+        try {
+            //step 1
+            TransactionLogAppender passiveTla = getPassiveTransactionLogAppender();
+            if (stagedTla == passiveTla) {
+                copyDanglingLogsDelta(passiveTla);
+            }
+            else {
+                passiveTla.clearDanglingLogs();
+                passiveTla.rewind();
 
-        List<TransactionLogRecord> danglingLogs = activeTla.get().getDanglingLogs();
-        for (TransactionLogRecord tlog : danglingLogs) {
-            boolean rolloverError = passiveTla.setPositionAndAdvance(tlog);
-            if (rolloverError) {
-                throw new IOException("moving in-flight transactions the rollover log file would have resulted in an overflow of that file");
+                List<TransactionLogRecord> danglingLogs = activeTla.get().getDanglingLogs();
+                for (TransactionLogRecord tlog : danglingLogs) {
+                    copyLog(passiveTla, tlog);
+                }
+                if (log.isDebugEnabled()) { log.debug(danglingLogs.size() + " dangling record(s) copied to passive log file"); }
             }
-            passiveTla.writeLog(tlog);
+            stagedTla = null;
+            stagedDanglingRecords = null;
+
+            activeTla.get().clearDanglingLogs();
+
+            //step 2
+            passiveTla.setTimestamp(MonotonicClock.currentTimeMillis());
+
+            //step 3
+            passiveTla.force();
+
+            //step 4
+            activeTla.set(passiveTla);
+            stagingTriggered.set(false);
+        }
+        finally {
+            stagingLock.unlock();
         }
 
-        if (log.isDebugEnabled()) { log.debug(danglingLogs.size() + " dangling record(s) copied to passive log file"); }
+        if (log.isDebugEnabled()) { log.debug("journal log files swapped"); }
+    }
 
-        activeTla.get().clearDanglingLogs();
+    /**
+     * Bring the staged passive log file up to date with the current dangling records of the active log file.
+     * Transactions completed since staging get a COMMITTED record, transactions which started since staging get a
+     * COMMITTING record.
+     *
+     * @param passiveTla the staged passive log file.
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private void copyDanglingLogsDelta(TransactionLogAppender passiveTla) throws IOException {
+        Map<Uid, Set<String>> current = activeTla.get().copyDanglingRecords();
+        int copied = 0;
+
+        for (Map.Entry<Uid, Set<String>> entry : stagedDanglingRecords.entrySet()) {
+            Uid gtrid = entry.getKey();
+            Set<String> staged = entry.getValue();
+            Set<String> remaining = current.remove(gtrid);
+
+            if (remaining != null && !staged.containsAll(remaining)) {
+                copyLog(passiveTla, new TransactionLogRecord(Status.STATUS_COMMITTING, gtrid, remaining));
+                copied++;
+            }
 
-        //step 3
-        passiveTla.setTimestamp(MonotonicClock.currentTimeMillis());
+            Set<String> done = new TreeSet<String>(staged);
+            if (remaining != null)
+                done.removeAll(remaining);
+            if (!done.isEmpty()) {
+                copyLog(passiveTla, new TransactionLogRecord(Status.STATUS_COMMITTED, gtrid, done));
+                copied++;
+            }
+        }
 
-        //step 4
-        passiveTla.force();
+        for (Map.Entry<Uid, Set<String>> entry : current.entrySet()) {
+            copyLog(passiveTla, new TransactionLogRecord(Status.STATUS_COMMITTING, entry.getKey(), entry.getValue()));
+            copied++;
+        }
 
-        //step 5
-        activeTla.set(passiveTla);
+        if (log.isDebugEnabled()) { log.debug(copied + " record(s) copied to staged passive log file"); }
+    }
 
-        if (log.isDebugEnabled()) { log.debug("journal log files swapped"); }
+    /**
+     * Write a record to the passive log file.
+     * @param passiveTla the passive log file.
+     * @param tlog the record to write.
+     * @throws java.io.IOException in case of disk IO failure or if the record does not fit in the file.
+     */
+    private static void copyLog(TransactionLogAppender passiveTla, TransactionLogRecord tlog) throws IOException {
+        boolean rolloverError = passiveTla.setPositionAndAdvance(tlog);
+        if (rolloverError) {
+            throw new IOException("moving in-flight transactions the rollover log file would have resulted in an overflow of that file");
+        }
+        passiveTla.writeLog(tlog);
     }
 
     /**
@@ -435,12 +780,14 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
      * no corresponding COMMITTED record
      *
      * @param tla the TransactionLogAppender to scan
+     * @param startPosition the position of the first record to scan, either the first one of the file or the one
+     * starting a checkpoint.
      * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
      * @throws java.io.IOException in case of disk IO failure.
      */
-    private static Map<Uid, JournalRecord> collectDanglingRecords(TransactionLogAppender tla) throws IOException {
+    static Map<Uid, JournalRecord> collectDanglingRecords(TransactionLogAppender tla, long startPosition) throws IOException {
         Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(64);
-        TransactionLogCursor tlc = tla.getCursor();
+        TransactionLogCursor tlc = tla.getCursor(startPosition);
 
         try {
             int committing = 0;
@@ -501,7 +848,7 @@ public class DiskJournal implements Journal, MigratableJournal, ReadableJournal
      * @return an iterator over all contained log records.
      * @throws java.io.IOException in case of the initial disk IO failed (subsequent errors are unchecked exceptions).
      */
-    private static Iterator<TransactionLogRecord> iterateRecords(TransactionLogAppender tla, final boolean skipCrcCheck) throws IOException {
+    static Iterator<TransactionLogRecord> iterateRecords(TransactionLogAppender tla, final boolean skipCrcCheck) throws IOException {
         final TransactionLogCursor tlc = tla.getCursor();
         final Iterator<TransactionLogRecord> it = new Iterator<TransactionLogRecord>() {
             TransactionLogRecord tlog;
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link TransactionLogAppender} writing {@link TransactionLogRecord} objects into a memory mapping of the whole
+ * pre-allocated log file.
+ * <p>Records and header updates are serialized straight into the mapping so that no intermediate buffer is allocated
+ * and no write system call is issued per status change. Forcing the log is done by flushing the mapping, and cursors
+ * read the records back from the mapping rather than through a separate file descriptor.</p>
+ * <p>The mapping is only released when garbage collected, so the file may stay busy for a while after this appender
+ * has been closed on platforms that forbid deleting mapped files.</p>
+ *
+ * @author Ludovic Orban
+ */
+public class MappedTransactionLogAppender extends TransactionLogAppender {
+
+    private final static Logger log = LoggerFactory.getLogger(MappedTransactionLogAppender.class);
+
+    private final MappedByteBuffer mapping;
+
+    /**
+     * Create an appender that will write to a memory mapping of the specified file up to the specified maximum length.
+     * @param file the underlying File used to write to disk.
+     * @param maxFileLength size of the file on disk that can never be bypassed.
+     * @throws IOException if an I/O error occurs.
+     */
+    public MappedTransactionLogAppender(File file, long maxFileLength) throws IOException {
+        super(file, maxFileLength);
+        if (maxFileLength > Integer.MAX_VALUE)
+            throw new IOException("transaction log file " + file.getName() + " is too big to be memory-mapped (" + maxFileLength + " bytes)");
+
+        this.mapping = getFileChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxFileLength);
+        getHeader().setMapping(mapping);
+    }
+
+    @Override
+    protected void write(TransactionLogRecord tlog) throws IOException {
+        ByteBuffer buf = mapping.duplicate();
+        buf.position((int) tlog.getWritePosition());
+        encode(tlog, buf);
+    }
+
+    /**
+     * Creates a cursor on the memory mapping of this journal file allowing iteration of its records.
+     * @param startPosition the position of the first record to read.
+     * @return a TransactionLogCursor.
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    protected TransactionLogCursor getCursor(long startPosition) throws IOException {
+        return new TransactionLogCursor(mapping, startPosition, getDictionary());
+    }
+
+    /**
+     * Force flushing the mapped logs to disk
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    protected void force() throws IOException {
+        if (log.isDebugEnabled()) { log.debug("forcing mapped log writing"); }
+        mapping.force();
+        if (log.isDebugEnabled()) { log.debug("done forcing mapped log"); }
+    }
+
+    @Override
+    public String toString() {
+        return "a MappedTransactionLogAppender on " + getFile().getName();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The unique names defined in a log file of the version 2 format, by ID.
+ * <p>IDs are assigned in sequence starting at 0 by the {@link TransactionLogAppender} of the file while holding the
+ * disk journal position lock, cursors reading the file may concurrently register the definitions they come across.</p>
+ *
+ * @see CompactLogFormat
+ *
+ * @author Ludovic Orban
+ */
+final class NameDictionary {
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * Get the ID of a unique name.
+     * @param name the unique name.
+     * @return the ID of the name, -1 if it has not been defined.
+     */
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the unique name of an ID.
+     * @param id the ID.
+     * @return the unique name, null if the ID has not been defined.
+     */
+    String nameOf(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Assign the next ID to a unique name.
+     * @param name the unique name.
+     * @return the assigned ID.
+     */
+    int define(String name) {
+        int id = names.size();
+        names.put(id, name);
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * Register a definition read from a log file.
+     * @param id the ID.
+     * @param name the unique name.
+     */
+    void define(int id, String name) {
+        names.putIfAbsent(id, name);
+        ids.putIfAbsent(name, id);
+    }
+
+    /**
+     * Forget the definitions of the IDs starting at the specified one.
+     * @param size the number of definitions to keep.
+     */
+    void truncate(int size) {
+        for (int id = names.size() - 1; id >= size; id--) {
+            String name = names.remove(id);
+            if (name != null)
+                ids.remove(name);
+        }
+    }
+
+    void clear() {
+        names.clear();
+        ids.clear();
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    @Override
+    public String toString() {
+        return "a NameDictionary with " + names.size() + " name(s)";
+    }
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -29,7 +30,7 @@ import java.util.Set;
  *
  * @author Ludovic Orban
  */
-public class NullJournal implements Journal {
+public class NullJournal implements Journal, AsyncJournal {
 
     public NullJournal() {
     }
@@ -38,6 +39,11 @@ public class NullJournal implements Journal {
     public void log(int status, Uid gtrid, Set<String> uniqueNames) throws IOException {
     }
 
+    @Override
+    public CompletableFuture<Void> logAsync(int status, Uid gtrid, Set<String> uniqueNames) {
+        return CompletableFuture.completedFuture(null);
+    }
+
     @Override
     public void open() throws IOException {
     }
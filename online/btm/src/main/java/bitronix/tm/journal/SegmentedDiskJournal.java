@@ -0,0 +1,715 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Status;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Journal appending its records to an unbounded sequence of pre-allocated segment files.
+ * <p>When the active segment is full, logging simply continues on the next segment: no record is ever copied, so the
+ * amount of in-flight transactions is not limited by the size of a file. A segment is deleted as soon as all the
+ * COMMITTING records it contains have been resolved by a COMMITTED, ROLLEDBACK or UNKNOWN record, wherever this one
+ * has been written. The next segment is pre-allocated by a background thread once the active one is half full and
+ * deletions are also performed by this thread.</p>
+ * <p>Segments have the size of the journal fragments and use the same file format as the {@link DiskJournal} ones.
+ * Segment <i>n</i> is named after the fragment file 1 with <i>n</i> inserted before its extension, ie:
+ * <code>btm1.000001.tlog</code>. On open, all the segments found on disk are read in sequence to rebuild the
+ * dangling records, the one with the highest sequence number becomes the active segment.</p>
+ * <p>Configurable properties are the ones of the {@link DiskJournal}.</p>
+ *
+ * @see bitronix.tm.Configuration#getMaxLogSizeInMb()
+ *
+ * @author Ludovic Orban
+ */
+public class SegmentedDiskJournal implements Journal, AsyncJournal, MigratableJournal, ReadableJournal {
+
+    private final static Logger log = LoggerFactory.getLogger(SegmentedDiskJournal.class);
+
+    /**
+     * Fill ratio of the active segment, in percent, above which the next segment starts being pre-allocated.
+     */
+    private final static int PREALLOCATION_THRESHOLD_PERCENT = 50;
+
+    private final Configuration configuration;
+
+    private final ReadWriteLock switchForceLock = new ReentrantReadWriteLock(true);
+    private final Object positionLock = new Object();
+    private final AtomicBoolean needsForce = new AtomicBoolean();
+
+    /**
+     * The live segments by sequence number and the COMMITTING records not resolved yet by GTRID, both guarded by
+     * pendingTransactions. Transactions are tracked under positionLock, in the order of their records in the files.
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<Uid, PendingTransaction> pendingTransactions = new HashMap<Uid, PendingTransaction>();
+
+    private volatile Segment activeSegment;
+
+    /**
+     * The thread pre-allocating segments and deleting the resolved ones, only set when the journal is open.
+     */
+    private volatile ExecutorService maintenanceExecutor;
+
+    /**
+     * The segment file being pre-allocated, guarded by positionLock.
+     */
+    private Future<File> nextSegmentFile;
+
+    /**
+     * The thread writing the records logged asynchronously, only set once one has been logged.
+     */
+    private volatile AsyncLogWriter asyncWriter;
+
+    /**
+     * Create an uninitialized segmented disk journal. You must call open() prior you can use it.
+     */
+    public SegmentedDiskJournal() {
+        configuration = TransactionManagerServices.getConfiguration();
+    }
+
+    /**
+     * Log a new transaction status to the active segment, continuing on the next segment if the active one is full.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    @Override
+    public void log(int status, Uid gtrid, Set<String> uniqueNames) throws IOException {
+        if (activeSegment == null)
+            throw new IOException("cannot write log, disk logger is not open");
+
+        if (DiskJournal.isFilteredOut(configuration, status))
+            return;
+
+        TransactionLogRecord tlog = new TransactionLogRecord(status, gtrid, uniqueNames);
+        Segment segment;
+
+        synchronized (positionLock) {
+            segment = activeSegment;
+            if (segment == null)
+                throw new IOException("cannot write log, disk logger is not open");
+
+            if (segment.tla.setPositionAndAdvance(tlog)) {
+                switchForceLock.writeLock().lock();
+                try {
+                    segment = switchSegment();
+                    if (segment.tla.setPositionAndAdvance(tlog))
+                        throw new IOException("cannot write log, " + tlog + " does not fit in an empty segment of " + configuration.getMaxLogSizeInMb() + "MB");
+                }
+                finally {
+                    switchForceLock.writeLock().unlock();
+                }
+            }
+
+            track(tlog, segment);
+
+            if (nextSegmentFile == null && segment.tla.getPosition() > segment.tla.getMaxFileLength() / 100 * PREALLOCATION_THRESHOLD_PERCENT) {
+                nextSegmentFile = preallocate(segment.sequence + 1);
+            }
+
+            // this read lock MUST be acquired under positionLock
+            switchForceLock.readLock().lock();
+        }
+
+        try {
+            segment.tla.writeLog(tlog);
+            needsForce.set(true);
+        }
+        finally {
+            switchForceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force the active segment to synchronize with the underlying disk device. Segments are forced when logging
+     * switches to the next one so there is never more than one segment to force.
+     *
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    @Override
+    public void force() throws IOException {
+        if (activeSegment == null)
+            throw new IOException("cannot force log writing, disk logger is not open");
+
+        if (needsForce.get() && configuration.isForcedWriteEnabled()) {
+            switchForceLock.writeLock().lock();
+            try {
+                Segment segment = activeSegment;
+                if (segment == null)
+                    throw new IOException("cannot force log writing, disk logger is not open");
+                segment.tla.force();
+                needsForce.set(false);
+            }
+            finally {
+                switchForceLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Log a new transaction status to journal from a background thread. Records logged with this method are written
+     * in call order.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @return a future completed once the record has been written, or exceptionally in case of disk IO failure or if
+     * the disk journal is not open.
+     */
+    @Override
+    public CompletableFuture<Void> logAsync(int status, Uid gtrid, Set<String> uniqueNames) {
+        if (activeSegment == null)
+            return AsyncLogWriter.failed(new IOException("cannot write log, disk logger is not open"));
+        if (DiskJournal.isFilteredOut(configuration, status))
+            return CompletableFuture.completedFuture(null);
+
+        AsyncLogWriter writer = asyncWriter;
+        if (writer == null) {
+            writer = startAsyncWriter();
+            if (writer == null)
+                return AsyncLogWriter.failed(new IOException("cannot write log, disk logger is not open"));
+        }
+        return writer.log(status, gtrid, uniqueNames);
+    }
+
+    private synchronized AsyncLogWriter startAsyncWriter() {
+        if (activeSegment == null)
+            return null;
+        if (asyncWriter == null)
+            asyncWriter = new AsyncLogWriter(this, "bitronix-segmented-journal-writer");
+        return asyncWriter;
+    }
+
+    /**
+     * Open the segmented disk journal. All the segments found on disk are read to rebuild the dangling records, the
+     * first segment is created if there is none yet.
+     *
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    @Override
+    public synchronized void open() throws IOException {
+        if (activeSegment != null) {
+            log.warn("segmented disk journal already open");
+            return;
+        }
+
+        TreeMap<Long, File> files = listSegmentFiles();
+        if (files.isEmpty()) {
+            log.debug("creation of the first segment file");
+            File file = new File(segmentFilename(configuration.getLogPart1Filename(), 1L));
+            createSegmentFile(file);
+            files.put(1L, file);
+        }
+
+        maintenanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bitronix-segmented-journal-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        List<Segment> resolved = new ArrayList<Segment>();
+        try {
+            synchronized (positionLock) {
+                for (Map.Entry<Long, File> entry : files.entrySet()) {
+                    Segment segment = new Segment(entry.getKey(), openAppender(entry.getValue()));
+                    synchronized (pendingTransactions) {
+                        segments.put(segment.sequence, segment);
+                    }
+                    replay(segment);
+                }
+
+                Segment active = segments.lastEntry().getValue();
+                if (active.tla.getState() != TransactionLogHeader.CLEAN_LOG_STATE) {
+                    log.warn("active segment is unclean, did you call BitronixTransactionManager.shutdown() at the end of the last run?");
+                }
+                active.tla.setState(TransactionLogHeader.UNCLEAN_LOG_STATE);
+                active.tla.force();
+                activeSegment = active;
+
+                synchronized (pendingTransactions) {
+                    for (Segment segment : segments.values()) {
+                        if (segment != active && segment.pendingTransactions == 0)
+                            resolved.add(segment);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            closeSegments();
+            throw ex;
+        }
+
+        for (Segment segment : resolved) {
+            retireIfResolved(segment);
+        }
+
+        if (log.isDebugEnabled()) { log.debug("segmented disk journal opened on " + activeSegment + " with " + pendingTransactions.size() + " dangling record(s)"); }
+    }
+
+    /**
+     * Close the segmented disk journal and all the live segments. A segment already pre-allocated is kept on disk and
+     * will become the active segment when the journal is opened again.
+     *
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (activeSegment == null)
+            return;
+
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            asyncWriter = null;
+            writer.shutdown();
+        }
+
+        // wait for the running pre-allocation and deletions, they must not touch closed files
+        ExecutorService executor = maintenanceExecutor;
+        maintenanceExecutor = null;
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (log.isDebugEnabled()) { log.debug("waiting for the segmented disk journal maintenance to finish"); }
+            }
+        } catch (InterruptedException ex) {
+            log.error("interrupted while waiting for the segmented disk journal maintenance to finish");
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (positionLock) {
+            switchForceLock.writeLock().lock();
+            try {
+                activeSegment = null;
+                nextSegmentFile = null;
+                closeSegments();
+            }
+            finally {
+                switchForceLock.writeLock().unlock();
+            }
+        }
+
+        if (log.isDebugEnabled()) { log.debug("segmented disk journal closed"); }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            close();
+        } catch (IOException ex) {
+            log.error("error shutting down segmented disk journal. Transaction log integrity could be compromised!", ex);
+        }
+    }
+
+    /**
+     * Collect the dangling records of all the live segments. These are tracked while records are logged so no
+     * segment has to be read.
+     *
+     * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
+     * @throws java.io.IOException if the disk journal is not open.
+     */
+    @Override
+    public Map<Uid, JournalRecord> collectDanglingRecords() throws IOException {
+        if (activeSegment == null)
+            throw new IOException("cannot collect dangling records, disk logger is not open");
+
+        synchronized (pendingTransactions) {
+            Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(pendingTransactions.size() * 2);
+            for (Map.Entry<Uid, PendingTransaction> entry : pendingTransactions.entrySet()) {
+                PendingTransaction pending = entry.getValue();
+                if (pending.uniqueNames.size() == pending.record.getUniqueNames().size())
+                    danglingRecords.put(entry.getKey(), pending.record);
+                else
+                    danglingRecords.put(entry.getKey(), new TransactionLogRecord(pending.record.getStatus(), entry.getKey(), new HashSet<String>(pending.uniqueNames)));
+            }
+            return danglingRecords;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void migrateTo(Journal other) throws IOException, IllegalArgumentException {
+        if (other == this)
+            throw new IllegalArgumentException("cannot migrate a journal to itself (this == otherJournal)");
+        if (other == null)
+            throw new IllegalArgumentException("the migration target journal cannot be null");
+
+        for (JournalRecord jr : collectDanglingRecords().values()) {
+            other.log(jr.getStatus(), jr.getGtrid(), jr.getUniqueNames());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void unsafeReadRecordsInto(Collection<JournalRecord> target, boolean includeInvalid) throws IOException {
+        if (activeSegment == null)
+            throw new IOException("cannot read records, disk logger is not open");
+
+        List<Segment> live;
+        synchronized (pendingTransactions) {
+            live = new ArrayList<Segment>(segments.values());
+        }
+        for (Segment segment : live) {
+            for (Iterator<TransactionLogRecord> i = DiskJournal.iterateRecords(segment.tla, includeInvalid); i.hasNext(); )
+                target.add(i.next());
+        }
+    }
+
+    /*
+     * Internal impl.
+     */
+
+    /**
+     * Get the name of a segment file.
+     * @param filename the configured fragment file 1 name.
+     * @param sequence the segment sequence number.
+     * @return the fragment file name with the sequence number inserted before its extension.
+     */
+    static String segmentFilename(String filename, long sequence) {
+        String number = String.format("%06d", sequence);
+        int dot = filename.lastIndexOf('.');
+        int separator = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf(File.separatorChar));
+        if (dot <= separator + 1)
+            return filename + "." + number;
+        return filename.substring(0, dot) + "." + number + filename.substring(dot);
+    }
+
+    /**
+     * Get the sequence number of a segment file.
+     * @param name the name of a file, without its directory.
+     * @param filename the configured fragment file 1 name.
+     * @return the sequence number, -1 if the file is not a segment file.
+     */
+    static long sequenceOf(String name, String filename) {
+        String baseName = new File(filename).getName();
+        int dot = baseName.lastIndexOf('.');
+        String prefix = (dot <= 0 ? baseName : baseName.substring(0, dot)) + ".";
+        String suffix = dot <= 0 ? "" : baseName.substring(dot);
+
+        if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length() + suffix.length())
+            return -1L;
+        String number = name.substring(prefix.length(), name.length() - suffix.length());
+        for (int i = 0; i < number.length(); i++) {
+            if (!Character.isDigit(number.charAt(i)))
+                return -1L;
+        }
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    private TreeMap<Long, File> listSegmentFiles() {
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        File directory = new File(configuration.getLogPart1Filename()).getAbsoluteFile().getParentFile();
+        File[] candidates = directory == null ? null : directory.listFiles();
+        if (candidates == null)
+            return files;
+
+        for (File candidate : candidates) {
+            long sequence = sequenceOf(candidate.getName(), configuration.getLogPart1Filename());
+            if (sequence > 0 && candidate.isFile())
+                files.put(sequence, new File(segmentFilename(configuration.getLogPart1Filename(), sequence)));
+        }
+        return files;
+    }
+
+    private void createSegmentFile(File file) throws IOException {
+        int formatId;
+        try {
+            formatId = TransactionLogHeader.formatIdOf(configuration.getJournalFormatVersion());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("cannot create disk journal segment: " + ex.getMessage());
+        }
+        DiskJournal.createLogfile(file, formatId, configuration.getMaxLogSizeInMb());
+    }
+
+    private TransactionLogAppender openAppender(File file) throws IOException {
+        if (configuration.isMemoryMappedJournal())
+            return new MappedTransactionLogAppender(file, file.length());
+        return new TransactionLogAppender(file, file.length());
+    }
+
+    /**
+     * Track the dangling records of a segment read from disk.
+     * @param segment the segment to read.
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private void replay(Segment segment) throws IOException {
+        TransactionLogCursor tlc = segment.tla.getCursor();
+        int records = 0;
+        try {
+            while (true) {
+                TransactionLogRecord tlog;
+                try {
+                    tlog = tlc.readLog();
+                } catch (CorruptedTransactionLogException ex) {
+                    if (configuration.isSkipCorruptedLogs()) {
+                        log.error("skipping corrupted log", ex);
+                        continue;
+                    }
+                    throw ex;
+                }
+
+                if (tlog == null)
+                    break;
+                track(tlog, segment);
+                records++;
+            }
+        }
+        finally {
+            tlc.close();
+        }
+        if (log.isDebugEnabled()) { log.debug("read " + records + " record(s) of " + segment); }
+    }
+
+    /**
+     * Update the dangling records with a record written to a segment. Must be called under positionLock.
+     * @param tlog the record.
+     * @param segment the segment the record is written to.
+     */
+    private void track(TransactionLogRecord tlog, Segment segment) {
+        if (tlog.getUniqueNames().isEmpty())
+            return;
+
+        Segment released = null;
+        synchronized (pendingTransactions) {
+            switch (tlog.getStatus()) {
+                case Status.STATUS_COMMITTING:
+                    PendingTransaction previous = pendingTransactions.put(tlog.getGtrid(), new PendingTransaction(tlog, segment));
+                    segment.pendingTransactions++;
+                    if (previous != null) {
+                        previous.segment.pendingTransactions--;
+                        released = previous.segment;
+                    }
+                    break;
+
+                // COMMITTED is when there was no problem in the transaction
+                // UNKNOWN is when a 2PC transaction heuristically terminated
+                // ROLLEDBACK is when a 1PC transaction rolled back during commit
+                case Status.STATUS_COMMITTED:
+                case Status.STATUS_UNKNOWN:
+                case Status.STATUS_ROLLEDBACK:
+                    PendingTransaction pending = pendingTransactions.get(tlog.getGtrid());
+                    if (pending != null) {
+                        pending.uniqueNames.removeAll(tlog.getUniqueNames());
+                        if (pending.uniqueNames.isEmpty()) {
+                            pendingTransactions.remove(tlog.getGtrid());
+                            pending.segment.pendingTransactions--;
+                            released = pending.segment;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        if (released != null && activeSegment != null)
+            retireIfResolved(released);
+    }
+
+    /**
+     * Switch logging to the next segment. Must be called under positionLock and the switchForceLock write lock.
+     * @return the new active segment.
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private Segment switchSegment() throws IOException {
+        Segment previous = activeSegment;
+        // the records of the previous segment must not be forced after the ones of the next segment
+        previous.tla.force();
+
+        long sequence = previous.sequence + 1;
+        File file = takeNextSegmentFile(sequence);
+        Segment next = new Segment(sequence, openAppender(file));
+        next.tla.setState(TransactionLogHeader.UNCLEAN_LOG_STATE);
+        next.tla.force();
+
+        synchronized (pendingTransactions) {
+            segments.put(sequence, next);
+            activeSegment = next;
+        }
+        if (log.isDebugEnabled()) { log.debug("switched from " + previous + " to " + next); }
+
+        retireIfResolved(previous);
+        return next;
+    }
+
+    /**
+     * Get the file of the next segment, waiting for its pre-allocation to finish or creating it right away.
+     * @param sequence the sequence number of the next segment.
+     * @return the segment file.
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    private File takeNextSegmentFile(long sequence) throws IOException {
+        Future<File> future = nextSegmentFile;
+        nextSegmentFile = null;
+        if (future != null) {
+            try {
+                return future.get();
+            } catch (ExecutionException ex) {
+                log.warn("pre-allocation of segment " + sequence + " failed, creating it now", ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the pre-allocation of segment " + sequence);
+            }
+        }
+
+        File file = new File(segmentFilename(configuration.getLogPart1Filename(), sequence));
+        createSegmentFile(file);
+        return file;
+    }
+
+    private Future<File> preallocate(final long sequence) {
+        ExecutorService executor = maintenanceExecutor;
+        if (executor == null)
+            return null;
+        try {
+            return executor.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    File file = new File(segmentFilename(configuration.getLogPart1Filename(), sequence));
+                    createSegmentFile(file);
+                    if (log.isDebugEnabled()) { log.debug("pre-allocated segment file " + file); }
+                    return file;
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // closing, the next segment is created when needed
+            return null;
+        }
+    }
+
+    /**
+     * Delete a segment in the background if it is not the active one and all its COMMITTING records are resolved.
+     * @param segment the segment.
+     */
+    private void retireIfResolved(final Segment segment) {
+        synchronized (pendingTransactions) {
+            if (segment == activeSegment || segment.pendingTransactions > 0 || segments.get(segment.sequence) != segment)
+                return;
+            segments.remove(segment.sequence);
+        }
+
+        Runnable deletion = new Runnable() {
+            @Override
+            public void run() {
+                deleteSegment(segment);
+            }
+        };
+        ExecutorService executor = maintenanceExecutor;
+        try {
+            if (executor == null)
+                throw new RejectedExecutionException();
+            executor.execute(deletion);
+        } catch (RejectedExecutionException ex) {
+            deletion.run();
+        }
+    }
+
+    private static void deleteSegment(Segment segment) {
+        try {
+            segment.tla.close();
+        } catch (IOException ex) {
+            log.error("cannot close " + segment, ex);
+        }
+        if (!segment.tla.getFile().delete()) {
+            log.warn("cannot delete resolved " + segment);
+        } else if (log.isDebugEnabled()) { log.debug("deleted resolved " + segment); }
+    }
+
+    private void closeSegments() {
+        List<Segment> live;
+        synchronized (pendingTransactions) {
+            live = new ArrayList<Segment>(segments.values());
+            segments.clear();
+            pendingTransactions.clear();
+        }
+        for (Segment segment : live) {
+            try {
+                segment.tla.close();
+            } catch (IOException ex) {
+                log.error("cannot close " + segment, ex);
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final long sequence;
+        private final TransactionLogAppender tla;
+        private int pendingTransactions;
+
+        private Segment(long sequence, TransactionLogAppender tla) {
+            this.sequence = sequence;
+            this.tla = tla;
+        }
+
+        @Override
+        public String toString() {
+            return "segment " + sequence + " (" + tla.getFile().getName() + ")";
+        }
+    }
+
+    private static final class PendingTransaction {
+        private final TransactionLogRecord record;
+        private final Segment segment;
+        private final Set<String> uniqueNames;
+
+        private PendingTransaction(TransactionLogRecord record, Segment segment) {
+            this.record = record;
+            this.segment = segment;
+            this.uniqueNames = new HashSet<String>(record.getUniqueNames());
+        }
+    }
+
+}
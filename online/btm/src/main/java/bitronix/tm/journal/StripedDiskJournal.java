@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Journal spreading its records over several independent {@link DiskJournal} segments.
+ * <p>Each segment is a pair of fragment files with its own write position, rollover and force. All the records of a
+ * transaction are written to the same segment, chosen by hashing its GTRID, so concurrently committing transactions
+ * mostly contend on different segments and the dangling records of each segment can be collected independently then
+ * merged.</p>
+ * <p>The fragment files of segment <i>n</i> are named after the configured fragment files with <code>-n</code> inserted
+ * before their extension, ie: <code>btm1-0.tlog</code> and <code>btm2-0.tlog</code> for the first segment. Since a
+ * transaction must always be logged into the same segment, this journal refuses to open files written with a
+ * different segment count.</p>
+ * <p>{@link #force()} only forces the segments written to since they were last forced.</p>
+ * <p>Configurable properties are the ones of the {@link DiskJournal} plus
+ * <code>bitronix.tm.journal.disk.segments</code>.</p>
+ *
+ * @see bitronix.tm.Configuration#getJournalSegments()
+ *
+ * @author Ludovic Orban
+ */
+public class StripedDiskJournal implements Journal, AsyncJournal, MigratableJournal, ReadableJournal {
+
+    private final static Logger log = LoggerFactory.getLogger(StripedDiskJournal.class);
+
+    /**
+     * Upper limit of segments, the segments not yet forced are tracked in a long bit mask.
+     */
+    public final static int MAX_SEGMENTS = 64;
+
+    private final Configuration configuration;
+
+    private volatile DiskJournal[] segments;
+
+    /**
+     * Bit mask of the segments written to and not yet forced.
+     */
+    private final AtomicLong unforcedSegments = new AtomicLong();
+
+    /**
+     * Create an uninitialized striped disk journal. You must call open() prior you can use it.
+     */
+    public StripedDiskJournal() {
+        configuration = TransactionManagerServices.getConfiguration();
+    }
+
+    /**
+     * Log a new transaction status to the segment of the transaction.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    @Override
+    public void log(int status, Uid gtrid, Set<String> uniqueNames) throws IOException {
+        DiskJournal[] segments = this.segments;
+        if (segments == null)
+            throw new IOException("cannot write log, disk logger is not open");
+
+        int segment = segmentOf(gtrid, segments.length);
+        segments[segment].log(status, gtrid, uniqueNames);
+        markUnforced(segment);
+    }
+
+    /**
+     * Log a new transaction status to the segment of the transaction from the background writer thread of the
+     * segment. The segment is then forced by the first {@link #force()} call following the write of the record.
+     *
+     * @param status transaction status to log. See {@link javax.transaction.Status} constants.
+     * @param gtrid raw GTRID of the transaction.
+     * @param uniqueNames unique names of the {@link bitronix.tm.resource.common.ResourceBean}s participating in
+     * this transaction.
+     * @return a future completed once the record has been written, or exceptionally in case of disk IO failure or if
+     * the disk journal is not open.
+     */
+    @Override
+    public CompletableFuture<Void> logAsync(int status, Uid gtrid, Set<String> uniqueNames) {
+        DiskJournal[] segments = this.segments;
+        if (segments == null)
+            return AsyncLogWriter.failed(new IOException("cannot write log, disk logger is not open"));
+
+        final int segment = segmentOf(gtrid, segments.length);
+        CompletableFuture<Void> future = segments[segment].logAsync(status, gtrid, uniqueNames);
+        return future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                if (failure == null)
+                    markUnforced(segment);
+            }
+        });
+    }
+
+    /**
+     * Force the segments written to since they were last forced to synchronize with the underlying disk device,
+     * whichever thread wrote to them.
+     *
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    @Override
+    public void force() throws IOException {
+        DiskJournal[] segments = this.segments;
+        if (segments == null)
+            throw new IOException("cannot force log writing, disk logger is not open");
+
+        if (!configuration.isForcedWriteEnabled())
+            return;
+
+        long unforced = unforcedSegments.get();
+        for (int i = 0; unforced != 0L && i < segments.length; i++) {
+            long bit = 1L << i;
+            if ((unforced & bit) != 0L) {
+                // the bit is only cleared once forced so concurrent callers keep forcing the segment until then
+                segments[i].force();
+                markForced(i);
+                // a record written after the force may have set its bit before it got cleared
+                if (segments[i].isForceNeeded())
+                    markUnforced(i);
+                unforced &= ~bit;
+            }
+        }
+    }
+
+    /**
+     * Get the bit mask of the segments written to and not yet forced.
+     * @return the bit mask, bit <i>n</i> being set when segment <i>n</i> needs to be forced.
+     */
+    long getUnforcedSegments() {
+        return unforcedSegments.get();
+    }
+
+    /**
+     * Open all the segments. Segment files are created if none exist yet.
+     *
+     * @throws java.io.IOException in case of disk IO failure or if the segment files on disk do not match the
+     * configured segment count.
+     */
+    @Override
+    public synchronized void open() throws IOException {
+        if (segments != null) {
+            log.warn("striped disk journal already open");
+            return;
+        }
+
+        int segmentCount = configuration.getJournalSegments();
+        if (segmentCount < 1 || segmentCount > MAX_SEGMENTS)
+            throw new IOException("striped disk journal segment count must be between 1 and " + MAX_SEGMENTS + ", not " + segmentCount);
+        checkSegmentFiles(segmentCount);
+
+        DiskJournal[] opened = new DiskJournal[segmentCount];
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                opened[i] = new DiskJournal(segmentFilename(configuration.getLogPart1Filename(), i), segmentFilename(configuration.getLogPart2Filename(), i));
+                opened[i].open();
+            }
+        } catch (IOException ex) {
+            closeSegments(opened);
+            throw ex;
+        }
+        segments = opened;
+
+        if (log.isDebugEnabled()) { log.debug("striped disk journal opened with " + segmentCount + " segment(s)"); }
+    }
+
+    /**
+     * Close all the segments.
+     *
+     * @throws java.io.IOException in case of disk IO failure.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        DiskJournal[] segments = this.segments;
+        if (segments == null)
+            return;
+
+        this.segments = null;
+        closeSegments(segments);
+        unforcedSegments.set(0L);
+
+        if (log.isDebugEnabled()) { log.debug("striped disk journal closed"); }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            close();
+        } catch (IOException ex) {
+            log.error("error shutting down striped disk journal. Transaction log integrity could be compromised!", ex);
+        }
+    }
+
+    /**
+     * Collect the dangling records of all segments.
+     *
+     * @return a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value
+     * @throws java.io.IOException in case of disk IO failure or if the disk journal is not open.
+     */
+    @Override
+    public Map<Uid, JournalRecord> collectDanglingRecords() throws IOException {
+        DiskJournal[] segments = this.segments;
+        if (segments == null)
+            throw new IOException("cannot collect dangling records, disk logger is not open");
+
+        Map<Uid, JournalRecord> danglingRecords = new HashMap<Uid, JournalRecord>(64);
+        for (DiskJournal segment : segments) {
+            danglingRecords.putAll(segment.collectDanglingRecords());
+        }
+        return danglingRecords;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void migrateTo(Journal other) throws IOException, IllegalArgumentException {
+        if (other == this)
+            throw new IllegalArgumentException("cannot migrate a journal to itself (this == otherJournal)");
+        if (other == null)
+            throw new IllegalArgumentException("the migration target journal cannot be null");
+
+        for (JournalRecord jr : collectDanglingRecords().values()) {
+            other.log(jr.getStatus(), jr.getGtrid(), jr.getUniqueNames());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void unsafeReadRecordsInto(Collection<JournalRecord> target, boolean includeInvalid) throws IOException {
+        DiskJournal[] segments = this.segments;
+        if (segments == null)
+            throw new IOException("cannot read records, disk logger is not open");
+
+        for (DiskJournal segment : segments) {
+            segment.unsafeReadRecordsInto(target, includeInvalid);
+        }
+    }
+
+    /*
+     * Internal impl.
+     */
+
+    /**
+     * Get the name of a fragment file of a segment.
+     * @param filename the configured fragment file name.
+     * @param segment the segment index.
+     * @return the fragment file name with the segment index inserted before its extension.
+     */
+    static String segmentFilename(String filename, int segment) {
+        int dot = filename.lastIndexOf('.');
+        int separator = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf(File.separatorChar));
+        if (dot <= separator + 1)
+            return filename + "-" + segment;
+        return filename.substring(0, dot) + "-" + segment + filename.substring(dot);
+    }
+
+    private void markUnforced(int segment) {
+        long bit = 1L << segment;
+        while (true) {
+            long unforced = unforcedSegments.get();
+            if ((unforced & bit) != 0L || unforcedSegments.compareAndSet(unforced, unforced | bit))
+                return;
+        }
+    }
+
+    private void markForced(int segment) {
+        long bit = 1L << segment;
+        while (true) {
+            long unforced = unforcedSegments.get();
+            if ((unforced & bit) == 0L || unforcedSegments.compareAndSet(unforced, unforced & ~bit))
+                return;
+        }
+    }
+
+    static int segmentOf(Uid gtrid, int segmentCount) {
+        int hash = gtrid.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % segmentCount;
+    }
+
+    /**
+     * Make sure the segment files on disk have been written with the same segment count, otherwise the records of
+     * in-flight transactions would be looked for in the wrong segment.
+     * @param segmentCount the configured segment count.
+     * @throws java.io.IOException if the files on disk do not match the segment count.
+     */
+    private void checkSegmentFiles(int segmentCount) throws IOException {
+        int existing = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            if (segmentExists(i))
+                existing++;
+        }
+        if ((existing != 0 && existing != segmentCount) || segmentExists(segmentCount))
+            throw new IOException("striped disk journal files do not match the configured segment count of " + segmentCount + ", segments cannot be added or removed as long as the journal is in use");
+    }
+
+    private boolean segmentExists(int segment) {
+        return new File(segmentFilename(configuration.getLogPart1Filename(), segment)).exists() ||
+                new File(segmentFilename(configuration.getLogPart2Filename(), segment)).exists();
+    }
+
+    private static void closeSegments(DiskJournal[] segments) {
+        for (DiskJournal segment : segments) {
+            if (segment == null)
+                continue;
+            try {
+                segment.close();
+            } catch (IOException ex) {
+                log.error("cannot close striped disk journal segment", ex);
+            }
+        }
+    }
+
+}
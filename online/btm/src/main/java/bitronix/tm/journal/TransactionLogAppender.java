@@ -16,6 +16,7 @@
 package bitronix.tm.journal;
 
 import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,16 +28,21 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Used to write {@link TransactionLogRecord} objects to a log file.
+ * <p>Records are written in the format given by the header format ID of the log file: either the original one or the
+ * version 2 compact format (see {@link CompactLogFormat}).</p>
  *
  * @author Ludovic Orban
  * @author Brett Wooldridge
@@ -52,6 +58,11 @@ public class TransactionLogAppender {
      */
     public static final int END_RECORD = 0x786e7442;
 
+    private final static int WRITE_BUFFER_SIZE = 4096;
+    private final static ThreadLocal<ByteBuffer> threadLocalWriteBuffer = new ThreadLocal<ByteBuffer>();
+
+    private final static Uid NO_GTRID = new Uid(new byte[0]);
+
     private final File file;
     private final RandomAccessFile randomeAccessFile;
     private final FileChannel fc;
@@ -62,6 +73,22 @@ public class TransactionLogAppender {
 	private final HashMap<Uid, Set<String>> danglingRecords;
 	private long position;
 
+    /**
+     * Unique names defined in the log file, null when the file is not in the compact format.
+     */
+    private final NameDictionary dictionary;
+
+    /**
+     * Position of the latest complete checkpoint, from which dangling records can be collected. -1 until it has been
+     * looked for.
+     */
+    private volatile long checkpointPosition;
+
+    /**
+     * Position from which the distance to the next checkpoint is measured.
+     */
+    private long lastCheckpointPosition;
+
     /**
      * Create an appender that will write to specified file up to the specified maximum length.
      * @param file the underlying File used to write to disk.
@@ -83,6 +110,15 @@ public class TransactionLogAppender {
         this.danglingRecords = new HashMap<Uid, Set<String>>();
 
         this.position = header.getPosition();
+        this.checkpointPosition = -1L;
+        this.lastCheckpointPosition = position;
+
+        if (header.isCompactFormat()) {
+            this.dictionary = new NameDictionary();
+            CompactLogFormat.loadDefinitions(fc, TransactionLogHeader.HEADER_LENGTH, position, dictionary);
+        } else {
+            this.dictionary = null;
+        }
     }
 
     /**
@@ -93,12 +129,19 @@ public class TransactionLogAppender {
      * that guarantees that 'position' will never be viewed inconsistently
      * between threads.
      *
+     * <p>In the compact format, the unique names of the record not defined yet in the log file get their definition
+     * record written right away, before the record itself. This guarantees that no record can reach the disk before
+     * the definitions it refers to.</p>
+     *
      * @param tlog the TransactionLogRecord
      * @return true if the log should rollover, false otherwise
      * @throws IOException if an I/O error occurs
      */
     protected boolean setPositionAndAdvance(TransactionLogRecord tlog) throws IOException {
-        int tlogSize = tlog.calculateTotalRecordSize();
+        if (dictionary != null && !defineNames(tlog))
+            return true;
+
+        int tlogSize = recordSize(tlog);
     	if (position + tlogSize > maxFileLength) {
     		return true;
     	}
@@ -111,6 +154,72 @@ public class TransactionLogAppender {
     	return false;
     }
 
+    /**
+     * Write the definitions of the unique names of a record not defined yet in the log file.
+     * @param tlog the record about to be written.
+     * @return false if the record and the definitions would not fit in the file, in which case nothing is written.
+     * @throws IOException if an I/O error occurs.
+     */
+    private boolean defineNames(TransactionLogRecord tlog) throws IOException {
+        int definedNames = dictionary.size();
+        List<TransactionLogRecord> definitions = null;
+        for (String name : tlog.getUniqueNames()) {
+            if (dictionary.idOf(name) >= 0)
+                continue;
+            dictionary.define(name);
+            if (definitions == null)
+                definitions = new ArrayList<TransactionLogRecord>();
+            definitions.add(definitionOf(name));
+        }
+        if (definitions == null)
+            return true;
+
+        long definitionsSize = 0;
+        for (TransactionLogRecord definition : definitions) {
+            definitionsSize += recordSize(definition);
+        }
+        if (position + definitionsSize + recordSize(tlog) > maxFileLength) {
+            dictionary.truncate(definedNames);
+            return false;
+        }
+
+        for (TransactionLogRecord definition : definitions) {
+            definition.setWritePosition(position);
+            position += recordSize(definition);
+            outstandingWrites.incrementAndGet();
+            writeLog(definition);
+        }
+        return true;
+    }
+
+    private static TransactionLogRecord definitionOf(String name) {
+        return new TransactionLogRecord(TransactionLogRecord.STATUS_NAME_DEFINITION, NO_GTRID, Collections.singleton(name));
+    }
+
+    /**
+     * Get the size a record takes once written in the log file.
+     * @param tlog the record.
+     * @return the total size of the record in the format of the log file.
+     */
+    int recordSize(TransactionLogRecord tlog) {
+        if (dictionary != null)
+            return CompactLogFormat.recordSize(tlog, dictionary);
+        return tlog.calculateTotalRecordSize();
+    }
+
+    /**
+     * Serialize a record in the format of the log file into a buffer starting at its current position.
+     * @param tlog the record.
+     * @param buf the buffer to write to, it must have at least {@link #recordSize(TransactionLogRecord)} bytes
+     * remaining.
+     */
+    void encode(TransactionLogRecord tlog, ByteBuffer buf) {
+        if (dictionary != null)
+            CompactLogFormat.writeTo(tlog, dictionary, buf);
+        else
+            tlog.writeTo(buf);
+    }
+
     /**
      * Write a {@link TransactionLogRecord} to disk.
      * @param tlog the record to write to disk.
@@ -118,36 +227,11 @@ public class TransactionLogAppender {
      */
     protected void writeLog(TransactionLogRecord tlog) throws IOException {
         try {
-            int status = tlog.getStatus();
-            Uid gtrid = tlog.getGtrid();
-
-        	int recordSize = tlog.calculateTotalRecordSize();
-            ByteBuffer buf = ByteBuffer.allocate(recordSize);
-            buf.putInt(tlog.getStatus());
-            buf.putInt(tlog.getRecordLength());
-            buf.putInt(tlog.getHeaderLength());
-            buf.putLong(tlog.getTime());
-            buf.putInt(tlog.getSequenceNumber());
-            buf.putInt(tlog.getCrc32());
-            buf.put((byte) gtrid.getArray().length);
-            buf.put(gtrid.getArray());
-            Set<String> uniqueNames = tlog.getUniqueNames();
-            buf.putInt(uniqueNames.size());
-            for (String uniqueName : uniqueNames) {
-                buf.putShort((short) uniqueName.length());
-                buf.put(uniqueName.getBytes());
-            }
-            buf.putInt(tlog.getEndRecord());
-            buf.flip();
-
-            if (log.isDebugEnabled()) { log.debug("between " + tlog.getWritePosition() + " and " + tlog.getWritePosition() + tlog.calculateTotalRecordSize() + ", writing " + tlog); }
+            if (log.isDebugEnabled()) { log.debug("between " + tlog.getWritePosition() + " and " + (tlog.getWritePosition() + recordSize(tlog)) + ", writing " + tlog); }
 
-            final long writePosition = tlog.getWritePosition();
-            while (buf.hasRemaining()) {
-            	fc.write(buf, writePosition + buf.position());
-            }
+            write(tlog);
 
-            trackOutstanding(status, gtrid, uniqueNames);
+            trackOutstanding(tlog.getStatus(), tlog.getGtrid(), tlog.getUniqueNames());
         }
         finally {
         	if (outstandingWrites.decrementAndGet() == 0) {
@@ -156,19 +240,47 @@ public class TransactionLogAppender {
         }
     }
 
+    /**
+     * Write the serialized form of a {@link TransactionLogRecord} at its write position. The record is serialized
+     * in a per-thread direct buffer which is written to the file channel without any intermediate copy.
+     * @param tlog the record to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    protected void write(TransactionLogRecord tlog) throws IOException {
+        int recordSize = recordSize(tlog);
+        ByteBuffer buf = threadLocalWriteBuffer.get();
+        if (buf == null || buf.capacity() < recordSize) {
+            buf = ByteBuffer.allocateDirect(Math.max(recordSize, WRITE_BUFFER_SIZE));
+            threadLocalWriteBuffer.set(buf);
+        }
+        buf.clear();
+        encode(tlog, buf);
+        buf.flip();
+
+        final long writePosition = tlog.getWritePosition();
+        while (buf.hasRemaining()) {
+        	fc.write(buf, writePosition + buf.position());
+        }
+    }
+
     protected List<TransactionLogRecord> getDanglingLogs() {
     	synchronized (danglingRecords) {
 	        List<Uid> sortedUids = new ArrayList<Uid>(danglingRecords.keySet());
 	        Collections.sort(sortedUids, new Comparator<Uid>() {
                 @Override
 	            public int compare(Uid uid1, Uid uid2) {
-	                return Integer.valueOf(uid1.extractSequence()).compareTo(uid2.extractSequence());
+	                // sequences only increase per thread, the monotonic timestamp gives the order across threads
+	                int compareTo = Long.compare(uid1.extractTimestamp(), uid2.extractTimestamp());
+	                if (compareTo != 0)
+	                    return compareTo;
+	                return Integer.compare(uid1.extractSequence(), uid2.extractSequence());
 	            }
 	        });
 
 	        List<TransactionLogRecord> outstandingLogs = new ArrayList<TransactionLogRecord>(danglingRecords.size());
 	        for (Uid uid : sortedUids) {
-	            Set<String> uniqueNames = danglingRecords.get(uid);
+	            // the tracked set keeps changing after this lock is released, the record must not share it
+	            Set<String> uniqueNames = new TreeSet<String>(danglingRecords.get(uid));
 	            outstandingLogs.add(new TransactionLogRecord(Status.STATUS_COMMITTING, uid, uniqueNames));
 	        }
 
@@ -176,6 +288,32 @@ public class TransactionLogAppender {
     	}
     }
 
+    /**
+     * Get a copy of the unique names of the resources left to commit, per dangling GTRID.
+     * @return a map using GTRIDs as keys and unique names as values.
+     */
+    Map<Uid, Set<String>> copyDanglingRecords() {
+        synchronized (danglingRecords) {
+            Map<Uid, Set<String>> copy = new HashMap<Uid, Set<String>>(danglingRecords.size() * 2);
+            for (Map.Entry<Uid, Set<String>> entry : danglingRecords.entrySet()) {
+                copy.put(entry.getKey(), new TreeSet<String>(entry.getValue()));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Track dangling records collected from the log file, as if they had been written by this appender.
+     * @param records the dangling records to track.
+     */
+    void trackDanglingRecords(Collection<JournalRecord> records) {
+        synchronized (danglingRecords) {
+            for (JournalRecord record : records) {
+                danglingRecords.put(record.getGtrid(), new TreeSet<String>(record.getUniqueNames()));
+            }
+        }
+    }
+
     protected void clearDanglingLogs() {
     	synchronized (danglingRecords) {
     		danglingRecords.clear();
@@ -198,13 +336,9 @@ public class TransactionLogAppender {
 
         switch (status) {
             case Status.STATUS_COMMITTING: {
+            	// a COMMITTING record replaces the previous one, exactly like when dangling records are collected from disk
             	synchronized (danglingRecords) {
-            		Set<String> outstanding = danglingRecords.get(gtrid);
-            		if (outstanding == null) {
-            			outstanding = new TreeSet<String>(uniqueNames);
-            			danglingRecords.put(gtrid, outstanding);
-            		}
-            		outstanding.addAll(uniqueNames);
+            		danglingRecords.put(gtrid, new TreeSet<String>(uniqueNames));
             	}
                 break;
             }
@@ -229,6 +363,99 @@ public class TransactionLogAppender {
     void rewind() throws IOException {
         header.rewind();
         position = header.getPosition();
+        if (dictionary != null)
+            dictionary.clear();
+        // the records copied from the other log file after a rewind are as good as a checkpoint
+        checkpointPosition = position;
+        lastCheckpointPosition = position;
+    }
+
+    /**
+     * Check if enough records have been written since the last checkpoint to write a new one.
+     * @param checkpointInterval the amount of bytes to write between two checkpoints.
+     * @return true if {@link #writeCheckpoint()} should be called.
+     */
+    boolean isCheckpointDue(long checkpointInterval) {
+        return position - lastCheckpointPosition >= checkpointInterval;
+    }
+
+    /**
+     * Write a checkpoint: a {@link TransactionLogRecord#STATUS_CHECKPOINT_BEGIN} record followed by a copy of all
+     * dangling COMMITTING records then a {@link TransactionLogRecord#STATUS_CHECKPOINT_END} record. Dangling records
+     * can then be collected by only reading the records starting at the latest complete checkpoint.
+     * <p>Like {@link #setPositionAndAdvance(TransactionLogRecord)}, this must be called by the DiskJournal while no
+     * other record is being written.</p>
+     * @return true if the checkpoint has been written, false if it would not fit in the file.
+     * @throws IOException if an I/O error occurs.
+     */
+    boolean writeCheckpoint() throws IOException {
+        lastCheckpointPosition = position;
+
+        Uid checkpointId = UidGenerator.generateUid();
+        Set<String> noName = Collections.emptySet();
+        List<TransactionLogRecord> records = new ArrayList<TransactionLogRecord>();
+        records.add(new TransactionLogRecord(TransactionLogRecord.STATUS_CHECKPOINT_BEGIN, checkpointId, noName));
+        records.addAll(getDanglingLogs());
+        records.add(new TransactionLogRecord(TransactionLogRecord.STATUS_CHECKPOINT_END, checkpointId, noName));
+
+        long checkpointLength = 0;
+        Set<String> undefinedNames = new HashSet<String>();
+        for (TransactionLogRecord tlog : records) {
+            checkpointLength += recordSize(tlog);
+            for (String name : tlog.getUniqueNames()) {
+                if (dictionary != null && dictionary.idOf(name) < 0 && undefinedNames.add(name))
+                    checkpointLength += recordSize(definitionOf(name));
+            }
+        }
+        if (position + checkpointLength > maxFileLength) {
+            if (log.isDebugEnabled()) { log.debug("no room left for a checkpoint of " + (records.size() - 2) + " dangling record(s) in " + this); }
+            return false;
+        }
+
+        long checkpointStart = position;
+        for (TransactionLogRecord tlog : records) {
+            setPositionAndAdvance(tlog);
+            writeLog(tlog);
+        }
+        checkpointPosition = checkpointStart;
+        lastCheckpointPosition = position;
+
+        if (log.isDebugEnabled()) { log.debug("checkpoint of " + (records.size() - 2) + " dangling record(s) written at " + checkpointStart + " in " + this); }
+        return true;
+    }
+
+    /**
+     * Get the position of the latest complete checkpoint of the log file. When it is not known yet, it is looked for
+     * by walking the record headers, without reading the records themselves.
+     * @return the position of the latest checkpoint or of the first record if there is none.
+     * @throws IOException if an I/O error occurs.
+     */
+    long getCheckpointPosition() throws IOException {
+        long checkpointPosition = this.checkpointPosition;
+        if (checkpointPosition < 0) {
+            checkpointPosition = findCheckpointPosition();
+            this.checkpointPosition = checkpointPosition;
+        }
+        return checkpointPosition;
+    }
+
+    private long findCheckpointPosition() throws IOException {
+        final long[] positions = { TransactionLogHeader.HEADER_LENGTH, -1L };
+
+        CompactLogFormat.walkFrames(fc, TransactionLogHeader.HEADER_LENGTH, header.getPosition(), dictionary != null, new CompactLogFormat.FrameHandler() {
+            @Override
+            public void frame(int status, long position, ByteBuffer block, int offset, int frameLength) {
+                if (status == TransactionLogRecord.STATUS_CHECKPOINT_BEGIN) {
+                    positions[1] = position;
+                } else if (status == TransactionLogRecord.STATUS_CHECKPOINT_END && positions[1] >= 0) {
+                    positions[0] = positions[1];
+                }
+            }
+        });
+
+        long checkpointPosition = positions[0];
+        if (log.isDebugEnabled()) { log.debug("latest checkpoint of " + this + " found at " + checkpointPosition); }
+        return checkpointPosition;
     }
 
     /**
@@ -280,7 +507,7 @@ public class TransactionLogAppender {
      */
     protected void close() throws IOException {
         header.setState(TransactionLogHeader.CLEAN_LOG_STATE);
-        fc.force(false);
+        force();
         if (lock != null)
         	lock.release();
         fc.close();
@@ -295,7 +522,19 @@ public class TransactionLogAppender {
      * @throws IOException if an I/O error occurs.
      */
     protected TransactionLogCursor getCursor() throws IOException {
-        return new TransactionLogCursor(file);
+        return getCursor(TransactionLogHeader.HEADER_LENGTH);
+    }
+
+    /**
+     * Creates a cursor on this journal file allowing iteration of its records, starting at the specified position.
+     * This opens a new read-only file descriptor independent of the write-only one
+     * still used for writing transaction logs.
+     * @param startPosition the position of the first record to read.
+     * @return a TransactionLogCursor.
+     * @throws IOException if an I/O error occurs.
+     */
+    protected TransactionLogCursor getCursor(long startPosition) throws IOException {
+        return new TransactionLogCursor(file, startPosition, dictionary);
     }
 
     /**
@@ -308,6 +547,46 @@ public class TransactionLogAppender {
         if (log.isDebugEnabled()) { log.debug("done forcing log"); }
     }
 
+    /**
+     * Get the underlying file.
+     * @return the file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the channel of the underlying file.
+     * @return the file channel.
+     */
+    FileChannel getFileChannel() {
+        return fc;
+    }
+
+    /**
+     * Get the header of the underlying file.
+     * @return the file header.
+     */
+    TransactionLogHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Get the unique names defined in the underlying file.
+     * @return the dictionary of the file, null if it is not in the compact format.
+     */
+    NameDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Get the maximum length of the underlying file.
+     * @return the maximum file length.
+     */
+    long getMaxFileLength() {
+        return maxFileLength;
+    }
+
     @Override
     public String toString() {
         return "a TransactionLogAppender on " + file.getName();
@@ -29,6 +29,8 @@ import java.util.Set;
 
 /**
  * Used to read {@link TransactionLogRecord} objects from a log file.
+ * <p>Both the original format and the version 2 compact format (see {@link CompactLogFormat}) can be read, the format
+ * being given by the header format ID of the log file.</p>
  *
  * @author Ludovic Orban
  */
@@ -43,6 +45,11 @@ public class TransactionLogCursor {
     private final long endPosition;
     private final ByteBuffer page;
 
+    /**
+     * Unique names defined in the log file, null when the file is not in the compact format.
+     */
+    private final NameDictionary dictionary;
+
     /**
      * Create a TransactionLogCursor that will read from the specified file.
      * This opens a new read-only file descriptor.
@@ -50,15 +57,115 @@ public class TransactionLogCursor {
      * @throws IOException if an I/O error occurs.
      */
     public TransactionLogCursor(File file) throws IOException {
+        this(file, TransactionLogHeader.HEADER_LENGTH);
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from the specified file, starting at the specified position.
+     * This opens a new read-only file descriptor.
+     * @param file the file to read logs from
+     * @param startPosition the position of the first record to read.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogCursor(File file, long startPosition) throws IOException {
+        this(file, startPosition, null);
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from the specified file, starting at the specified position.
+     * @param file the file to read logs from
+     * @param startPosition the position of the first record to read.
+     * @param dictionary the unique names already known to be defined in the file if it is in the compact format,
+     * or null to read the definitions preceding the start position from the file.
+     * @throws IOException if an I/O error occurs.
+     */
+    TransactionLogCursor(File file, long startPosition, NameDictionary dictionary) throws IOException {
         this.fis = new FileInputStream(file);
         this.fileChannel = fis.getChannel();
         this.page = ByteBuffer.allocate(8192);
 
-        fileChannel.position(TransactionLogHeader.CURRENT_POSITION_HEADER);
+        fileChannel.read(page, TransactionLogHeader.FORMAT_ID_HEADER);
+        endPosition = page.getLong(TransactionLogHeader.CURRENT_POSITION_HEADER);
+        if (page.getInt(TransactionLogHeader.FORMAT_ID_HEADER) == TransactionLogHeader.COMPACT_FORMAT_ID) {
+            if (dictionary == null) {
+                dictionary = new NameDictionary();
+                CompactLogFormat.loadDefinitions(fileChannel, TransactionLogHeader.HEADER_LENGTH, startPosition, dictionary);
+            }
+            this.dictionary = dictionary;
+        } else {
+            this.dictionary = null;
+        }
+
+        page.clear();
+        fileChannel.position(startPosition);
         fileChannel.read(page);
         page.rewind();
-        endPosition = page.getLong();
-        currentPosition = TransactionLogHeader.CURRENT_POSITION_HEADER + 8;
+        currentPosition = startPosition;
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from a memory mapping of a log file.
+     * No file descriptor is opened, records are read straight from the mapping.
+     * @param mapping the mapping to read logs from, starting at offset 0 of the log file.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogCursor(ByteBuffer mapping) throws IOException {
+        this(mapping, TransactionLogHeader.HEADER_LENGTH);
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from a memory mapping of a log file, starting at the specified
+     * position.
+     * @param mapping the mapping to read logs from, starting at offset 0 of the log file.
+     * @param startPosition the position of the first record to read.
+     * @throws IOException if an I/O error occurs.
+     */
+    public TransactionLogCursor(ByteBuffer mapping, long startPosition) throws IOException {
+        this(mapping, startPosition, null);
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from a memory mapping of a log file, starting at the specified
+     * position.
+     * @param mapping the mapping to read logs from, starting at offset 0 of the log file.
+     * @param startPosition the position of the first record to read.
+     * @param dictionary the unique names already known to be defined in the file if it is in the compact format,
+     * or null to read the definitions preceding the start position from the mapping.
+     * @throws IOException if an I/O error occurs.
+     */
+    TransactionLogCursor(ByteBuffer mapping, long startPosition, NameDictionary dictionary) throws IOException {
+        this.fis = null;
+        this.fileChannel = null;
+        this.page = mapping.duplicate();
+
+        endPosition = page.getLong(TransactionLogHeader.CURRENT_POSITION_HEADER);
+        if (page.getInt(TransactionLogHeader.FORMAT_ID_HEADER) == TransactionLogHeader.COMPACT_FORMAT_ID) {
+            if (dictionary == null) {
+                dictionary = new NameDictionary();
+                CompactLogFormat.loadDefinitions(page, TransactionLogHeader.HEADER_LENGTH, startPosition, dictionary);
+            }
+            this.dictionary = dictionary;
+        } else {
+            this.dictionary = null;
+        }
+        page.position((int) startPosition);
+        currentPosition = startPosition;
+    }
+
+    /**
+     * Create a TransactionLogCursor that will read from a chunk of a log file already loaded in memory.
+     * @param chunk the chunk to read logs from, positioned on its first record.
+     * @param startPosition the position in the log file of the first record of the chunk.
+     * @param endPosition the position in the log file at which reading must stop.
+     * @param dictionary the unique names defined in the log file if it is in the compact format, null otherwise.
+     */
+    TransactionLogCursor(ByteBuffer chunk, long startPosition, long endPosition, NameDictionary dictionary) {
+        this.fis = null;
+        this.fileChannel = null;
+        this.page = chunk;
+        this.currentPosition = startPosition;
+        this.endPosition = endPosition;
+        this.dictionary = dictionary;
     }
 
     /**
@@ -79,6 +186,9 @@ public class TransactionLogCursor {
      * @throws IOException if an I/O error occurs.
      */
     public TransactionLogRecord readLog(boolean skipCrcCheck) throws IOException {
+        if (dictionary != null)
+            return readCompactLog(skipCrcCheck);
+
         if (currentPosition >= endPosition) {
             if (log.isDebugEnabled())
                 log.debug("end of transaction log file reached at " + currentPosition);
@@ -91,7 +201,7 @@ public class TransactionLogCursor {
         // currentPosition += 4;
         currentPosition += 8;
 
-        if (page.position() + recordLength + 8 > page.limit()) {
+        if (fileChannel != null && page.position() + recordLength + 8 > page.limit()) {
             page.compact();
             fileChannel.read(page);
             page.rewind();
@@ -99,7 +209,7 @@ public class TransactionLogCursor {
 
         final int endOfRecordPosition = page.position() + recordLength;
         if (currentPosition + recordLength > endPosition) {
-            page.position(page.position() + recordLength);
+            page.position(Math.min(page.position() + recordLength, page.limit()));
             currentPosition += recordLength;
             throw new CorruptedTransactionLogException("corrupted log found at position " + currentPosition
                     + " (record terminator outside of file bounds: " + currentPosition + recordLength + " of "
@@ -176,12 +286,46 @@ public class TransactionLogCursor {
         return tlog;
     }
 
+    private TransactionLogRecord readCompactLog(boolean skipCrcCheck) throws IOException {
+        while (true) {
+            if (currentPosition >= endPosition) {
+                if (log.isDebugEnabled())
+                    log.debug("end of transaction log file reached at " + currentPosition);
+                return null;
+            }
+
+            int frameLength = CompactLogFormat.frameLength(page, page.position(), true);
+            if (fileChannel != null && (frameLength == 0 || page.position() + frameLength > page.limit())) {
+                page.compact();
+                fileChannel.read(page);
+                page.rewind();
+                frameLength = CompactLogFormat.frameLength(page, page.position(), true);
+            }
+
+            if (frameLength <= 0 || currentPosition + frameLength > endPosition || page.position() + frameLength > page.limit()) {
+                // without a valid record length the next record cannot be found
+                long position = currentPosition;
+                currentPosition = endPosition;
+                throw new CorruptedTransactionLogException("corrupted log found at position " + position
+                        + " (record outside of file bounds, length: " + frameLength + ", end of file: " + endPosition + ")");
+            }
+
+            long position = currentPosition;
+            currentPosition += frameLength;
+            TransactionLogRecord tlog = CompactLogFormat.readRecord(page, frameLength, dictionary, skipCrcCheck, position);
+            if (tlog != null)
+                return tlog;
+        }
+    }
+
     /**
      * Close the cursor and the underlying file
      * @throws IOException if an I/O error occurs.
      */
     public void close() throws IOException {
-        fis.close();
-        fileChannel.close();
+        if (fis != null) {
+            fis.close();
+            fileChannel.close();
+        }
     }
 }
@@ -15,18 +15,22 @@
  */
 package bitronix.tm.journal;
 
+import bitronix.tm.BitronixXid;
 import bitronix.tm.utils.Decoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
  * Used to control a log file's header.
  * <p>The physical data is read when this object is created then cached. Calling setter methods sets the header field
  * then moves the file pointer back to the previous location.</p>
+ * <p>When the log file is memory-mapped (see {@link MappedTransactionLogAppender}), header fields are written straight
+ * into the mapping instead of going through the file channel.</p>
  *
  * @author Ludovic Orban
  */
@@ -35,10 +39,22 @@ public class TransactionLogHeader {
     private final static Logger log = LoggerFactory.getLogger(TransactionLogHeader.class);
 
     /**
-     * Position of the format ID in the header (see {@link bitronix.tm.BitronixXid#FORMAT_ID}).
+     * Position of the format ID in the header (see {@link #FORMAT_ID} and {@link #COMPACT_FORMAT_ID}).
      */
     public final static int FORMAT_ID_HEADER = 0;
 
+    /**
+     * Format ID of the original log files, with fixed-length records (see {@link bitronix.tm.BitronixXid#FORMAT_ID}).
+     */
+    public final static int FORMAT_ID = BitronixXid.FORMAT_ID;
+
+    /**
+     * int-encoded "Btn2" ASCII string, format ID of the version 2 log files which records are varint-encoded and
+     * refer to unique names through an in-file dictionary.
+     * @see CompactLogFormat
+     */
+    public final static int COMPACT_FORMAT_ID = 0x42746e32;
+
     /**
      * Position of the timestamp in the header.
      */
@@ -71,6 +87,7 @@ public class TransactionLogHeader {
 
     private final FileChannel fc;
     private final long maxFileLength;
+    private volatile MappedByteBuffer mapping;
 
     private volatile int formatId;
     private volatile long timestamp;
@@ -111,6 +128,37 @@ public class TransactionLogHeader {
         return formatId;
     }
 
+    /**
+     * Check if the log file is in the version 2 compact format.
+     * @return true if the format ID is {@link #COMPACT_FORMAT_ID}.
+     */
+    public boolean isCompactFormat() {
+        return formatId == COMPACT_FORMAT_ID;
+    }
+
+    /**
+     * Get the format ID of a log file format version.
+     * @param formatVersion the format version, 1 or 2.
+     * @return the format ID to write in the header of log files of that version.
+     * @throws IllegalArgumentException if the format version is unknown.
+     */
+    public static int formatIdOf(int formatVersion) {
+        switch (formatVersion) {
+            case 1: return FORMAT_ID;
+            case 2: return COMPACT_FORMAT_ID;
+            default: throw new IllegalArgumentException("unknown transaction log format version " + formatVersion + ", it must be 1 or 2");
+        }
+    }
+
+    /**
+     * Check if a format ID is one of the log file formats this version can read.
+     * @param formatId the format ID read from a log file header.
+     * @return true if the format ID is {@link #FORMAT_ID} or {@link #COMPACT_FORMAT_ID}.
+     */
+    public static boolean isSupportedFormatId(int formatId) {
+        return formatId == FORMAT_ID || formatId == COMPACT_FORMAT_ID;
+    }
+
     /**
      * Get TIMESTAMP_HEADER.
      * @see #TIMESTAMP_HEADER
@@ -148,9 +196,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(8);
         buf.putInt(formatId);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, FORMAT_ID_HEADER + buf.position());
-        }
+        write(buf, FORMAT_ID_HEADER);
         this.formatId = formatId;
     }
 
@@ -164,9 +210,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(8);
         buf.putLong(timestamp);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, TIMESTAMP_HEADER + buf.position());
-        }
+        write(buf, TIMESTAMP_HEADER);
         this.timestamp = timestamp;
     }
 
@@ -180,9 +224,7 @@ public class TransactionLogHeader {
         ByteBuffer buf = ByteBuffer.allocate(1);
         buf.put(state);
         buf.flip();
-        while (buf.hasRemaining()) {
-        	fc.write(buf, STATE_HEADER + buf.position());
-        }
+        write(buf, STATE_HEADER);
         this.state = state;
     }
 
@@ -198,6 +240,13 @@ public class TransactionLogHeader {
         if (position > maxFileLength)
             throw new IOException("invalid position " + position + " (too high)");
 
+        MappedByteBuffer mapping = this.mapping;
+        if (mapping != null) {
+            mapping.putLong(CURRENT_POSITION_HEADER, position);
+            this.position = position;
+            return;
+        }
+
         ByteBuffer buf = ByteBuffer.allocate(8);
         buf.putLong(position);
         buf.flip();
@@ -218,13 +267,36 @@ public class TransactionLogHeader {
         setPosition(HEADER_LENGTH);
     }
 
+    /**
+     * Make all subsequent header updates go to the given memory mapping of the log file instead of the file channel.
+     * @param mapping a mapping of the log file starting at offset 0.
+     */
+    void setMapping(MappedByteBuffer mapping) {
+        this.mapping = mapping;
+    }
+
+    private void write(ByteBuffer buf, int offset) throws IOException {
+        MappedByteBuffer mapping = this.mapping;
+        if (mapping != null) {
+            ByteBuffer target = mapping.duplicate();
+            target.position(offset);
+            target.put(buf);
+            return;
+        }
+
+        while (buf.hasRemaining()) {
+        	fc.write(buf, offset + buf.position());
+        }
+    }
+
     /**
      * Create human-readable String representation.
      * @return a human-readable String representing this object's state.
      */
     @Override
     public String toString() {
-        return "a Bitronix TransactionLogHeader with timestamp=" + timestamp +
+        return "a Bitronix TransactionLogHeader with format=" + Decoder.decodeHeaderFormatId(formatId) +
+                ", timestamp=" + timestamp +
                 ", state=" + Decoder.decodeHeaderState(state) +
                 ", position=" + position;
     }
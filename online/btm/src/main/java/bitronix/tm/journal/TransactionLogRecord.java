@@ -17,6 +17,7 @@ package bitronix.tm.journal;
 
 import bitronix.tm.utils.Decoder;
 import bitronix.tm.utils.MonotonicClock;
+import bitronix.tm.utils.SequenceGenerator;
 import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +33,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.CRC32;
 
 /**
@@ -66,6 +68,9 @@ import java.util.zip.CRC32;
  * is A bytes long (A being the GTRID length) and there can be X unique names that are Y characters long, Y being eventually
  * different for each name.</p>
  *
+ * <p>Log files in the version 2 format store the same records in a more compact encoding, see
+ * {@link CompactLogFormat}.</p>
+ *
  * @see <a href="http://jroller.com/page/pyrasun?entry=xa_exposed_part_iii_the">XA Exposed, Part III: The Implementor's Notebook</a>
  * @author Ludovic Orban
  */
@@ -73,12 +78,45 @@ public class TransactionLogRecord implements JournalRecord {
 
     private final static Logger log = LoggerFactory.getLogger(TransactionLogRecord.class);
 
+    /**
+     * Status of the record starting a checkpoint. Checkpoint statuses are not {@link javax.transaction.Status}
+     * values so that they are ignored when collecting dangling records.
+     * @see TransactionLogAppender#writeCheckpoint()
+     */
+    public final static int STATUS_CHECKPOINT_BEGIN = 100;
+
+    /**
+     * Status of the record ending a checkpoint.
+     * @see TransactionLogAppender#writeCheckpoint()
+     */
+    public final static int STATUS_CHECKPOINT_END = 101;
+
+    /**
+     * Status of the records of the version 2 log format assigning an ID to a unique name. Such records are only
+     * used internally by the compact format and never returned by a {@link TransactionLogCursor}.
+     * @see CompactLogFormat
+     */
+    public final static int STATUS_NAME_DEFINITION = 102;
+
     // status + record length + record header length + current time + sequence number + checksum
     private final static int RECORD_HEADER_LENGTH = 4 + 4 + 4 + 8 + 4 + 4;
 
     private static final Charset US_ASCII = Charset.forName("US-ASCII");
 
-    private final static AtomicInteger sequenceGenerator = new AtomicInteger();
+    private final static SequenceGenerator sequenceGenerator = new SequenceGenerator();
+
+    // unique names are those of the registered resources so there are few of them: their encoded form is cached
+    // instead of being re-encoded for every record. The cache is bounded in case unexpectedly many names are logged.
+    private final static int MAX_ENCODED_NAMES = 1024;
+    private final static ConcurrentMap<String, byte[]> encodedNames = new ConcurrentHashMap<String, byte[]>();
+
+    private final static ThreadLocal<CRC32> threadLocalCrc32 = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+    private final static ThreadLocal<ByteBuffer> threadLocalCrcBuffer = new ThreadLocal<ByteBuffer>();
 
     private final int status;
     private int recordLength;
@@ -86,6 +124,7 @@ public class TransactionLogRecord implements JournalRecord {
     private final long time;
     private final int sequenceNumber;
     private int crc32;
+    private boolean crc32Calculated;
     private final Uid gtrid;
     private final SortedSet<String> uniqueNames;
     private final int endRecord;
@@ -111,13 +150,17 @@ public class TransactionLogRecord implements JournalRecord {
         this.time = time;
         this.sequenceNumber = sequenceNumber;
         this.crc32 = crc32;
+        this.crc32Calculated = true;
         this.gtrid = gtrid;
         this.uniqueNames = new TreeSet<String>(uniqueNames);
         this.endRecord = endRecord;
     }
 
     /**
-     * Create a new transaction log ready to be stored.
+     * Create a new transaction log ready to be stored. The CRC is only calculated when the record gets written with
+     * {@link #writeTo(ByteBuffer)}, or lazily by {@link #getCrc32()}.
+     * <p>The unique names are copied unless they already are a naturally ordered {@link SortedSet}, in which case the
+     * set must not be modified afterwards.</p>
      * @param status record type
      * @param gtrid global transaction id
      * @param uniqueNames unique names of XA data sources used in this transaction
@@ -125,13 +168,34 @@ public class TransactionLogRecord implements JournalRecord {
     public TransactionLogRecord(int status, Uid gtrid, Set<String> uniqueNames) {
         this.status = status;
         this.time = MonotonicClock.currentTimeMillis();
-        this.sequenceNumber = sequenceGenerator.incrementAndGet();
+        this.sequenceNumber = sequenceGenerator.next();
         this.gtrid = gtrid;
-        this.uniqueNames = new TreeSet<String>(uniqueNames);
+        this.uniqueNames = sortedCopyOf(uniqueNames);
         this.endRecord = TransactionLogAppender.END_RECORD;
         this.headerLength = RECORD_HEADER_LENGTH;
+        this.recordLength = calculateRecordLength();
+    }
 
-        refresh();
+    /**
+     * Use this constructor when restoring a log from a file in the version 2 format, which does not store the header
+     * length, checksum and end record marker of the original format: those are calculated as if the record had been
+     * read from a file in the original format.
+     *
+     * @param status record type
+     * @param time current time in milliseconds
+     * @param sequenceNumber atomically generated sequence number during a JVM's lifespan
+     * @param gtrid global transaction id
+     * @param uniqueNames unique names of XA data sources used in this transaction
+     */
+    TransactionLogRecord(int status, long time, int sequenceNumber, Uid gtrid, Set<String> uniqueNames) {
+        this.status = status;
+        this.time = time;
+        this.sequenceNumber = sequenceNumber;
+        this.gtrid = gtrid;
+        this.uniqueNames = sortedCopyOf(uniqueNames);
+        this.endRecord = TransactionLogAppender.END_RECORD;
+        this.headerLength = RECORD_HEADER_LENGTH;
+        this.recordLength = calculateRecordLength();
     }
 
     @Override
@@ -157,6 +221,10 @@ public class TransactionLogRecord implements JournalRecord {
     }
 
     public int getCrc32() {
+        if (!crc32Calculated) {
+            crc32 = calculateCrc32();
+            crc32Calculated = true;
+        }
         return crc32;
     }
 
@@ -182,14 +250,6 @@ public class TransactionLogRecord implements JournalRecord {
         return endRecord;
     }
 
-    /**
-     * Recalculate and store the dynamic values of this record: {@link #getRecordLength()}, {@link #getRecordHeaderLength()}
-     * and {@link #calculateCrc32()}. This method must be called each time after the set of contained unique names is updated.
-     */
-    private void refresh() {
-        crc32 = calculateCrc32();
-    }
-
     /**
      * Recalculate the CRC32 value of this record (using {@link #calculateCrc32()}) and compare it with the stored value.
      * @return true if the recalculated value equals the stored one, false otherwise.
@@ -215,7 +275,7 @@ public class TransactionLogRecord implements JournalRecord {
         props.put("recordLength", recordLength);
         props.put("headerLength", headerLength);
         props.put("sequenceNumber", sequenceNumber);
-        props.put("crc32", crc32);
+        props.put("crc32", getCrc32());
         return props;
     }
 
@@ -224,33 +284,87 @@ public class TransactionLogRecord implements JournalRecord {
      * @return the CRC32 value of this record.
      */
     public int calculateCrc32() {
-        int total = 0;
-        for (String uniqueName : uniqueNames) {
-        	total += 2 + uniqueName.length(); // 2 bytes for storing the unique name length + unique name length
+        recordLength = calculateRecordLength();
+
+        int size = calculateTotalRecordSize();
+        ByteBuffer buf = threadLocalCrcBuffer.get();
+        if (buf == null || buf.capacity() < size) {
+            buf = ByteBuffer.allocate(Math.max(size, 512));
+            threadLocalCrcBuffer.set(buf);
         }
-        recordLength = total + getFixedRecordLength();
+        buf.clear();
+        return encode(buf);
+    }
 
-    	ByteBuffer buf = ByteBuffer.allocate(24 + gtrid.length() + 4 /*uniqueNames.size*/ + total + 4 /*endRecord*/);
-    	buf.putInt(status);              // offset: 0
-    	buf.putInt(recordLength);        // offset: 4
-    	buf.putInt(headerLength);        // offset: 8
-    	buf.putLong(time);               // offset: 12
-    	buf.putInt(sequenceNumber);      // offset: 20
-    	buf.put(gtrid.getArray());       // offset: 24
-    	buf.putInt(uniqueNames.size());  // offset: 24 + gtridArray.length
+    /**
+     * Serialize this record into a buffer starting at its current position, calculating the CRC32 value on the
+     * written bytes. The buffer's position is moved past the end of the record.
+     * @param buf the buffer to write to, it must have at least {@link #calculateTotalRecordSize()} bytes remaining.
+     */
+    void writeTo(ByteBuffer buf) {
+        int crcPosition = buf.position() + RECORD_HEADER_LENGTH - 4;
+        crc32 = encode(buf);
+        crc32Calculated = true;
+        buf.putInt(crcPosition, crc32);
+    }
 
+    /**
+     * Serialize this record into a buffer starting at its current position, leaving the checksum blank.
+     * @param buf the buffer to write to.
+     * @return the CRC32 value of the record.
+     */
+    private int encode(ByteBuffer buf) {
+        int start = buf.position();
+        int limit = buf.limit();
+
+        buf.putInt(status);
+        buf.putInt(recordLength);
+        buf.putInt(headerLength);
+        buf.putLong(time);
+        buf.putInt(sequenceNumber);
+        int crcPosition = buf.position();
+        buf.putInt(0);
+        buf.put((byte) gtrid.length());
+        int payloadPosition = buf.position();
+        buf.put(gtrid.getArray());
+        buf.putInt(uniqueNames.size());
         for (String name : uniqueNames) {
-            buf.putShort((short) name.length());
-            buf.put(name.getBytes(US_ASCII));
+            byte[] nameBytes = encodeName(name);
+            buf.putShort((short) nameBytes.length);
+            buf.put(nameBytes);
         }
-
         buf.putInt(endRecord);
-
-        CRC32 crc32 = new CRC32();
-        crc32.update(buf.array());
+        int end = buf.position();
+
+        // the checksum covers all fields but itself and the GTRID length
+        CRC32 crc32 = threadLocalCrc32.get();
+        crc32.reset();
+        buf.position(start);
+        buf.limit(crcPosition);
+        crc32.update(buf);
+        buf.limit(end);
+        buf.position(payloadPosition);
+        crc32.update(buf);
+        buf.limit(limit);
         return (int) crc32.getValue();
     }
 
+    static byte[] encodeName(String name) {
+        byte[] encoded = encodedNames.get(name);
+        if (encoded == null) {
+            encoded = name.getBytes(US_ASCII);
+            if (encodedNames.size() < MAX_ENCODED_NAMES)
+                encodedNames.putIfAbsent(name, encoded);
+        }
+        return encoded;
+    }
+
+    private static SortedSet<String> sortedCopyOf(Set<String> uniqueNames) {
+        if (uniqueNames instanceof SortedSet && ((SortedSet<String>) uniqueNames).comparator() == null)
+            return (SortedSet<String>) uniqueNames;
+        return new TreeSet<String>(uniqueNames);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(128);
@@ -261,7 +375,7 @@ public class TransactionLogRecord implements JournalRecord {
         sb.append("headerLength="); sb.append(headerLength); sb.append(", ");
         sb.append("time="); sb.append(time); sb.append(", ");
         sb.append("sequenceNumber="); sb.append(sequenceNumber); sb.append(", ");
-        sb.append("crc32="); sb.append(crc32); sb.append(", ");
+        sb.append("crc32="); sb.append(getCrc32()); sb.append(", ");
         sb.append("gtrid="); sb.append(gtrid.toString()); sb.append(", ");
         sb.append("uniqueNames=");
         Iterator<String> it = uniqueNames.iterator();
@@ -284,6 +398,14 @@ public class TransactionLogRecord implements JournalRecord {
         return recordLength + 4 + 4; // + status + record length
     }
 
+    private int calculateRecordLength() {
+        int total = 0;
+        for (String uniqueName : uniqueNames) {
+            total += 2 + uniqueName.length(); // 2 bytes for storing the unique name length + unique name length
+        }
+        return total + getFixedRecordLength();
+    }
+
     /**
      * Length of all the fixed size fields part of the record length header except status and record length.
      * @return fixedRecordLength
@@ -18,6 +18,7 @@ package bitronix.tm.resource;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.recovery.IncrementalRecoverer;
 import bitronix.tm.recovery.RecoveryException;
+import bitronix.tm.resource.common.ResourceBean;
 import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.resource.common.XAResourceProducer;
 import org.slf4j.Logger;
@@ -27,7 +28,10 @@ import javax.transaction.xa.XAResource;
 import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
@@ -37,6 +41,9 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * Note: The implementation is based on a thread safe, read-optimized list (copy-on-write) assuming that the
  * number of registered resources is around 1 to 16 entries and does not change often. If this assumption is
  * not-true it may be required to re-implement this with a ConcurrentMap instead.
+ * <p>
+ * The {@link XAResourceHolder}s of the pools are additionally indexed by their {@link XAResource} so that
+ * {@link #findXAResourceHolder(XAResource)} does not have to search every registered producer on each enlistment.
  *
  * @author Ludovic Orban
  * @author Juergen Kellerer
@@ -51,6 +58,7 @@ public final class ResourceRegistrar {
     public final static Charset UNIQUE_NAME_CHARSET = Charset.forName("US-ASCII");
 
     private final static Set<ProducerHolder> resources = new CopyOnWriteArraySet<ProducerHolder>();
+    private final static ConcurrentMap<XAResource, XAResourceHolder> xaResourceHolders = new ConcurrentHashMap<XAResource, XAResourceHolder>();
 
     /**
      * Get a registered {@link XAResourceProducer}.
@@ -127,6 +135,34 @@ public final class ResourceRegistrar {
         if (!resources.remove(holder)) {
             if (log.isDebugEnabled()) { log.debug("resource with uniqueName '{}' has not been registered", holder.getUniqueName()); }
         }
+
+        // drop whatever the producer did not unregister itself
+        Iterator<XAResourceHolder> it = xaResourceHolders.values().iterator();
+        while (it.hasNext()) {
+            ResourceBean resourceBean = it.next().getResourceBean();
+            if (resourceBean != null && holder.getUniqueName().equals(resourceBean.getUniqueName()))
+                it.remove();
+        }
+    }
+
+    /**
+     * Index the {@link XAResourceHolder} an {@link XAResource} belongs to so that {@link #findXAResourceHolder(XAResource)}
+     * can find it without searching the producers. {@link XAResourceProducer}s should call this method when they hand
+     * out a new {@link XAResource} and {@link #unregisterXAResource(XAResource, XAResourceHolder)} when it gets closed.
+     * @param xaResource the {@link XAResource}.
+     * @param xaResourceHolder the {@link XAResourceHolder} the {@link XAResource} belongs to.
+     */
+    public static void registerXAResource(XAResource xaResource, XAResourceHolder xaResourceHolder) {
+        xaResourceHolders.put(xaResource, xaResourceHolder);
+    }
+
+    /**
+     * Remove an {@link XAResource} from the index.
+     * @param xaResource the {@link XAResource}.
+     * @param xaResourceHolder the {@link XAResourceHolder} the {@link XAResource} belongs to.
+     */
+    public static void unregisterXAResource(XAResource xaResource, XAResourceHolder xaResourceHolder) {
+        xaResourceHolders.remove(xaResource, xaResourceHolder);
     }
 
     /**
@@ -138,6 +174,13 @@ public final class ResourceRegistrar {
     public static XAResourceHolder findXAResourceHolder(XAResource xaResource) {
         final boolean debug = log.isDebugEnabled();
 
+        // the index is keyed by equals() and XAResource implementations may override it, hence the identity check
+        final XAResourceHolder indexedResourceHolder = xaResource == null ? null : xaResourceHolders.get(xaResource);
+        if (indexedResourceHolder != null && indexedResourceHolder.getXAResource() == xaResource) {
+            if (debug) { log.debug("XAResource " + xaResource + " belongs to indexed " + indexedResourceHolder); }
+            return indexedResourceHolder;
+        }
+
         for (ProducerHolder holder : resources) {
             if (!holder.isInitialized())
                 continue;
@@ -20,6 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -34,6 +35,7 @@ public abstract class AbstractXAStatefulHolder<T extends XAStatefulHolder<T>> im
     private volatile State state = State.IN_POOL;
     private final List<StateChangeListener<T>> stateChangeEventListeners = new CopyOnWriteArrayList<StateChangeListener<T>>();
     private final Date creationDate = new Date();
+    private volatile CompletableFuture<?> pendingCompletion;
 
     @Override
     public Date getCreationDate() {
@@ -62,6 +64,26 @@ public abstract class AbstractXAStatefulHolder<T extends XAStatefulHolder<T>> im
         fireStateChanged(oldState, state);
     }
 
+    /**
+     * Get the completion of the transaction branch command still running on this object after its transaction
+     * completed.
+     * @return the completion of the command, or null if there is none.
+     * @see #setPendingCompletion(CompletableFuture)
+     */
+    public CompletableFuture<?> getPendingCompletion() {
+        return pendingCompletion;
+    }
+
+    /**
+     * Set the completion of a transaction branch command the 2PC engine stopped waiting for. This object must not
+     * be released to its pool before it completes.
+     * @param pendingCompletion the completion of the command, or null if there is none.
+     * @see bitronix.tm.Configuration#isAdaptive2PcTimeouts()
+     */
+    public void setPendingCompletion(CompletableFuture<?> pendingCompletion) {
+        this.pendingCompletion = pendingCompletion;
+    }
+
     @Override
     public void addStateChangeEventListener(StateChangeListener<T> listener) {
         stateChangeEventListeners.add(listener);
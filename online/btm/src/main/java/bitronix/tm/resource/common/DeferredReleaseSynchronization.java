@@ -20,6 +20,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.transaction.Synchronization;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
  * {@link Synchronization} used to release a {@link XAStatefulHolder} object after 2PC has executed.
@@ -42,6 +44,25 @@ public class DeferredReleaseSynchronization implements Synchronization {
 
     @Override
     public void afterCompletion(int status) {
+        if (xaStatefulHolder instanceof AbstractXAStatefulHolder) {
+            AbstractXAStatefulHolder<?> holder = (AbstractXAStatefulHolder<?>) xaStatefulHolder;
+            CompletableFuture<?> pendingCompletion = holder.getPendingCompletion();
+            holder.setPendingCompletion(null);
+            if (pendingCompletion != null && !pendingCompletion.isDone()) {
+                if (log.isDebugEnabled()) { log.debug("DeferredReleaseSynchronization delaying requeue of " + xaStatefulHolder + " until its pending command completes"); }
+                pendingCompletion.whenComplete(new BiConsumer<Object, Throwable>() {
+                    @Override
+                    public void accept(Object result, Throwable throwable) {
+                        requeue();
+                    }
+                });
+                return;
+            }
+        }
+        requeue();
+    }
+
+    private void requeue() {
         if (log.isDebugEnabled()) { log.debug("DeferredReleaseSynchronization requeuing " + xaStatefulHolder); }
 
         // set this connection's state back to IN_POOL
@@ -27,6 +27,11 @@ import java.util.Properties;
 @SuppressWarnings("serial")
 public abstract class ResourceBean implements Serializable {
 
+    /**
+     * The 2PC ordering position of resources which did not get one set.
+     */
+    public final static int DEFAULT_TWO_PC_ORDERING_POSITION = 1;
+
     private volatile String className;
     private volatile String uniqueName;
     private volatile boolean automaticEnlistingEnabled = true;
@@ -41,7 +46,7 @@ public abstract class ResourceBean implements Serializable {
     private volatile boolean deferConnectionRelease = true;
     private volatile int acquisitionInterval = 1;
     private volatile boolean allowLocalTransactions = false;
-    private volatile int twoPcOrderingPosition = 1;
+    private volatile int twoPcOrderingPosition = DEFAULT_TWO_PC_ORDERING_POSITION;
     private volatile boolean applyTransactionTimeout = false;
     private volatile boolean shareTransactionConnections = false;
     private volatile boolean disabled = false;
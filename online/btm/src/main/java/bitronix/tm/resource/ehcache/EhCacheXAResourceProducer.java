@@ -112,6 +112,7 @@ public final class EhCacheXAResourceProducer extends ResourceBean implements XAR
         int key = xaResourceHolderCounter.incrementAndGet();
 
         xaResourceHolders.put(key, xaResourceHolder);
+        ResourceRegistrar.registerXAResource(xaResource, xaResourceHolder);
     }
 
     private boolean removeXAResource(XAResource xaResource) {
@@ -120,6 +121,7 @@ public final class EhCacheXAResourceProducer extends ResourceBean implements XAR
             EhCacheXAResourceHolder xaResourceHolder = entry.getValue();
             if (xaResourceHolder.getXAResource() == xaResource) {
                 xaResourceHolders.remove(key);
+                ResourceRegistrar.unregisterXAResource(xaResource, xaResourceHolder);
                 return true;
             }
         }
@@ -422,6 +422,7 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         XADataSource xads = (XADataSource) xaFactory;
         JdbcPooledConnection pooledConnection = new JdbcPooledConnection(this, xads.getXAConnection());
         xaResourceHolderMap.put(pooledConnection.getXAResource(), pooledConnection);
+        ResourceRegistrar.registerXAResource(pooledConnection.getXAResource(), pooledConnection);
         return pooledConnection;
     }
 
@@ -503,6 +504,7 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
 
     public void unregister(JdbcPooledConnection xaResourceHolder) {
         xaResourceHolderMap.remove(xaResourceHolder.getXAResource());
+        ResourceRegistrar.unregisterXAResource(xaResourceHolder.getXAResource(), xaResourceHolder);
 
     }
 
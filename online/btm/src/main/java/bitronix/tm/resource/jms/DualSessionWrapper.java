@@ -18,6 +18,7 @@ package bitronix.tm.resource.jms;
 import bitronix.tm.BitronixTransaction;
 import bitronix.tm.internal.BitronixRollbackSystemException;
 import bitronix.tm.internal.BitronixSystemException;
+import bitronix.tm.resource.ResourceRegistrar;
 import bitronix.tm.resource.common.AbstractXAResourceHolder;
 import bitronix.tm.resource.common.ResourceBean;
 import bitronix.tm.resource.common.StateChangeListener;
@@ -140,6 +141,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder<DualSessionWrap
                 if (log.isDebugEnabled()) { log.debug("get XA session registered message listener: " + listener); }
             }
             xaResource = xaSession.getXAResource();
+            ResourceRegistrar.registerXAResource(xaResource, this);
         }
         return xaSession.getSession();
     }
@@ -211,6 +213,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder<DualSessionWrap
                     log.error("error closing XA session", ex);
                 }
                 xaSession = null;
+                ResourceRegistrar.unregisterXAResource(xaResource, this);
                 xaResource = null;
             }
 
@@ -15,13 +15,21 @@
  */
 package bitronix.tm.twopc;
 
+import bitronix.tm.BitronixTransaction;
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.internal.BitronixSystemException;
 import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.internal.XAResourceManager;
+import bitronix.tm.resource.common.AbstractXAStatefulHolder;
+import bitronix.tm.resource.common.ResourceBean;
+import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.twopc.executor.Executor;
 import bitronix.tm.twopc.executor.Job;
-import bitronix.tm.utils.CollectionUtils;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.Scheduler;
+import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,9 +37,18 @@ import javax.transaction.xa.XAException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * Abstract phase execution engine.
@@ -42,7 +59,13 @@ public abstract class AbstractPhaseEngine {
 
     private final static Logger log = LoggerFactory.getLogger(AbstractPhaseEngine.class);
 
+    // number of commands a resource must have executed before its commands get a deadline
+    private final static int DEADLINE_WARMUP_COMMANDS = 20;
+
     private final Executor executor;
+    // only accessed by the thread executing the phase
+    private final List<Deadline> deadlines = new ArrayList<Deadline>();
+    private final Set<Job> deferredJobs = Collections.newSetFromMap(new IdentityHashMap<Job, Boolean>());
 
     protected AbstractPhaseEngine(Executor executor) {
         this.executor = executor;
@@ -53,6 +76,10 @@ public abstract class AbstractPhaseEngine {
      * once resource in a position, command is sent in enlistment order (again reversed or not).
      * If {@link bitronix.tm.Configuration#isAsynchronous2Pc()} is true, all commands in a given position are sent
      * in parallel by using the detected {@link Executor} implementation.
+     * If {@link bitronix.tm.Configuration#isPipelined2Pc()} is true as well, positions only wait for the ones they are
+     * ordered after, see {@link #buildDependencyGraph(List)}.
+     * If {@link bitronix.tm.Configuration#isAdaptive2PcTimeouts()} is true, the commands of a resource that can be
+     * completed by recovery are not waited for past their deadline, see {@link #isDeferrable(XAResourceHolderState)}.
      * @param resourceManager the {@link XAResourceManager} containing the enlisted resources to execute the phase on.
      * @param reverse true if jobs should be executed in reverse position / enlistment order, false for natural position / enlistment order.
      * @throws PhaseException if one or more resource threw an exception during phase execution.
@@ -70,15 +97,74 @@ public abstract class AbstractPhaseEngine {
             if (log.isDebugEnabled()) { log.debug("executing phase on " + resourceManager.size() + " resource(s) enlisted in " + positions.size() + " position(s) in natural position order"); }
         }
 
-        List<JobsExecutionReport> positionErrorReports = new ArrayList<JobsExecutionReport>();
+        deadlines.clear();
+        deferredJobs.clear();
 
-        for (Integer positionKey : positions) {
-            List<XAResourceHolderState> resources;
-            if (reverse) {
-                resources = resourceManager.getReverseOrderResourcesForPosition(positionKey);
+        List<JobsExecutionReport> positionErrorReports;
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        if (positions.size() > 1 && configuration.isAsynchronous2Pc() && configuration.isPipelined2Pc())
+            positionErrorReports = executePositionsPipelined(resourceManager, positions, reverse);
+        else
+            positionErrorReports = executePositionsSequentially(resourceManager, positions, reverse);
+
+        if (positionErrorReports.size() > 0) {
+            // merge all resources and exceptions lists
+            List<Exception> exceptions = new ArrayList<Exception>();
+            List<XAResourceHolderState> resources = new ArrayList<XAResourceHolderState>();
+
+            for (JobsExecutionReport report : positionErrorReports) {
+                exceptions.addAll(report.getExceptions());
+                resources.addAll(report.getResources());
+            }
+
+            throw new PhaseException(exceptions, resources);
+        }
+    }
+
+    /**
+     * Build the dependency graph of the positions of a phase for pipelined execution. The reserved
+     * {@link Scheduler#ALWAYS_FIRST_POSITION} and {@link Scheduler#ALWAYS_LAST_POSITION} positions act as barriers
+     * which depend on all positions before them. The positions configured with
+     * {@link bitronix.tm.resource.common.ResourceBean#setTwoPcOrderingPosition(int)} keep their strict ordering: each
+     * of them depends on the previous configured one, or on the closest barrier before it. Only the resources left at
+     * the {@link bitronix.tm.resource.common.ResourceBean#DEFAULT_TWO_PC_ORDERING_POSITION} declare no ordering, their
+     * position solely depends on the closest barrier before it and runs concurrently with the configured ones.
+     * @param positions the positions, in the order in which the phase executes them.
+     * @return a map in which each position is associated with the list of positions that must have completed before
+     * its jobs can start.
+     */
+    static Map<Integer, List<Integer>> buildDependencyGraph(List<Integer> positions) {
+        Map<Integer, List<Integer>> dependencies = new LinkedHashMap<Integer, List<Integer>>();
+        List<Integer> previousPositions = new ArrayList<Integer>();
+        Integer lastBarrier = null;
+        Integer lastOrdered = null;
+
+        for (Integer position : positions) {
+            if (isBarrier(position)) {
+                dependencies.put(position, new ArrayList<Integer>(previousPositions));
+                lastBarrier = position;
+                lastOrdered = position;
+            } else if (position == ResourceBean.DEFAULT_TWO_PC_ORDERING_POSITION) {
+                dependencies.put(position, lastBarrier == null ? Collections.<Integer>emptyList() : Collections.singletonList(lastBarrier));
             } else {
-                resources = resourceManager.getNaturalOrderResourcesForPosition(positionKey);
+                dependencies.put(position, lastOrdered == null ? Collections.<Integer>emptyList() : Collections.singletonList(lastOrdered));
+                lastOrdered = position;
             }
+            previousPositions.add(position);
+        }
+
+        return dependencies;
+    }
+
+    private static boolean isBarrier(Integer position) {
+        return Scheduler.ALWAYS_FIRST_POSITION.equals(position) || Scheduler.ALWAYS_LAST_POSITION.equals(position);
+    }
+
+    private List<JobsExecutionReport> executePositionsSequentially(XAResourceManager resourceManager, SortedSet<Integer> positions, boolean reverse) {
+        List<JobsExecutionReport> positionErrorReports = new ArrayList<JobsExecutionReport>();
+
+        for (Integer positionKey : positions) {
+            List<XAResourceHolderState> resources = getResourcesForPosition(resourceManager, positionKey, reverse);
 
             if (log.isDebugEnabled()) { log.debug("running " + resources.size() + " job(s) for position '" + positionKey + "'"); }
             JobsExecutionReport report = runJobsForPosition(resources);
@@ -90,43 +176,126 @@ public abstract class AbstractPhaseEngine {
             if (log.isDebugEnabled()) { log.debug("ran " + resources.size() + " job(s) for position '" + positionKey + "'"); }
         }
 
-        if (positionErrorReports.size() > 0) {
-            // merge all resources and exceptions lists
-            List<Exception> exceptions = new ArrayList<Exception>();
-            List<XAResourceHolderState> resources = new ArrayList<XAResourceHolderState>();
+        return positionErrorReports;
+    }
 
-            for (JobsExecutionReport report : positionErrorReports) {
-                exceptions.addAll(report.getExceptions());
-                resources.addAll(report.getResources());
+    /**
+     * Run the positions as soon as the positions they depend on have completed. Everything is driven from the calling
+     * thread: it submits the jobs of all runnable positions then sleeps until one of the running positions completes.
+     * Once a position failed no other position is started and, if the phase is short-circuiting, the jobs still
+     * queued in the executor are cancelled. The running positions are always waited for.
+     */
+    private List<JobsExecutionReport> executePositionsPipelined(XAResourceManager resourceManager, SortedSet<Integer> positions, boolean reverse) {
+        List<Integer> waitingPositions = new ArrayList<Integer>(positions);
+        Map<Integer, List<Integer>> dependencies = buildDependencyGraph(waitingPositions);
+        if (log.isDebugEnabled()) { log.debug("pipelining positions with dependencies " + dependencies); }
+
+        boolean shortCircuiting = isShortCircuiting();
+        CompletableFuture<Job> firstFailure = new CompletableFuture<Job>();
+        boolean cancelled = false;
+        Set<Integer> completedPositions = new HashSet<Integer>();
+        Map<Integer, PositionExecution> runningPositions = new LinkedHashMap<Integer, PositionExecution>();
+        List<JobsExecutionReport> positionErrorReports = new ArrayList<JobsExecutionReport>();
+
+        while (true) {
+            if (positionErrorReports.isEmpty() && !firstFailure.isDone()) {
+                for (Iterator<Integer> it = waitingPositions.iterator(); it.hasNext(); ) {
+                    Integer positionKey = it.next();
+                    if (!completedPositions.containsAll(dependencies.get(positionKey)))
+                        continue;
+                    it.remove();
+
+                    List<XAResourceHolderState> resources = getResourcesForPosition(resourceManager, positionKey, reverse);
+                    if (log.isDebugEnabled()) { log.debug("starting " + resources.size() + " job(s) for position '" + positionKey + "'"); }
+                    List<Job> jobs = createJobs(resources);
+                    runningPositions.put(positionKey, new PositionExecution(jobs, submitJobs(jobs, firstFailure)));
+                }
             }
+            if (runningPositions.isEmpty())
+                break;
 
-            throw new PhaseException(exceptions, resources);
+            List<CompletableFuture<?>> wakeUps = new ArrayList<CompletableFuture<?>>();
+            for (PositionExecution execution : runningPositions.values()) {
+                wakeUps.add(execution.all);
+            }
+            if (shortCircuiting && !cancelled)
+                wakeUps.add(firstFailure);
+            await(CompletableFuture.anyOf(wakeUps.toArray(new CompletableFuture<?>[wakeUps.size()])));
+
+            if (shortCircuiting && !cancelled && firstFailure.isDone()) {
+                cancelled = true;
+                int cancelledJobs = 0;
+                for (PositionExecution execution : runningPositions.values()) {
+                    cancelledJobs += cancelJobs(execution.jobs);
+                }
+                if (log.isDebugEnabled()) { log.debug(firstFailure.join() + " failed, cancelled " + cancelledJobs + " job(s) not started yet"); }
+            }
+
+            for (Iterator<Map.Entry<Integer, PositionExecution>> it = runningPositions.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, PositionExecution> entry = it.next();
+                if (!entry.getValue().all.isDone())
+                    continue;
+                it.remove();
+
+                Integer positionKey = entry.getKey();
+                JobsExecutionReport report = buildReport(entry.getValue().jobs);
+                completedPositions.add(positionKey);
+                if (report.getExceptions().size() > 0) {
+                    if (log.isDebugEnabled()) { log.debug(report.getExceptions().size() + " error(s) happened during execution of position '" + positionKey + "'"); }
+                    positionErrorReports.add(report);
+                } else {
+                    if (log.isDebugEnabled()) { log.debug("ran " + entry.getValue().jobs.size() + " job(s) for position '" + positionKey + "'"); }
+                }
+            }
         }
+
+        return positionErrorReports;
+    }
+
+    private static List<XAResourceHolderState> getResourcesForPosition(XAResourceManager resourceManager, Integer positionKey, boolean reverse) {
+        if (reverse)
+            return resourceManager.getReverseOrderResourcesForPosition(positionKey);
+        else
+            return resourceManager.getNaturalOrderResourcesForPosition(positionKey);
     }
 
     private JobsExecutionReport runJobsForPosition(List<XAResourceHolderState> resources) {
-        List<Job> jobs = new ArrayList<Job>();
-        List<Exception> exceptions = new ArrayList<Exception>();
-        List<XAResourceHolderState> errorResources = new ArrayList<XAResourceHolderState>();
+        List<Job> jobs = createJobs(resources);
+        if (!jobs.isEmpty()) {
+            CompletableFuture<Job> firstFailure = new CompletableFuture<Job>();
+            join(jobs, submitJobs(jobs, firstFailure), firstFailure);
+        }
+        return buildReport(jobs);
+    }
+
+    private List<Job> createJobs(List<XAResourceHolderState> resources) {
+        List<Job> jobs = new ArrayList<Job>(resources.size());
 
-        // start threads
         for (XAResourceHolderState resource : resources) {
             if (!isParticipating(resource)) {
                 if (log.isDebugEnabled()) { log.debug("skipping not participating resource " + resource); }
                 continue;
             }
 
-            Job job = createJob(resource);
-            Object future = executor.submit(job);
-            job.setFuture(future);
-            jobs.add(job);
+            jobs.add(createJob(resource));
         }
 
-        // wait for threads to finish and check results
+        return jobs;
+    }
+
+    private JobsExecutionReport buildReport(List<Job> jobs) {
+        List<Exception> exceptions = new ArrayList<Exception>();
+        List<XAResourceHolderState> errorResources = new ArrayList<XAResourceHolderState>();
+
+        // check results
         for (Job job : jobs) {
-            Object future = job.getFuture();
-            while (!executor.isDone(future)) {
-                executor.waitFor(future, 1000L);
+            if (job.isCancelled()) {
+                if (log.isDebugEnabled()) { log.debug("skipped " + job + " cancelled after an earlier failure"); }
+                continue;
+            }
+            if (deferredJobs.contains(job)) {
+                if (log.isDebugEnabled()) { log.debug("skipped " + job + " left to recovery"); }
+                continue;
             }
 
             XAException xaException = job.getXAException();
@@ -149,6 +318,207 @@ public abstract class AbstractPhaseEngine {
         return new JobsExecutionReport(exceptions, errorResources);
     }
 
+    /**
+     * Submit jobs to the executor.
+     * @param jobs the jobs to run.
+     * @param firstFailure the future to complete with the first failed job if the phase is short-circuiting.
+     * @return a future completing once all jobs completed or got deferred.
+     */
+    private CompletableFuture<Void> submitJobs(List<Job> jobs, final CompletableFuture<Job> firstFailure) {
+        boolean shortCircuiting = isShortCircuiting();
+        CompletableFuture<?>[] completions = new CompletableFuture<?>[jobs.size()];
+
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            long submitted = System.nanoTime();
+            CompletableFuture<Job> completion = executor.submit(job);
+            if (shortCircuiting) {
+                completion.thenAccept(new Consumer<Job>() {
+                    @Override
+                    public void accept(Job completed) {
+                        if (completed.isFailed())
+                            firstFailure.complete(completed);
+                    }
+                });
+            }
+            completions[i] = track(job, completion, submitted);
+        }
+
+        return CompletableFuture.allOf(completions);
+    }
+
+    /**
+     * Track the latency of a job and give it a deadline when its resource's commands can be deferred.
+     * @param job the submitted job.
+     * @param completion the completion of the job.
+     * @param submitted the {@link System#nanoTime()} at which the job was submitted.
+     * @return a future completing once the job completed or got deferred.
+     */
+    private CompletableFuture<Job> track(Job job, CompletableFuture<Job> completion, final long submitted) {
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        if (!configuration.isAdaptive2PcTimeouts() || !isDeferrable(job.getResource()))
+            return completion;
+
+        final ResourceLatency latency = TransactionManagerServices.getPhaseStatistics().getResourceLatency(job.getResource().getUniqueName(), job.getPhase());
+        long timeout = computeTimeout(latency, configuration.getAdaptive2PcTimeoutMultiplier(), configuration.getAdaptive2PcMinTimeout());
+        completion.thenAccept(new Consumer<Job>() {
+            @Override
+            public void accept(Job completed) {
+                if (!completed.isCancelled())
+                    latency.record(System.nanoTime() - submitted);
+            }
+        });
+        if (timeout < 0L || completion.isDone())
+            return completion;
+
+        final CompletableFuture<Job> settled = new CompletableFuture<Job>();
+        completion.thenAccept(new Consumer<Job>() {
+            @Override
+            public void accept(Job completed) {
+                settled.complete(completed);
+            }
+        });
+        deadlines.add(new Deadline(job, settled, submitted + TimeUnit.MILLISECONDS.toNanos(timeout), timeout));
+        return settled;
+    }
+
+    /**
+     * Compute the deadline of a command from the latency of the previous commands of its resource.
+     * @param latency the latency of the previous commands.
+     * @param multiplier the factor applied to the usual latency.
+     * @param minTimeout the shortest deadline in milliseconds.
+     * @return the deadline in milliseconds, -1 if too few commands were executed yet to compute it.
+     */
+    static long computeTimeout(ResourceLatency latency, int multiplier, int minTimeout) {
+        if (latency.getCount() < DEADLINE_WARMUP_COMMANDS)
+            return -1L;
+        long usualMicros = Math.max(latency.getEwmaMicros(), latency.getP99Micros());
+        return Math.max(minTimeout, usualMicros * multiplier / 1000L);
+    }
+
+    /**
+     * Wait for a future to complete, deferring the jobs whose deadline passes in the meantime.
+     * @param future the future to wait for, it must complete once all the jobs with a deadline got deferred.
+     */
+    private void await(CompletableFuture<?> future) {
+        boolean interrupted = false;
+        try {
+            while (!future.isDone()) {
+                Deadline next = null;
+                for (Deadline deadline : deadlines) {
+                    if (!deadline.settled.isDone() && (next == null || deadline.nanos < next.nanos))
+                        next = deadline;
+                }
+                if (next == null) {
+                    future.join();
+                    return;
+                }
+
+                long remaining = next.nanos - System.nanoTime();
+                if (remaining > 0L) {
+                    try {
+                        future.get(remaining, TimeUnit.NANOSECONDS);
+                        return;
+                    } catch (TimeoutException ex) {
+                        // a deadline passed
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                        continue;
+                    } catch (ExecutionException ex) {
+                        return;
+                    }
+                }
+                deferExpiredJobs();
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deferExpiredJobs() {
+        long now = System.nanoTime();
+        for (Deadline deadline : deadlines) {
+            if (deadline.settled.isDone() || deadline.nanos - now > 0L)
+                continue;
+
+            Job job = deadline.job;
+            deferredJobs.add(job);
+            TransactionManagerServices.getPhaseStatistics().jobDeferred();
+            log.warn(job + " did not complete within " + deadline.timeout + "ms, leaving its transaction branch to the recovery service");
+
+            // the connection must not be reused while the command is still running on it
+            XAResourceHolder resourceHolder = job.getResource().getXAResourceHolder();
+            if (resourceHolder instanceof AbstractXAStatefulHolder)
+                ((AbstractXAStatefulHolder<?>) resourceHolder).setPendingCompletion(job.getCompletion());
+            // nor must the recovery service complete the branch while the command is still running
+            final BitronixTransactionManager transactionManager = TransactionManagerServices.getTransactionManager();
+            final Uid gtrid = job.getResource().getXid().getGlobalTransactionIdUid();
+            transactionManager.registerDeferredCommand(gtrid);
+            job.getCompletion().thenAccept(new Consumer<Job>() {
+                @Override
+                public void accept(Job completed) {
+                    transactionManager.unregisterDeferredCommand(gtrid);
+                    if (completed.isFailed())
+                        log.warn("deferred " + completed + " failed, the recovery service will complete its transaction branch");
+                    else if (log.isDebugEnabled())
+                        log.debug("deferred " + completed + " completed");
+                }
+            });
+            deadline.settled.complete(job);
+        }
+    }
+
+    /**
+     * Wait for the completion of the submitted jobs of a position. The calling thread is woken up as soon as the last
+     * job completes or, if the phase is short-circuiting, as soon as the first job fails. In the latter case the jobs
+     * still queued in the executor are cancelled and only the running ones are waited for, so that no command is still
+     * being executed on a resource when this method returns, except the deferred ones.
+     * @param jobs the submitted jobs.
+     * @param all the future completing once all jobs completed.
+     * @param firstFailure the future completed with the first failed job.
+     */
+    private void join(List<Job> jobs, CompletableFuture<Void> all, CompletableFuture<Job> firstFailure) {
+        if (isShortCircuiting()) {
+            await(CompletableFuture.anyOf(all, firstFailure));
+            if (!all.isDone()) {
+                int cancelled = cancelJobs(jobs);
+                if (log.isDebugEnabled()) { log.debug(firstFailure.join() + " failed, cancelled " + cancelled + " job(s) not started yet"); }
+            }
+        }
+        await(all);
+    }
+
+    private static int cancelJobs(List<Job> jobs) {
+        int cancelled = 0;
+        for (Job job : jobs) {
+            if (job.cancel())
+                cancelled++;
+        }
+        return cancelled;
+    }
+
+    /**
+     * Determine if the first failing job makes the whole phase fail, in which case the jobs still queued in the
+     * executor when it fails get cancelled.
+     * @return true if the phase can stop at the first failure, false if every participating resource must get the
+     * phase command.
+     */
+    protected boolean isShortCircuiting() {
+        return false;
+    }
+
+    /**
+     * Determine if the command of the phase on a resource can be left to the recovery service when it does not complete
+     * before its deadline.
+     * @param xaResourceHolderState the resource to check.
+     * @return true if the resource's command can be deferred to recovery, false if it must always be waited for.
+     * @see bitronix.tm.Configuration#isAdaptive2PcTimeouts()
+     */
+    protected boolean isDeferrable(XAResourceHolderState xaResourceHolderState) {
+        return false;
+    }
+
     /**
      * Determine if a resource is participating in the phase or not. A participating resource gets
      * a job created to execute the phase's command on it.
@@ -179,27 +549,72 @@ public abstract class AbstractPhaseEngine {
         }
     }
 
-    protected static Set<String> collectResourcesUniqueNames(List<XAResourceHolderState> resources) {
-        Set<String> uniqueNames = new HashSet<String>();
+    /**
+     * Change the status of a transaction.
+     * @param transaction the transaction.
+     * @param status the new status.
+     * @param logged true if the status must be logged to the journal, false if recovery can never need it.
+     * @throws BitronixSystemException if the status cannot be logged.
+     */
+    protected static void setStatus(BitronixTransaction transaction, int status, boolean logged) throws BitronixSystemException {
+        if (logged)
+            transaction.setStatus(status);
+        else
+            transaction.setUnloggedStatus(status);
+    }
 
+    protected static void collectResourcesUniqueNames(List<XAResourceHolderState> resources, Set<String> uniqueNames) {
         for (XAResourceHolderState resourceHolderState : resources) {
             uniqueNames.add(resourceHolderState.getUniqueName());
         }
-
-        return uniqueNames;
     }
 
+    /**
+     * Collect the enlisted resources which are not interested in the phase.
+     * @param allResources all the enlisted resources.
+     * @param interestedResources the interested resources, all of them enlisted.
+     * @return the resources of allResources not in interestedResources.
+     */
     protected static List<XAResourceHolderState> collectNotInterestedResources(List<XAResourceHolderState> allResources, List<XAResourceHolderState> interestedResources) {
-        List<XAResourceHolderState> result = new ArrayList<XAResourceHolderState>();
+        if (interestedResources.size() >= allResources.size())
+            return Collections.emptyList();
+
+        Set<XAResourceHolderState> interested = Collections.newSetFromMap(new IdentityHashMap<XAResourceHolderState, Boolean>(interestedResources.size() * 2));
+        interested.addAll(interestedResources);
 
+        List<XAResourceHolderState> result = new ArrayList<XAResourceHolderState>(allResources.size() - interestedResources.size());
         for (XAResourceHolderState resourceHolderState : allResources) {
-            if (!CollectionUtils.containsByIdentity(interestedResources, resourceHolderState))
+            if (!interested.contains(resourceHolderState))
                 result.add(resourceHolderState);
         }
 
         return result;
     }
 
+    private final static class Deadline {
+        private final Job job;
+        private final CompletableFuture<Job> settled;
+        private final long nanos;
+        private final long timeout;
+
+        private Deadline(Job job, CompletableFuture<Job> settled, long nanos, long timeout) {
+            this.job = job;
+            this.settled = settled;
+            this.nanos = nanos;
+            this.timeout = timeout;
+        }
+    }
+
+    private final static class PositionExecution {
+        private final List<Job> jobs;
+        private final CompletableFuture<Void> all;
+
+        private PositionExecution(List<Job> jobs, CompletableFuture<Void> all) {
+            this.jobs = jobs;
+            this.all = all;
+        }
+    }
+
     private final static class JobsExecutionReport {
         private final List<Exception> exceptions;
         private final List<XAResourceHolderState> resources;
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.internal.XAResourceHolderState;
+import bitronix.tm.utils.ManagementRegistrar;
+import bitronix.tm.utils.Service;
+import bitronix.tm.utils.Uid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.XAException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group-commit delay of the phase 2 commits, in the spirit of PostgreSQL's <code>commit_delay</code> and
+ * <code>commit_siblings</code> settings.
+ * <p>XA offers no way to commit several transaction branches with a single call, so every branch is still committed
+ * with its own {@link javax.transaction.xa.XAResource} call by the thread committing it. What this class does is
+ * delaying a commit on a resource for a short while when the branches of other transactions are about to be committed
+ * on the same resource, so that the resource receives these commits together and can group the writes of its own log.
+ * The delayed commits are then executed in parallel, a slow commit never delays the other branches of its window.</p>
+ * <p>A transaction announces the resources it is going to commit on with {@link #expect(Uid, Collection)} before
+ * preparing them. The first branch committing on a resource opens a window only if branches of other transactions are
+ * expected on that resource and not committing yet, the window closes as soon as all of them joined it, the window is
+ * full or the delay elapsed. Under light load no other branch is expected and commits are never delayed.</p>
+ *
+ * @see bitronix.tm.Configuration#isCommitCoalescing()
+ *
+ * @author Ludovic Orban
+ */
+public class CommitCoalescer implements Service, CommitCoalescerMBean {
+
+    private final static Logger log = LoggerFactory.getLogger(CommitCoalescer.class);
+
+    private final ConcurrentMap<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
+    private final ConcurrentMap<Uid, Map<String, Integer>> expectedBranches = new ConcurrentHashMap<Uid, Map<String, Integer>>();
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicInteger waitingCommits = new AtomicInteger();
+    private final String jmxName;
+    private volatile boolean shutdown;
+
+    public CommitCoalescer() {
+        this(TransactionManagerServices.getConfiguration());
+    }
+
+    private CommitCoalescer(Configuration configuration) {
+        this(configuration.getCommitCoalescingWindow(), configuration.getCommitCoalescingMaxBatch(), configuration.getServerId());
+    }
+
+    CommitCoalescer(int windowMicros, int maxBatchSize, String serverId) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("commit coalescer batches must hold at least one commit, not " + maxBatchSize);
+
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxBatchSize = maxBatchSize;
+        this.jmxName = "bitronix.tm:type=CommitCoalescer,ServerId=" + ManagementRegistrar.makeValidName(serverId == null ? "" : serverId);
+        ManagementRegistrar.register(jmxName, this);
+    }
+
+    /**
+     * Announce the branches a transaction is about to commit, the commits of other transactions on the same resources
+     * may then wait for them.
+     * @param gtrid the GTRID of the transaction.
+     * @param uniqueNames the unique names of the resources of the branches, once per branch.
+     */
+    public void expect(Uid gtrid, Collection<String> uniqueNames) {
+        Map<String, Integer> branches = new HashMap<String, Integer>();
+        for (String uniqueName : uniqueNames) {
+            Integer count = branches.get(uniqueName);
+            branches.put(uniqueName, count == null ? 1 : count + 1);
+        }
+        if (expectedBranches.putIfAbsent(gtrid, branches) != null)
+            throw new IllegalStateException("branches of transaction " + gtrid + " are already expected");
+        for (Map.Entry<String, Integer> entry : branches.entrySet()) {
+            getResource(entry.getKey()).expect(entry.getValue());
+        }
+    }
+
+    /**
+     * Stop expecting the branches of a transaction, if that did not happen already when its first branch got
+     * committed.
+     * @param gtrid the GTRID of the transaction.
+     */
+    public void forget(Uid gtrid) {
+        arrived(gtrid, null);
+    }
+
+    /**
+     * Commit a prepared transaction branch, possibly delayed to be committed with branches of other transactions.
+     * @param resourceHolder the transaction branch to commit.
+     * @throws XAException if the resource failed to commit the branch.
+     */
+    public void commit(XAResourceHolderState resourceHolder) throws XAException {
+        String uniqueName = resourceHolder.getUniqueName();
+        boolean expected = arrived(resourceHolder.getXid().getGlobalTransactionIdUid(), uniqueName);
+        Resource resource = getResource(uniqueName);
+
+        if (!shutdown && windowNanos > 0L && maxBatchSize > 1) {
+            waitingCommits.incrementAndGet();
+            try {
+                resource.awaitWindow(expected);
+            } finally {
+                waitingCommits.decrementAndGet();
+            }
+        } else {
+            if (expected)
+                resource.unexpect(1);
+            recordBatch(1);
+        }
+
+        commits.incrementAndGet();
+        XAResourceWrapper xar = new XAResourceWrapper(resourceHolder.getXAResource());
+        xar.commit(resourceHolder.getTransaction(), resourceHolder.getXid(), false);
+    }
+
+    /**
+     * Stop expecting the branches of a transaction once its first branch gets committed. Its other branches are
+     * committed by the same thread or concurrently with it, so they may still join open windows but nobody waits for
+     * them: a window waiting for a transaction delayed in the window of another resource would otherwise wait for
+     * nothing.
+     * @param gtrid the GTRID of the transaction.
+     * @param uniqueName the unique name of the resource of the committing branch, null if none.
+     * @return true if a branch on that resource was expected, its expectation is then left to the caller to consume.
+     */
+    private boolean arrived(Uid gtrid, String uniqueName) {
+        Map<String, Integer> branches = expectedBranches.remove(gtrid);
+        if (branches == null)
+            return false;
+        boolean expected = false;
+        for (Map.Entry<String, Integer> entry : branches.entrySet()) {
+            int count = entry.getValue();
+            if (entry.getKey().equals(uniqueName)) {
+                expected = true;
+                count--;
+            }
+            if (count > 0)
+                getResource(entry.getKey()).unexpect(count);
+        }
+        return expected;
+    }
+
+    private Resource getResource(String uniqueName) {
+        Resource resource = resources.get(uniqueName);
+        if (resource == null) {
+            resource = new Resource(uniqueName);
+            Resource existing = resources.putIfAbsent(uniqueName, resource);
+            if (existing != null)
+                resource = existing;
+        }
+        return resource;
+    }
+
+    private void recordBatch(int size) {
+        batches.incrementAndGet();
+        long largest = largestBatch.get();
+        while (size > largest && !largestBatch.compareAndSet(largest, size)) {
+            largest = largestBatch.get();
+        }
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.get();
+    }
+
+    @Override
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    @Override
+    public int getWaitingCommits() {
+        return waitingCommits.get();
+    }
+
+    /**
+     * Close the open windows. Branches committed after shutdown are committed right away.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        ManagementRegistrar.unregister(jmxName);
+        for (Resource resource : resources.values()) {
+            resource.closeWindow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "a CommitCoalescer with " + expectedBranches.size() + " expected transaction(s), " + commits.get() + " commit(s) in " + batches.get() + " batch(es)";
+    }
+
+    /**
+     * The commits expected on a resource and the window of the branches currently delayed on it.
+     */
+    private final class Resource {
+        private final String uniqueName;
+        // guarded by this
+        private int expected;
+        private Window window;
+
+        private Resource(String uniqueName) {
+            this.uniqueName = uniqueName;
+        }
+
+        private synchronized void expect(int count) {
+            expected += count;
+        }
+
+        private synchronized void unexpect(int count) {
+            expected -= count;
+            if (expected <= 0 && window != null) {
+                // nobody else is going to join
+                closeWindow();
+            }
+        }
+
+        /**
+         * Join the open window, or open one if other branches are expected, and wait for it to close.
+         * @param wasExpected true if the arriving branch had been expected.
+         */
+        private synchronized void awaitWindow(boolean wasExpected) {
+            if (wasExpected)
+                expected--;
+
+            Window joined = window;
+            if (joined != null) {
+                joined.size++;
+                if (joined.size >= maxBatchSize || expected <= 0)
+                    closeWindow();
+                awaitClosed(joined);
+            } else if (expected > 0 && !shutdown) {
+                Window opened = new Window();
+                window = opened;
+                lead(opened);
+            } else {
+                // no other committer in flight on this resource
+                recordBatch(1);
+            }
+        }
+
+        /**
+         * Wait for the expected branches to join the window opened by the calling thread, then close it.
+         */
+        private void lead(Window opened) {
+            boolean interrupted = false;
+            long deadline = System.nanoTime() + windowNanos;
+            try {
+                while (!opened.closed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L)
+                        break;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (window == opened)
+                    closeWindow();
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Wait for the window joined by the calling thread to close.
+         */
+        private void awaitClosed(Window joined) {
+            boolean interrupted = false;
+            // the window only stays open for a short while, interrupting the thread must not abandon the commit
+            while (!joined.closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private synchronized void closeWindow() {
+            Window closing = window;
+            if (closing == null)
+                return;
+            window = null;
+            closing.closed = true;
+            recordBatch(closing.size);
+            if (log.isDebugEnabled()) { log.debug("committing a batch of " + closing.size + " branch(es) on resource " + uniqueName); }
+            notifyAll();
+        }
+    }
+
+    /**
+     * The branches committed together on a resource, guarded by the monitor of their {@link Resource}.
+     */
+    private final static class Window {
+        private int size = 1;
+        private boolean closed;
+    }
+}
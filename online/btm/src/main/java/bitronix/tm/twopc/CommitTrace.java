@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.utils.Uid;
+
+/**
+ * Time spent by a transaction in each stage of its commit.
+ * <p>Stages are timed back to back by the committing thread: each call to {@link #stageCompleted(int)} accounts the
+ * time elapsed since the previous one to the completed stage. The time spent writing to the journal is accounted
+ * separately under {@link #JOURNAL} and is part of the {@link #PREPARE} and {@link #COMMIT} stages too.</p>
+ * <p>A trace is filled by the committing thread only and must not be modified once handed to the
+ * {@link CommitTracer}.</p>
+ *
+ * @see bitronix.tm.Configuration#isCommitTracing()
+ *
+ * @author Ludovic Orban
+ */
+public final class CommitTrace {
+
+    public final static int BEFORE_COMPLETION = 0;
+    public final static int DELISTMENT = 1;
+    public final static int PREPARE = 2;
+    public final static int COMMIT = 3;
+    public final static int AFTER_COMPLETION = 4;
+    public final static int JOURNAL = 5;
+
+    final static int STAGE_COUNT = 6;
+    private final static String[] STAGE_NAMES = { "beforeCompletion", "delistment", "prepare", "commit", "afterCompletion", "journal" };
+
+    private final Uid gtrid;
+    private final long[] stageNanos = new long[STAGE_COUNT];
+    private final long startNanos;
+    private long stageStartNanos;
+    private long totalNanos;
+    private boolean committed;
+
+    public CommitTrace(Uid gtrid) {
+        this.gtrid = gtrid;
+        this.startNanos = System.nanoTime();
+        this.stageStartNanos = startNanos;
+    }
+
+    /**
+     * Account the time elapsed since the previous stage completed to a stage.
+     * @param stage the completed stage.
+     */
+    public void stageCompleted(int stage) {
+        long now = System.nanoTime();
+        stageNanos[stage] += now - stageStartNanos;
+        stageStartNanos = now;
+    }
+
+    /**
+     * Start timing the next stage now, the time elapsed since the previous stage completed is not accounted to any.
+     */
+    public void stageSkipped() {
+        stageStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Account time spent writing to the journal.
+     * @param nanos the time spent in nanoseconds.
+     */
+    public void journalWritten(long nanos) {
+        stageNanos[JOURNAL] += nanos;
+    }
+
+    /**
+     * Stop timing the commit.
+     * @param committed true if the transaction committed, false if it rolled back or failed.
+     */
+    public void completed(boolean committed) {
+        this.totalNanos = System.nanoTime() - startNanos;
+        this.committed = committed;
+    }
+
+    /**
+     * Get the GTRID of the traced transaction.
+     * @return the GTRID of the traced transaction.
+     */
+    public Uid getGtrid() {
+        return gtrid;
+    }
+
+    /**
+     * Get the time spent in a stage.
+     * @param stage the stage, one of the constants of this class.
+     * @return the time spent in the stage in nanoseconds, 0 if it was not reached.
+     */
+    public long getStageNanos(int stage) {
+        return stageNanos[stage];
+    }
+
+    /**
+     * Get the time spent committing the transaction, from the start of the before completion stage to the end of the
+     * after completion stage.
+     * @return the time spent committing in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Check if the traced transaction committed.
+     * @return true if the transaction committed, false if it rolled back or failed.
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Get the name of a stage.
+     * @param stage the stage, one of the constants of this class.
+     * @return the name of the stage.
+     */
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("a CommitTrace of ").append(gtrid).append(committed ? " (committed)" : " (not committed)")
+                .append(" with total=").append(totalNanos / 1000L).append("us");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sb.append(", ").append(STAGE_NAMES[i]).append('=').append(stageNanos[i] / 1000L).append("us");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.internal.XAResourceHolderState;
+
+/**
+ * Listener notified of the timings collected by the {@link CommitTracer}.
+ * <p>Listeners are called on the thread that did the work being traced, right after it completed, so they must return
+ * quickly.</p>
+ *
+ * @author Ludovic Orban
+ */
+public interface CommitTraceListener {
+
+    /**
+     * Called when a transaction finished committing or failed to.
+     * @param trace the timings of the commit stages.
+     */
+    public void commitTraced(CommitTrace trace);
+
+    /**
+     * Called when a 2PC command was executed on a transaction branch.
+     * @param resourceHolder the transaction branch.
+     * @param phase the phase name, see {@link bitronix.tm.twopc.executor.Job#getPhase()}.
+     * @param nanos the time the XA call took in nanoseconds.
+     */
+    public void branchTraced(XAResourceHolderState resourceHolder, String phase, long nanos);
+
+}
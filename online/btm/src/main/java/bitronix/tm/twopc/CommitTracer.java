@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.internal.XAResourceHolderState;
+import bitronix.tm.utils.LatencyHistogram;
+import bitronix.tm.utils.ManagementRegistrar;
+import bitronix.tm.utils.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates the commit timings of all transactions into latency histograms, published via JMX, and forwards them to
+ * the registered {@link CommitTraceListener}s.
+ * <p>Two sets of histograms are kept: one per {@link CommitTrace} stage of the committed transactions and one per
+ * resource and phase for the XA calls executed on the transaction branches. Nothing is traced unless
+ * {@link bitronix.tm.Configuration#isCommitTracing()} is enabled.</p>
+ *
+ * @author Ludovic Orban
+ */
+public class CommitTracer implements Service, CommitTracerMBean {
+
+    private final static Logger log = LoggerFactory.getLogger(CommitTracer.class);
+
+    private final LatencyHistogram[] stageLatencies = new LatencyHistogram[CommitTrace.STAGE_COUNT];
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> branchLatencies = new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+    private final LongAdder failedCommits = new LongAdder();
+    private final List<CommitTraceListener> listeners = new CopyOnWriteArrayList<CommitTraceListener>();
+    private final String jmxName;
+
+    public CommitTracer() {
+        for (int i = 0; i < stageLatencies.length; i++) {
+            stageLatencies[i] = new LatencyHistogram();
+        }
+        String serverId = TransactionManagerServices.getConfiguration().getServerId();
+        this.jmxName = "bitronix.tm:type=CommitTracer,ServerId=" + ManagementRegistrar.makeValidName(serverId == null ? "" : serverId);
+        ManagementRegistrar.register(jmxName, this);
+    }
+
+    /**
+     * Register a listener notified of every traced commit and branch.
+     * @param listener the listener to register.
+     */
+    public void addListener(CommitTraceListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     * @param listener the listener to unregister.
+     */
+    public void removeListener(CommitTraceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Record the timings of a completed commit. Only the commits that succeeded are added to the histograms.
+     * @param trace the timings of the commit stages.
+     */
+    public void commitTraced(CommitTrace trace) {
+        if (trace.isCommitted()) {
+            for (int i = 0; i < stageLatencies.length; i++) {
+                stageLatencies[i].record(trace.getStageNanos(i));
+            }
+            totalLatency.record(trace.getTotalNanos());
+        } else {
+            failedCommits.increment();
+        }
+
+        for (CommitTraceListener listener : listeners) {
+            try {
+                listener.commitTraced(trace);
+            } catch (RuntimeException ex) {
+                log.warn("error in commit trace listener " + listener, ex);
+            }
+        }
+    }
+
+    /**
+     * Record the duration of a 2PC command executed on a transaction branch.
+     * @param resourceHolder the transaction branch.
+     * @param phase the phase name, see {@link bitronix.tm.twopc.executor.Job#getPhase()}.
+     * @param nanos the time the XA call took in nanoseconds.
+     */
+    public void branchTraced(XAResourceHolderState resourceHolder, String phase, long nanos) {
+        getBranchLatency(resourceHolder.getUniqueName(), phase).record(nanos);
+
+        for (CommitTraceListener listener : listeners) {
+            try {
+                listener.branchTraced(resourceHolder, phase, nanos);
+            } catch (RuntimeException ex) {
+                log.warn("error in commit trace listener " + listener, ex);
+            }
+        }
+    }
+
+    /**
+     * Get the histogram of the time spent in a commit stage by the committed transactions.
+     * @param stage the stage, one of the constants of {@link CommitTrace}.
+     * @return the histogram of the stage.
+     */
+    public LatencyHistogram getStageLatency(int stage) {
+        return stageLatencies[stage];
+    }
+
+    /**
+     * Get the histogram of the time spent committing by the committed transactions.
+     * @return the histogram of the commit durations.
+     */
+    public LatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+
+    /**
+     * Get the histogram of the 2PC commands of a phase executed on a resource.
+     * @param uniqueName the resource's unique name.
+     * @param phase the phase name, see {@link bitronix.tm.twopc.executor.Job#getPhase()}.
+     * @return the histogram of the phase commands on the resource.
+     */
+    public LatencyHistogram getBranchLatency(String uniqueName, String phase) {
+        ConcurrentMap<String, LatencyHistogram> phases = branchLatencies.get(uniqueName);
+        if (phases == null) {
+            phases = new ConcurrentHashMap<String, LatencyHistogram>();
+            ConcurrentMap<String, LatencyHistogram> existing = branchLatencies.putIfAbsent(uniqueName, phases);
+            if (existing != null)
+                phases = existing;
+        }
+
+        LatencyHistogram latency = phases.get(phase);
+        if (latency == null) {
+            latency = new LatencyHistogram();
+            LatencyHistogram existing = phases.putIfAbsent(phase, latency);
+            if (existing != null)
+                latency = existing;
+        }
+        return latency;
+    }
+
+    @Override
+    public long getTracedCommits() {
+        return totalLatency.getCount();
+    }
+
+    @Override
+    public long getFailedCommits() {
+        return failedCommits.sum();
+    }
+
+    @Override
+    public String getStageLatencies() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("total: ").append(totalLatency);
+        for (int i = 0; i < stageLatencies.length; i++) {
+            sb.append("; ").append(CommitTrace.getStageName(i)).append(": ").append(stageLatencies[i]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getBranchLatencies() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> resource : new TreeMap<String, ConcurrentMap<String, LatencyHistogram>>(branchLatencies).entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> phase : new TreeMap<String, LatencyHistogram>(resource.getValue()).entrySet()) {
+                if (sb.length() > 0)
+                    sb.append("; ");
+                sb.append(resource.getKey()).append(' ').append(phase.getKey()).append(": ").append(phase.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram stageLatency : stageLatencies) {
+            stageLatency.reset();
+        }
+        totalLatency.reset();
+        branchLatencies.clear();
+        failedCommits.reset();
+    }
+
+    @Override
+    public void shutdown() {
+        ManagementRegistrar.unregister(jmxName);
+    }
+
+    @Override
+    public String toString() {
+        return "a CommitTracer with " + getTracedCommits() + " traced commit(s), " + getFailedCommits() + " failed commit(s) and " +
+                listeners.size() + " listener(s)";
+    }
+}
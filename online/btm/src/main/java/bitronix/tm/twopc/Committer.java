@@ -27,6 +27,7 @@ import bitronix.tm.internal.XAResourceManager;
 import bitronix.tm.twopc.executor.Executor;
 import bitronix.tm.twopc.executor.Job;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.Scheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,9 +37,9 @@ import javax.transaction.Status;
 import javax.transaction.xa.XAException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Phase 2 Commit logic engine.
@@ -50,7 +51,9 @@ public final class Committer extends AbstractPhaseEngine {
     private final static Logger log = LoggerFactory.getLogger(Committer.class);
 
     private volatile boolean onePhase;
-    private final List<XAResourceHolderState> interestedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
+    private volatile List<XAResourceHolderState> interestedResources = Collections.emptyList();
+    // true when all the enlisted resources are interested, which spares looking them up
+    private volatile boolean allInterested;
     // this list has to be thread-safe as the CommitJobs can be executed in parallel (when async 2PC is configured)
     private final List<XAResourceHolderState> committedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
 
@@ -70,25 +73,40 @@ public final class Committer extends AbstractPhaseEngine {
      */
     public void commit(BitronixTransaction transaction, List<XAResourceHolderState> interestedResources) throws HeuristicMixedException, HeuristicRollbackException, BitronixSystemException, BitronixRollbackException {
         XAResourceManager resourceManager = transaction.getResourceManager();
+        boolean skipUnneededStatusLogs = TransactionManagerServices.getConfiguration().isSkipUnneededStatusLogs();
         if (resourceManager.size() == 0) {
-            transaction.setStatus(Status.STATUS_COMMITTING); //TODO: there is a disk force here that could be avoided
-            transaction.setStatus(Status.STATUS_COMMITTED);
+            setStatus(transaction, Status.STATUS_COMMITTING, !skipUnneededStatusLogs);
+            setStatus(transaction, Status.STATUS_COMMITTED, !skipUnneededStatusLogs);
+            if (skipUnneededStatusLogs)
+                TransactionManagerServices.getPhaseStatistics().readOnlyCommitted();
             if (log.isDebugEnabled()) { log.debug("phase 2 commit succeeded with no interested resource"); }
             return;
         }
 
-        transaction.setStatus(Status.STATUS_COMMITTING);
+        if (skipUnneededStatusLogs && interestedResources.isEmpty()) {
+            // all resources voted read-only: there is nothing to commit nor to recover, hence nothing to force
+            transaction.setUnloggedStatus(Status.STATUS_COMMITTING);
+            TransactionManagerServices.getPhaseStatistics().forceSkipped();
+            transaction.setUnloggedStatus(Status.STATUS_COMMITTED);
+            TransactionManagerServices.getPhaseStatistics().readOnlyCommitted();
+            if (log.isDebugEnabled()) { log.debug("phase 2 commit skipped, all " + resourceManager.size() + " resource(s) voted read-only"); }
+            return;
+        }
 
-        this.interestedResources.clear();
-        this.interestedResources.addAll(interestedResources);
+        this.interestedResources = interestedResources;
+        this.allInterested = interestedResources.size() >= resourceManager.size();
         this.onePhase = resourceManager.size() == 1;
 
+        // a resource committed in one phase is never in-doubt, recovery cannot need the statuses
+        boolean logStatuses = !(onePhase && skipUnneededStatusLogs);
+        setStatus(transaction, Status.STATUS_COMMITTING, logStatuses);
+
         try {
             executePhase(resourceManager, true);
         } catch (PhaseException ex) {
             logFailedResources(ex);
             if (onePhase) {
-                transaction.setStatus(Status.STATUS_ROLLEDBACK);
+                setStatus(transaction, Status.STATUS_ROLLEDBACK, logStatuses);
                 throw new BitronixRollbackException("transaction failed during 1PC commit of " + transaction, ex);
             } else {
                 transaction.setStatus(Status.STATUS_UNKNOWN);
@@ -103,10 +121,11 @@ public final class Committer extends AbstractPhaseEngine {
         // ones should be picked up by the recoverer.
         // Not interested resources have to be included as well since they returned XA_RDONLY and they
         // don't participate in phase 2: the TX succeded for them.
-        Set<String> committedAndNotInterestedUniqueNames = new HashSet<String>();
-        committedAndNotInterestedUniqueNames.addAll(collectResourcesUniqueNames(committedResources));
+        // naturally sorted so that the journal does not have to copy it
+        Set<String> committedAndNotInterestedUniqueNames = new TreeSet<String>();
+        collectResourcesUniqueNames(committedResources, committedAndNotInterestedUniqueNames);
         List<XAResourceHolderState> notInterestedResources = collectNotInterestedResources(resourceManager.getAllResources(), interestedResources);
-        committedAndNotInterestedUniqueNames.addAll(collectResourcesUniqueNames(notInterestedResources));
+        collectResourcesUniqueNames(notInterestedResources, committedAndNotInterestedUniqueNames);
 
         if (log.isDebugEnabled()) {
             List<XAResourceHolderState> committedAndNotInterestedResources = new ArrayList<XAResourceHolderState>();
@@ -116,7 +135,12 @@ public final class Committer extends AbstractPhaseEngine {
             log.debug("phase 2 commit succeeded on resources " + Decoder.collectResourcesNames(committedAndNotInterestedResources));
         }
 
-        transaction.setStatus(Status.STATUS_COMMITTED, committedAndNotInterestedUniqueNames);
+        if (logStatuses) {
+            transaction.setStatus(Status.STATUS_COMMITTED, committedAndNotInterestedUniqueNames);
+        } else {
+            transaction.setUnloggedStatus(Status.STATUS_COMMITTED);
+            TransactionManagerServices.getPhaseStatistics().onePhaseCommitted();
+        }
     }
 
     private void throwException(String message, PhaseException phaseException, int totalResourceCount) throws HeuristicMixedException, HeuristicRollbackException {
@@ -165,8 +189,19 @@ public final class Committer extends AbstractPhaseEngine {
         return new CommitJob(resourceHolder);
     }
 
+    /**
+     * A prepared resource that does not emulate XA can be committed by the recovery service. One-phase commits have
+     * no prepared resource.
+     */
+    @Override
+    protected boolean isDeferrable(XAResourceHolderState xaResourceHolderState) {
+        return !onePhase && xaResourceHolderState.getTwoPcOrderingPosition() != Scheduler.ALWAYS_LAST_POSITION;
+    }
+
     @Override
     protected boolean isParticipating(XAResourceHolderState xaResourceHolderState) {
+        if (allInterested)
+            return true;
         for (XAResourceHolderState resourceHolderState : interestedResources) {
             if (xaResourceHolderState == resourceHolderState)
                 return true;
@@ -181,6 +216,11 @@ public final class Committer extends AbstractPhaseEngine {
             super(resourceHolder);
         }
 
+        @Override
+        public String getPhase() {
+            return "commit";
+        }
+
         @Override
         public XAException getXAException() {
             return xaException;
@@ -205,11 +245,16 @@ public final class Committer extends AbstractPhaseEngine {
         private void commitResource(XAResourceHolderState resourceHolder, boolean onePhase) throws XAException {
             try {
                 if (log.isDebugEnabled()) { log.debug("committing resource " + resourceHolder + (onePhase ? " (with one-phase optimization)" : "")); }
-                XAResourceWrapper xar = new XAResourceWrapper(resourceHolder.getXAResource());
-                if(resourceHolder.getTransaction() == null) {
-                    System.out.println("Transaction is null!!");
+                if (!onePhase && resourceHolder.getTwoPcOrderingPosition() != Scheduler.ALWAYS_LAST_POSITION &&
+                        TransactionManagerServices.getConfiguration().isCommitCoalescing()) {
+                    TransactionManagerServices.getCommitCoalescer().commit(resourceHolder);
+                } else {
+                    XAResourceWrapper xar = new XAResourceWrapper(resourceHolder.getXAResource());
+                    if(resourceHolder.getTransaction() == null) {
+                        System.out.println("Transaction is null!!");
+                    }
+                    xar.commit(resourceHolder.getTransaction(), resourceHolder.getXid(), onePhase);
                 }
-                xar.commit(resourceHolder.getTransaction(), resourceHolder.getXid(), onePhase);
                 committedResources.add(resourceHolder);
                 if (log.isDebugEnabled()) { log.debug("committed resource " + resourceHolder); }
             } catch (XAException ex) {
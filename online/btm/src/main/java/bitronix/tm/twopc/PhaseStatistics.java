@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.ManagementRegistrar;
+import bitronix.tm.utils.Service;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the two phase commit engine, published via JMX.
+ * <p>They show how many transactions benefited from the read-only and one-phase optimizations and how much journal
+ * activity these saved. Nothing is counted unless these optimizations are enabled.</p>
+ * <p>The latency of the phase commands on each resource is tracked here as well as it drives the adaptive phase
+ * deadlines.</p>
+ *
+ * @see bitronix.tm.Configuration#isSkipUnneededStatusLogs()
+ * @see bitronix.tm.Configuration#isAdaptive2PcTimeouts()
+ *
+ * @author Ludovic Orban
+ */
+public class PhaseStatistics implements Service, PhaseStatisticsMBean {
+
+    private final AtomicLong readOnlyCommits = new AtomicLong();
+    private final AtomicLong onePhaseCommits = new AtomicLong();
+    private final AtomicLong unloggedStatuses = new AtomicLong();
+    private final AtomicLong skippedForces = new AtomicLong();
+    private final AtomicLong deferredJobs = new AtomicLong();
+    private final ConcurrentMap<String, ResourceLatency> resourceLatencies = new ConcurrentHashMap<String, ResourceLatency>();
+    private final String jmxName;
+
+    public PhaseStatistics() {
+        String serverId = TransactionManagerServices.getConfiguration().getServerId();
+        this.jmxName = "bitronix.tm:type=PhaseStatistics,ServerId=" + ManagementRegistrar.makeValidName(serverId == null ? "" : serverId);
+        ManagementRegistrar.register(jmxName, this);
+    }
+
+    /**
+     * Record a transaction committed without any resource to commit in phase 2: no resource was enlisted or all of
+     * them voted {@link javax.transaction.xa.XAResource#XA_RDONLY}.
+     */
+    public void readOnlyCommitted() {
+        readOnlyCommits.incrementAndGet();
+    }
+
+    /**
+     * Record a transaction committed with the one-phase optimization.
+     */
+    public void onePhaseCommitted() {
+        onePhaseCommits.incrementAndGet();
+    }
+
+    /**
+     * Record a transaction status change that was not logged to the journal.
+     */
+    public void statusNotLogged() {
+        unloggedStatuses.incrementAndGet();
+    }
+
+    /**
+     * Record a journal force that was not needed.
+     */
+    public void forceSkipped() {
+        skippedForces.incrementAndGet();
+    }
+
+    /**
+     * Record a phase command left to recovery because it did not complete before its deadline.
+     */
+    public void jobDeferred() {
+        deferredJobs.incrementAndGet();
+    }
+
+    /**
+     * Get the latency of the commands of a phase on a resource.
+     * @param uniqueName the resource's unique name.
+     * @param phase the phase name, see {@link bitronix.tm.twopc.executor.Job#getPhase()}.
+     * @return the latency of the phase commands on the resource.
+     */
+    public ResourceLatency getResourceLatency(String uniqueName, String phase) {
+        String key = uniqueName + " " + phase;
+        ResourceLatency latency = resourceLatencies.get(key);
+        if (latency == null) {
+            latency = new ResourceLatency();
+            ResourceLatency existing = resourceLatencies.putIfAbsent(key, latency);
+            if (existing != null)
+                latency = existing;
+        }
+        return latency;
+    }
+
+    @Override
+    public long getReadOnlyCommits() {
+        return readOnlyCommits.get();
+    }
+
+    @Override
+    public long getOnePhaseCommits() {
+        return onePhaseCommits.get();
+    }
+
+    @Override
+    public long getUnloggedStatuses() {
+        return unloggedStatuses.get();
+    }
+
+    @Override
+    public long getSkippedForces() {
+        return skippedForces.get();
+    }
+
+    @Override
+    public long getDeferredJobs() {
+        return deferredJobs.get();
+    }
+
+    @Override
+    public String getResourceLatencies() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ResourceLatency> entry : new TreeMap<String, ResourceLatency>(resourceLatencies).entrySet()) {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        readOnlyCommits.set(0L);
+        onePhaseCommits.set(0L);
+        unloggedStatuses.set(0L);
+        skippedForces.set(0L);
+        deferredJobs.set(0L);
+    }
+
+    @Override
+    public void shutdown() {
+        ManagementRegistrar.unregister(jmxName);
+    }
+
+    @Override
+    public String toString() {
+        return "a PhaseStatistics with " + readOnlyCommits.get() + " read-only commit(s), " + onePhaseCommits.get() +
+                " one-phase commit(s), " + unloggedStatuses.get() + " unlogged status(es), " + skippedForces.get() + " skipped force(s), " +
+                deferredJobs.get() + " deferred job(s)";
+    }
+}
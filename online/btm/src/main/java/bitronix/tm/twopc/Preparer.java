@@ -61,7 +61,9 @@ public final class Preparer extends AbstractPhaseEngine {
      */
     public List<XAResourceHolderState> prepare(BitronixTransaction transaction) throws RollbackException, BitronixSystemException {
         XAResourceManager resourceManager = transaction.getResourceManager();
-        transaction.setStatus(Status.STATUS_PREPARING);
+        // resources only get prepared when there are at least two of them, recovery cannot need the statuses otherwise
+        boolean logStatuses = resourceManager.size() > 1 || !TransactionManagerServices.getConfiguration().isSkipUnneededStatusLogs();
+        setStatus(transaction, Status.STATUS_PREPARING, logStatuses);
         preparedResources.clear();
 
         if (resourceManager.size() == 0) {
@@ -70,7 +72,7 @@ public final class Preparer extends AbstractPhaseEngine {
             else
                 if (log.isDebugEnabled()) { log.debug("0 resource enlisted, no prepare needed"); }
 
-            transaction.setStatus(Status.STATUS_PREPARED);
+            setStatus(transaction, Status.STATUS_PREPARED, logStatuses);
             return preparedResources;
         }
 
@@ -80,7 +82,7 @@ public final class Preparer extends AbstractPhaseEngine {
 
             preparedResources.add(resourceHolder);
             if (log.isDebugEnabled()) { log.debug("1 resource enlisted, no prepare needed (1PC)"); }
-            transaction.setStatus(Status.STATUS_PREPARED);
+            setStatus(transaction, Status.STATUS_PREPARED, logStatuses);
             return preparedResources;
         }
 
@@ -91,7 +93,8 @@ public final class Preparer extends AbstractPhaseEngine {
             throwException("transaction failed during prepare of " + transaction, ex);
         }
 
-        transaction.setStatus(Status.STATUS_PREPARED);
+        // when all resources voted read-only, there is nothing left to commit nor to recover
+        setStatus(transaction, Status.STATUS_PREPARED, logStatuses && !preparedResources.isEmpty());
         if (log.isDebugEnabled()) { log.debug("successfully prepared " + preparedResources.size() + " resource(s)"); }
         return Collections.unmodifiableList(preparedResources);
     }
@@ -142,12 +145,25 @@ public final class Preparer extends AbstractPhaseEngine {
         return true;
     }
 
+    /**
+     * A single failed prepare rolls back the whole transaction, the remaining resources do not need to be prepared.
+     */
+    @Override
+    protected boolean isShortCircuiting() {
+        return true;
+    }
+
 
     private final class PrepareJob extends Job {
         public PrepareJob(XAResourceHolderState resourceHolder) {
             super(resourceHolder);
         }
 
+        @Override
+        public String getPhase() {
+            return "prepare";
+        }
+
         @Override
         public void execute() {
             try {
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.utils.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of a phase command on a resource, tracked as an exponentially weighted moving average and a 99th percentile.
+ * <p>The percentile is computed over the last two windows of {@value #WINDOW} samples so that it follows the
+ * resource when it gets faster again.</p>
+ *
+ * @author Ludovic Orban
+ */
+public final class ResourceLatency {
+
+    private final static int WINDOW = 1024;
+    private final static double EWMA_WEIGHT = 0.1;
+
+    private volatile LatencyHistogram current = new LatencyHistogram();
+    private volatile LatencyHistogram previous = new LatencyHistogram();
+    private final AtomicLong ewmaMicrosBits = new AtomicLong(Double.doubleToLongBits(-1.0));
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Record the duration of a phase command.
+     * @param nanos the duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        LatencyHistogram histogram = current;
+        histogram.record(nanos);
+        count.increment();
+        if (histogram.getCount() >= WINDOW)
+            rotate(histogram);
+
+        double micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0L, nanos));
+        while (true) {
+            long bits = ewmaMicrosBits.get();
+            double ewma = Double.longBitsToDouble(bits);
+            double updated = ewma < 0.0 ? micros : ewma + EWMA_WEIGHT * (micros - ewma);
+            if (ewmaMicrosBits.compareAndSet(bits, Double.doubleToLongBits(updated)))
+                break;
+        }
+    }
+
+    private synchronized void rotate(LatencyHistogram full) {
+        if (current == full) {
+            previous = full;
+            current = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Get the number of recorded durations.
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the exponentially weighted moving average of the recorded durations.
+     * @return the average duration in microseconds, 0 if nothing was recorded.
+     */
+    public long getEwmaMicros() {
+        return Math.max(0L, (long) Double.longBitsToDouble(ewmaMicrosBits.get()));
+    }
+
+    /**
+     * Get the 99th percentile of the recently recorded durations.
+     * @return the 99th percentile in microseconds, 0 if nothing was recorded.
+     */
+    public long getP99Micros() {
+        return Math.max(current.getPercentileMicros(99.0), previous.getPercentileMicros(99.0));
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", ewma=" + getEwmaMicros() + "us, p99=" + getP99Micros() + "us";
+    }
+}
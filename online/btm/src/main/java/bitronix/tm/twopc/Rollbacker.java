@@ -25,6 +25,7 @@ import bitronix.tm.internal.XAResourceManager;
 import bitronix.tm.twopc.executor.Executor;
 import bitronix.tm.twopc.executor.Job;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.Scheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,9 +35,9 @@ import javax.transaction.Status;
 import javax.transaction.xa.XAException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Phase 1 &amp; 2 Rollback logic engine.
@@ -47,7 +48,9 @@ public final class Rollbacker extends AbstractPhaseEngine {
 
     private final static Logger log = LoggerFactory.getLogger(Rollbacker.class);
 
-    private final List<XAResourceHolderState> interestedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
+    private volatile List<XAResourceHolderState> interestedResources = Collections.emptyList();
+    // true when all the enlisted resources are interested, which spares looking them up
+    private volatile boolean allInterested;
     // this list has to be thread-safe as the RollbackJobs can be executed in parallel (when async 2PC is configured)
     private final List<XAResourceHolderState> rolledbackResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
 
@@ -68,8 +71,8 @@ public final class Rollbacker extends AbstractPhaseEngine {
     public void rollback(BitronixTransaction transaction, List<XAResourceHolderState> interestedResources) throws HeuristicMixedException, HeuristicCommitException, BitronixSystemException {
         XAResourceManager resourceManager = transaction.getResourceManager();
         transaction.setStatus(Status.STATUS_ROLLING_BACK);
-        this.interestedResources.clear();
-        this.interestedResources.addAll(interestedResources);
+        this.interestedResources = interestedResources;
+        this.allInterested = interestedResources.size() >= resourceManager.size();
 
         try {
             executePhase(resourceManager, true);
@@ -86,10 +89,11 @@ public final class Rollbacker extends AbstractPhaseEngine {
         // ones should be picked up by the recoverer.
         // Not interested resources have to be included as well since they returned XA_RDONLY and they
         // don't participate in phase 2: the TX succeded for them.
-        Set<String> rolledbackAndNotInterestedUniqueNames = new HashSet<String>();
-        rolledbackAndNotInterestedUniqueNames.addAll(collectResourcesUniqueNames(rolledbackResources));
+        // naturally sorted so that the journal does not have to copy it
+        Set<String> rolledbackAndNotInterestedUniqueNames = new TreeSet<String>();
+        collectResourcesUniqueNames(rolledbackResources, rolledbackAndNotInterestedUniqueNames);
         List<XAResourceHolderState> notInterestedResources = collectNotInterestedResources(resourceManager.getAllResources(), interestedResources);
-        rolledbackAndNotInterestedUniqueNames.addAll(collectResourcesUniqueNames(notInterestedResources));
+        collectResourcesUniqueNames(notInterestedResources, rolledbackAndNotInterestedUniqueNames);
 
         if (log.isDebugEnabled()) {
             List<XAResourceHolderState> rolledbackAndNotInterestedResources = new ArrayList<XAResourceHolderState>();
@@ -148,8 +152,19 @@ public final class Rollbacker extends AbstractPhaseEngine {
         return new RollbackJob(resourceHolder);
     }
 
+    /**
+     * A resource that does not emulate XA is rolled back by the recovery service once prepared, or by the resource
+     * itself otherwise.
+     */
+    @Override
+    protected boolean isDeferrable(XAResourceHolderState xaResourceHolderState) {
+        return xaResourceHolderState.getTwoPcOrderingPosition() != Scheduler.ALWAYS_LAST_POSITION;
+    }
+
     @Override
     protected boolean isParticipating(XAResourceHolderState xaResourceHolderState) {
+        if (allInterested)
+            return true;
         for (XAResourceHolderState resourceHolderState : interestedResources) {
             if (xaResourceHolderState == resourceHolderState)
                 return true;
@@ -163,6 +178,11 @@ public final class Rollbacker extends AbstractPhaseEngine {
             super(resourceHolder);
         }
 
+        @Override
+        public String getPhase() {
+            return "rollback";
+        }
+
         @Override
         public void execute() {
             try {
@@ -17,12 +17,10 @@ package bitronix.tm.twopc.executor;
 
 import bitronix.tm.internal.BitronixRuntimeException;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This implementation executes submitted jobs using a <code>java.util.concurrent</code> cached thread pool.
@@ -35,38 +33,32 @@ public class AsyncExecutor implements Executor {
 
 
     public AsyncExecutor() {
-        executorService = Executors.newCachedThreadPool();
+        this(Executors.newCachedThreadPool());
     }
 
-    @Override
-    public Object submit(Job job) {
-        return executorService.submit(job);
+    /**
+     * Create an executor running the submitted jobs with the specified executor service.
+     * @param executorService the executor service running the jobs, shut down with this executor.
+     */
+    protected AsyncExecutor(ExecutorService executorService) {
+        this.executorService = executorService;
     }
 
     @Override
-    public void waitFor(Object future, long timeout) {
-        Future<?> f = (Future<?>) future;
-
+    public CompletableFuture<Job> submit(Job job) {
         try {
-            f.get(timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException ex) {
-            throw new BitronixRuntimeException("job interrupted", ex);
-        } catch (ExecutionException ex) {
-            throw new BitronixRuntimeException("job execution exception", ex);
-        } catch (TimeoutException ex) {
-            // ok, just return
+            executorService.execute(job);
+        } catch (RejectedExecutionException ex) {
+            job.abort(new BitronixRuntimeException("2PC executor is shut down, cannot execute " + job, ex));
         }
-    }
-
-    @Override
-    public boolean isDone(Object future) {
-        Future<?> f = (Future<?>) future;
-
-        return f.isDone();
+        return job.getCompletion();
     }
 
     @Override
     public void shutdown() {
-        executorService.shutdownNow();
+        for (Runnable runnable : executorService.shutdownNow()) {
+            if (runnable instanceof Job)
+                ((Job) runnable).abort(new BitronixRuntimeException("2PC executor shut down before " + runnable + " could execute"));
+        }
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc.executor;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.internal.BitronixRuntimeException;
+import bitronix.tm.utils.LatencyHistogram;
+import bitronix.tm.utils.ManagementRegistrar;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This implementation executes submitted jobs using a <code>java.util.concurrent</code> thread pool of bounded size.
+ * <p>The pool never grows beyond a configured number of threads and jobs waiting for a thread are held in a bounded
+ * queue. When the queue is full, jobs are run by the thread submitting them, which slows down the transactions
+ * submitting jobs faster than the resources can execute them.</p>
+ * <p>The number of jobs of a single resource queued or running at the same time is limited as well: once reached,
+ * submitting a job for this resource blocks until one of its previous jobs completes, so that a slow resource cannot
+ * take over all the threads.</p>
+ * <p>Queue depth, active jobs and the execution latency of each phase are published via JMX.</p>
+ *
+ * @see bitronix.tm.Configuration#getAsynchronous2PcMaxThreads()
+ * @see bitronix.tm.Configuration#getAsynchronous2PcMaxJobsPerResource()
+ * @see bitronix.tm.Configuration#getAsynchronous2PcQueueSize()
+ *
+ * @author Ludovic Orban
+ */
+public class BoundedExecutor implements Executor, BoundedExecutorMBean {
+
+    private final ThreadPoolExecutor executorService;
+    private final int maxJobsPerResource;
+    private final ConcurrentMap<String, Semaphore> resourcePermits = new ConcurrentHashMap<String, Semaphore>();
+    private final ConcurrentMap<String, LatencyHistogram> phaseLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final AtomicLong callerRunJobs = new AtomicLong();
+    private final String jmxName;
+
+
+    public BoundedExecutor() {
+        this(TransactionManagerServices.getConfiguration());
+    }
+
+    private BoundedExecutor(Configuration configuration) {
+        this(configuration.getAsynchronous2PcMaxThreads(), configuration.getAsynchronous2PcMaxJobsPerResource(),
+                configuration.getAsynchronous2PcQueueSize(), configuration.getServerId());
+    }
+
+    BoundedExecutor(int maxThreads, int maxJobsPerResource, int queueSize, String serverId) {
+        if (maxThreads < 1)
+            throw new IllegalArgumentException("bounded 2PC executor must have at least one thread, not " + maxThreads);
+        if (maxJobsPerResource < 1)
+            throw new IllegalArgumentException("bounded 2PC executor must allow at least one job per resource, not " + maxJobsPerResource);
+        if (queueSize < 1)
+            throw new IllegalArgumentException("bounded 2PC executor queue size must be at least 1, not " + queueSize);
+
+        this.maxJobsPerResource = maxJobsPerResource;
+        this.executorService = new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "bitronix-2pc-executor-" + count.incrementAndGet());
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // back-pressure: the submitting thread runs the job itself, even during shutdown so it always completes
+                callerRunJobs.incrementAndGet();
+                r.run();
+            }
+        });
+        this.executorService.allowCoreThreadTimeOut(true);
+
+        this.jmxName = "bitronix.tm:type=Executor,ServerId=" + ManagementRegistrar.makeValidName(serverId == null ? "" : serverId);
+        ManagementRegistrar.register(jmxName, this);
+    }
+
+    @Override
+    public CompletableFuture<Job> submit(Job job) {
+        // jobs not bound to a transaction branch do not count against any resource
+        Semaphore permits = job.getResource() == null ? null : permitsOf(job.getResource().getUniqueName());
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                throw new BitronixRuntimeException("interrupted while waiting to submit " + job, ex);
+            }
+        }
+
+        executorService.execute(new InstrumentedJob(job, permits));
+        return job.getCompletion();
+    }
+
+    @Override
+    public void shutdown() {
+        ManagementRegistrar.unregister(jmxName);
+        for (Runnable runnable : executorService.shutdownNow()) {
+            ((InstrumentedJob) runnable).abort();
+        }
+    }
+
+    /**
+     * Get the execution latency histogram of the jobs of a phase.
+     * @param phase the phase name, see {@link Job#getPhase()}.
+     * @return the latency histogram of the phase.
+     */
+    public LatencyHistogram getLatency(String phase) {
+        return latencyOf(phase);
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return executorService.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getMaxJobsPerResource() {
+        return maxJobsPerResource;
+    }
+
+    @Override
+    public int getPoolSize() {
+        return executorService.getPoolSize();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executorService.getQueue().size();
+    }
+
+    @Override
+    public int getActiveJobs() {
+        return activeJobs.get();
+    }
+
+    @Override
+    public long getCallerRunJobs() {
+        return callerRunJobs.get();
+    }
+
+    @Override
+    public String getPrepareLatency() {
+        return latencyOf("prepare").toString();
+    }
+
+    @Override
+    public String getCommitLatency() {
+        return latencyOf("commit").toString();
+    }
+
+    @Override
+    public String getRollbackLatency() {
+        return latencyOf("rollback").toString();
+    }
+
+    private Semaphore permitsOf(String uniqueName) {
+        Semaphore permits = resourcePermits.get(uniqueName);
+        if (permits == null) {
+            permits = new Semaphore(maxJobsPerResource);
+            Semaphore existing = resourcePermits.putIfAbsent(uniqueName, permits);
+            if (existing != null)
+                permits = existing;
+        }
+        return permits;
+    }
+
+    private LatencyHistogram latencyOf(String phase) {
+        LatencyHistogram histogram = phaseLatencies.get(phase);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = phaseLatencies.putIfAbsent(phase, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+        return histogram;
+    }
+
+    /**
+     * Runs a job, releasing its resource permit and recording its latency once done.
+     */
+    private final class InstrumentedJob implements Runnable {
+        private final Job job;
+        private final Semaphore permits;
+
+        private InstrumentedJob(Job job, Semaphore permits) {
+            this.job = job;
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            activeJobs.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                job.run();
+            } finally {
+                if (!job.isCancelled())
+                    latencyOf(job.getPhase()).record(System.nanoTime() - start);
+                activeJobs.decrementAndGet();
+                if (permits != null)
+                    permits.release();
+            }
+        }
+
+        private void abort() {
+            job.abort(new BitronixRuntimeException("2PC executor shut down before " + job + " could execute"));
+            if (permits != null)
+                permits.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "a BoundedExecutor with " + executorService.getMaximumPoolSize() + " thread(s), " + maxJobsPerResource + " job(s) per resource";
+    }
+}
@@ -17,8 +17,12 @@ package bitronix.tm.twopc.executor;
 
 import bitronix.tm.utils.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Thread pool interface required by the two-phase commit logic.
+ * <p>Jobs signal their completion themselves so that the phase engine gets woken up as soon as the jobs it waits for
+ * are done, whatever the implementation.</p>
  *
  * @author Ludovic Orban
  */
@@ -26,25 +30,10 @@ public interface Executor extends Service {
 
     /**
      * Submit a job to be executed by the thread pool.
-     * @param job the {@link Runnable} to execute.
-     * @return an object used to monitor the execution of the submitted {@link Runnable}.
-     */
-    public Object submit(Job job);
-
-    /**
-     * Wait for the job represented by the future to terminate. The call to this method will block until the job
-     * finished its execution or the specified timeout elapsed.
-     * @param future the future representing the job as returned by {@link #submit}.
-     * @param timeout if the job did not finish during the specified timeout in milliseconds, this method returns anyway.
-     */
-    public void waitFor(Object future, long timeout);
-
-    /**
-     * Check if the thread pool has terminated the execution of the job represented by a future.
-     * @param future the future representing the job as returned by {@link #submit}.
-     * @return true if the job is done, false otherwise.
+     * @param job the {@link Job} to execute.
+     * @return the completion of the job, see {@link Job#getCompletion()}.
      */
-    public boolean isDone(Object future);
+    public CompletableFuture<Job> submit(Job job);
 
     /**
      * Shutdown the thead pool.
@@ -19,16 +19,27 @@ import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.internal.XAResourceHolderState;
 
 import javax.transaction.xa.XAException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract job definition executable by the 2PC thread pools.
+ * <p>Each job owns its completion, completed once the job executed or got cancelled before it started, whatever
+ * {@link Executor} runs it.</p>
+ * <p>Jobs not bound to a transaction branch, like the ones running synchronization callbacks, have no resource.</p>
  *
  * @author Ludovic Orban
  */
 public abstract class Job implements Runnable {
+    private final static int NEW = 0;
+    private final static int RUNNING = 1;
+    private final static int DONE = 2;
+    private final static int CANCELLED = 3;
+
     private final XAResourceHolderState resourceHolder;
+    private final CompletableFuture<Job> completion = new CompletableFuture<Job>();
+    private final AtomicInteger state = new AtomicInteger(NEW);
 
-    private volatile Object future;
     protected volatile XAException xaException;
     protected volatile RuntimeException runtimeException;
 
@@ -36,6 +47,10 @@ public abstract class Job implements Runnable {
         this.resourceHolder = resourceHolder;
     }
 
+    /**
+     * Get the transaction branch this job executes a command on.
+     * @return the transaction branch, null if the job is not bound to one.
+     */
     public XAResourceHolderState getResource() {
         return resourceHolder;
     }
@@ -48,26 +63,90 @@ public abstract class Job implements Runnable {
         return runtimeException;
     }
 
-    public void setFuture(Object future) {
-        this.future = future;
+    /**
+     * Check if the job failed with an exception.
+     * @return true if the job completed with an {@link XAException} or a {@link RuntimeException}.
+     */
+    public boolean isFailed() {
+        return getXAException() != null || getRuntimeException() != null;
+    }
+
+    /**
+     * Get the completion of this job.
+     * @return a future completed with this job once it executed or got cancelled.
+     */
+    public CompletableFuture<Job> getCompletion() {
+        return completion;
     }
 
-    public Object getFuture() {
-        return future;
+    /**
+     * Cancel the job if it has not started executing yet. A cancelled job completes right away and never executes.
+     * @return true if the job got cancelled, false if it already started.
+     */
+    public boolean cancel() {
+        if (state.compareAndSet(NEW, CANCELLED)) {
+            completion.complete(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the job got cancelled before it started.
+     * @return true if {@link #cancel()} succeeded.
+     */
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * Fail the job without executing it, used by executors which could not run it.
+     * @param ex the reason why the job could not run.
+     */
+    void abort(RuntimeException ex) {
+        if (state.compareAndSet(NEW, DONE)) {
+            runtimeException = ex;
+            completion.complete(this);
+        }
+    }
+
+    /**
+     * Get the name of the two phase commit phase this job is part of, used to classify executor statistics.
+     * @return the phase name.
+     */
+    public String getPhase() {
+        return getClass().getSimpleName();
     }
 
     @Override
     public final void run() {
+        if (!state.compareAndSet(NEW, RUNNING))
+            return;
+
         String oldThreadName = null;
-        if (TransactionManagerServices.getConfiguration().isAsynchronous2Pc()) {
-            oldThreadName = Thread.currentThread().getName();
-            Thread.currentThread().setName("bitronix-2pc [ " +
-                    resourceHolder.getXid().toString() +
-                    " ]");
-        }
-        execute();
-        if (oldThreadName != null) {
-            Thread.currentThread().setName(oldThreadName);
+        boolean tracing = resourceHolder != null && TransactionManagerServices.getConfiguration().isCommitTracing();
+        long started = 0L;
+        try {
+            if (resourceHolder != null && TransactionManagerServices.getConfiguration().isAsynchronous2Pc()) {
+                oldThreadName = Thread.currentThread().getName();
+                Thread.currentThread().setName("bitronix-2pc [ " +
+                        resourceHolder.getXid().toString() +
+                        " ]");
+            }
+            if (tracing)
+                started = System.nanoTime();
+            execute();
+        } catch (RuntimeException ex) {
+            runtimeException = ex;
+        } finally {
+            if (tracing) {
+                TransactionManagerServices.getCommitTracer().branchTraced(resourceHolder, getPhase(), System.nanoTime() - started);
+            }
+            if (oldThreadName != null) {
+                Thread.currentThread().setName(oldThreadName);
+            }
+            state.set(DONE);
+            completion.complete(this);
         }
     }
 
@@ -15,6 +15,8 @@
  */
 package bitronix.tm.twopc.executor;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * This implementation executes submitted jobs synchronously.
  *
@@ -23,18 +25,9 @@ package bitronix.tm.twopc.executor;
 public class SyncExecutor implements Executor {
 
     @Override
-    public Object submit(Job job) {
+    public CompletableFuture<Job> submit(Job job) {
         job.run();
-        return new Object();
-    }
-
-    @Override
-    public void waitFor(Object future, long timeout) {
-    }
-
-    @Override
-    public boolean isDone(Object future) {
-        return true;
+        return job.getCompletion();
     }
 
     @Override
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc.executor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This implementation executes each submitted job on its own virtual thread, so that jobs blocked on remote resource
+ * calls do not hold a platform thread.
+ * <p>Virtual threads are only available on recent JVMs and looked up by reflection, check {@link #isSupported()}
+ * before creating this executor.</p>
+ *
+ * @author Ludovic Orban
+ */
+public class VirtualThreadExecutor extends AsyncExecutor {
+
+    private final static Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+
+    /**
+     * Create an executor running the submitted jobs on virtual threads.
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads.
+     */
+    public VirtualThreadExecutor() {
+        super(newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Check if the JVM supports virtual threads.
+     * @return true if a VirtualThreadExecutor can be created.
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null)
+            throw new UnsupportedOperationException("virtual threads are not supported by this JVM");
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException("cannot create virtual thread executor", ex);
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException("cannot create virtual thread executor", ex.getCause());
+        }
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // virtual threads are a preview feature on some JVMs, the method then exists but fails
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (NoSuchMethodException ex) {
+            return null;
+        } catch (IllegalAccessException ex) {
+            return null;
+        } catch (InvocationTargetException ex) {
+            return null;
+        }
+    }
+}
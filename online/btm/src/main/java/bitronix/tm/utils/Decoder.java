@@ -17,6 +17,7 @@ package bitronix.tm.utils;
 
 import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.journal.TransactionLogHeader;
+import bitronix.tm.journal.TransactionLogRecord;
 
 import javax.transaction.Status;
 import javax.transaction.xa.XAException;
@@ -75,6 +76,9 @@ public class Decoder {
             case Status.STATUS_ROLLEDBACK: return "ROLLEDBACK";
             case Status.STATUS_ROLLING_BACK: return "ROLLING_BACK";
             case Status.STATUS_UNKNOWN: return "UNKNOWN";
+            case TransactionLogRecord.STATUS_CHECKPOINT_BEGIN: return "CHECKPOINT_BEGIN";
+            case TransactionLogRecord.STATUS_CHECKPOINT_END: return "CHECKPOINT_END";
+            case TransactionLogRecord.STATUS_NAME_DEFINITION: return "NAME_DEFINITION";
             default: return "!incorrect status (" + status + ")!";
         }
     }
@@ -110,6 +114,14 @@ public class Decoder {
         }
     }
 
+    public static String decodeHeaderFormatId(int formatId) {
+        switch (formatId) {
+            case TransactionLogHeader.FORMAT_ID: return "FORMAT_V1";
+            case TransactionLogHeader.COMPACT_FORMAT_ID: return "COMPACT_FORMAT_V2";
+            default: return "!invalid format ID (" + Integer.toHexString(formatId) + ")!";
+        }
+    }
+
     /**
      * Create a String representation of a list of {@link bitronix.tm.resource.common.XAResourceHolder}s. This
      * String will contain each resource's unique name.
@@ -24,30 +24,46 @@ public class Encoder {
 
     public static byte[] longToBytes(long aLong) {
         byte[] array = new byte[8];
-
-        array[7] = (byte) (aLong & 0xff);
-        array[6] = (byte) ((aLong >> 8) & 0xff);
-        array[5] = (byte) ((aLong >> 16) & 0xff);
-        array[4] = (byte) ((aLong >> 24) & 0xff);
-        array[3] = (byte) ((aLong >> 32) & 0xff);
-        array[2] = (byte) ((aLong >> 40) & 0xff);
-        array[1] = (byte) ((aLong >> 48) & 0xff);
-        array[0] = (byte) ((aLong >> 56) & 0xff);
-
+        longToBytes(aLong, array, 0);
         return array;
     }
 
+    /**
+     * Encode a long into 8 bytes of an existing array.
+     * @param aLong the long to encode.
+     * @param array the array to write into.
+     * @param pos the position of the first byte to write.
+     */
+    public static void longToBytes(long aLong, byte[] array, int pos) {
+        array[pos + 7] = (byte) (aLong & 0xff);
+        array[pos + 6] = (byte) ((aLong >> 8) & 0xff);
+        array[pos + 5] = (byte) ((aLong >> 16) & 0xff);
+        array[pos + 4] = (byte) ((aLong >> 24) & 0xff);
+        array[pos + 3] = (byte) ((aLong >> 32) & 0xff);
+        array[pos + 2] = (byte) ((aLong >> 40) & 0xff);
+        array[pos + 1] = (byte) ((aLong >> 48) & 0xff);
+        array[pos] = (byte) ((aLong >> 56) & 0xff);
+    }
+
     public static byte[] intToBytes(int anInt) {
         byte[] array = new byte[4];
-
-        array[3] = (byte) (anInt & 0xff);
-        array[2] = (byte) ((anInt >> 8) & 0xff);
-        array[1] = (byte) ((anInt >> 16) & 0xff);
-        array[0] = (byte) ((anInt >> 24) & 0xff);
-
+        intToBytes(anInt, array, 0);
         return array;
     }
 
+    /**
+     * Encode an int into 4 bytes of an existing array.
+     * @param anInt the int to encode.
+     * @param array the array to write into.
+     * @param pos the position of the first byte to write.
+     */
+    public static void intToBytes(int anInt, byte[] array, int pos) {
+        array[pos + 3] = (byte) (anInt & 0xff);
+        array[pos + 2] = (byte) ((anInt >> 8) & 0xff);
+        array[pos + 1] = (byte) ((anInt >> 16) & 0xff);
+        array[pos] = (byte) ((anInt >> 24) & 0xff);
+    }
+
     public static byte[] shortToBytes(short aShort) {
         byte[] array = new byte[2];
 
@@ -26,13 +26,24 @@ public final class Uid {
 
     private final byte[] array;
     private final int hashCodeValue;
-    private final String toStringValue;
+    private String toStringValue;
 
     public Uid(byte[] array) {
-        this.array = new byte[array.length];
-        System.arraycopy(array, 0, this.array, 0, array.length);
-        this.hashCodeValue = arrayHashCode(array);
-        this.toStringValue = arrayToString(array);
+        this(array.clone(), arrayHashCode(array));
+    }
+
+    private Uid(byte[] array, int hashCodeValue) {
+        this.array = array;
+        this.hashCodeValue = hashCodeValue;
+    }
+
+    /**
+     * Create a UID from a freshly built byte array without copying it.
+     * @param array the UID byte array, it must not be modified afterwards.
+     * @return the UID.
+     */
+    static Uid wrap(byte[] array) {
+        return new Uid(array, arrayHashCode(array));
     }
 
     public byte[] getArray() {
@@ -82,7 +93,13 @@ public final class Uid {
 
     @Override
     public String toString() {
-        return toStringValue;
+        // most UIDs are never printed, the racy single-check is fine as Strings are immutable
+        String value = toStringValue;
+        if (value == null) {
+            value = arrayToString(array);
+            toStringValue = value;
+        }
+        return value;
     }
 
     /**
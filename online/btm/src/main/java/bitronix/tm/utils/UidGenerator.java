@@ -18,12 +18,10 @@ package bitronix.tm.utils;
 import bitronix.tm.BitronixXid;
 import bitronix.tm.TransactionManagerServices;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 /**
  * Helper that offers UID generation (GTRID, XID, sequences) needed by the transaction manager.
  * <p>Generated UIDs are at most 64 bytes long and are made of 3 subparts: the current time in milliseconds since
- * Epoch, a JVM transient atomic sequence number and the configured <code>bitronix.tm.serverId</code>.</p>
+ * Epoch, a JVM transient sequence number and the configured <code>bitronix.tm.serverId</code>.</p>
  * <p>The reliance on the system clock is critical to the uniqueness of the UID in the network so you have to make sure
  * all servers of the network running this transaction manager have their clock reasonably in sync. An order of 1
  * second synchronicity is generally fine.</p>
@@ -32,25 +30,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class UidGenerator {
 
-    private final static AtomicInteger sequenceGenerator = new AtomicInteger();
+    private final static SequenceGenerator sequenceGenerator = new SequenceGenerator();
 
     /**
      * Generate a UID, globally unique. This method relies on the configured serverId for network uniqueness.
      * @return the generated UID.
      */
     public static Uid generateUid() {
-        byte[] timestamp = Encoder.longToBytes(MonotonicClock.currentTimeMillis());
-        byte[] sequence = Encoder.intToBytes(sequenceGenerator.incrementAndGet());
         byte[] serverId = TransactionManagerServices.getConfiguration().buildServerIdArray();
 
-        int uidLength = serverId.length + timestamp.length + sequence.length;
-        byte[] uidArray = new byte[uidLength];
-
+        byte[] uidArray = new byte[serverId.length + 8 + 4]; // + timestamp + sequence
         System.arraycopy(serverId, 0, uidArray, 0, serverId.length);
-        System.arraycopy(timestamp, 0, uidArray, serverId.length, timestamp.length);
-        System.arraycopy(sequence, 0, uidArray, serverId.length + timestamp.length, sequence.length);
+        Encoder.longToBytes(MonotonicClock.currentTimeMillis(), uidArray, serverId.length);
+        Encoder.intToBytes(sequenceGenerator.next(), uidArray, serverId.length + 8);
 
-        return new Uid(uidArray);
+        return Uid.wrap(uidArray);
     }
 
     /**
@@ -90,15 +90,18 @@ public class ConfigurationTest extends TestCase {
     }
 
     public void testToString() {
-        final String expectation = "a Configuration with [allowMultipleLrc=false, asynchronous2Pc=false," +
-                " backgroundRecoveryInterval=1, backgroundRecoveryIntervalSeconds=60, conservativeJournaling=false, currentNodeOnlyRecovery=true," +
+        final String expectation = "a Configuration with [adaptive2PcMinTimeout=1000, adaptive2PcTimeoutMultiplier=4, adaptive2PcTimeouts=false," +
+                " allowMultipleLrc=false, asynchronous2Pc=false, asynchronous2PcExecutor=cached," +
+                " asynchronous2PcMaxJobsPerResource=16, asynchronous2PcMaxThreads=64, asynchronous2PcQueueSize=256, asynchronousStatusLogging=false," +
+                " backgroundRecoveryInterval=1, backgroundRecoveryIntervalSeconds=60, checkpointIntervalInKb=256, commitCoalescing=false," +
+                " commitCoalescingMaxBatch=64, commitCoalescingWindow=200, commitTracing=false, conservativeJournaling=false, currentNodeOnlyRecovery=true," +
                 " debugZeroResourceTransaction=false, defaultTransactionTimeout=60, disableJmx=false," +
                 " exceptionAnalyzer=null, filterLogStatus=false," +
                 " forceBatchingEnabled=true, forcedWriteEnabled=true, gracefulShutdownInterval=10, jdbcProxyFactoryClass=auto," +
                 " jndiTransactionSynchronizationRegistryName=java:comp/TransactionSynchronizationRegistry," +
-                " jndiUserTransactionName=java:comp/UserTransaction, journal=disk," +
-                " logPart1Filename=target/btm1.tlog, logPart2Filename=target/btm2.tlog, maxLogSizeInMb=2," +
-                " resourceConfigurationFilename=null, serverId=null, skipCorruptedLogs=false, synchronousJmxRegistration=false," +
+                " jndiUserTransactionName=java:comp/UserTransaction, journal=disk, journalFormatVersion=1, journalSegments=4," +
+                " logPart1Filename=target/btm1.tlog, logPart2Filename=target/btm2.tlog, maxLogSizeInMb=2, memoryMappedJournal=false, parallelSynchronizations=false, pipelined2Pc=false," +
+                " resourceConfigurationFilename=null, serverId=null, skipCorruptedLogs=false, skipUnneededStatusLogs=false, synchronousJmxRegistration=false," +
                 " warnAboutZeroResourceTransaction=true]";
 
         assertEquals(expectation, new Configuration().toString());
@@ -176,6 +176,32 @@ public class JtaTest extends TestCase {
         assertNull(btm.getTransaction());
     }
 
+    public void testOldestInFlightTransactionTimestamp() throws Exception {
+        assertEquals(Long.MIN_VALUE, btm.getOldestInFlightTransactionTimestamp());
+
+        btm.begin();
+        BitronixTransaction tx1 = (BitronixTransaction) btm.suspend();
+        Thread.sleep(10);
+        btm.begin();
+        BitronixTransaction tx2 = (BitronixTransaction) btm.suspend();
+
+        long timestamp1 = tx1.getResourceManager().getGtrid().extractTimestamp();
+        long timestamp2 = tx2.getResourceManager().getGtrid().extractTimestamp();
+        assertTrue(timestamp1 < timestamp2);
+        assertEquals(2, btm.getInFlightTransactionCount());
+        assertEquals(timestamp1, btm.getOldestInFlightTransactionTimestamp());
+
+        btm.resume(tx1);
+        btm.commit();
+        assertEquals(1, btm.getInFlightTransactionCount());
+        assertEquals(timestamp2, btm.getOldestInFlightTransactionTimestamp());
+
+        btm.resume(tx2);
+        btm.rollback();
+        assertEquals(0, btm.getInFlightTransactionCount());
+        assertEquals(Long.MIN_VALUE, btm.getOldestInFlightTransactionTimestamp());
+    }
+
     public void testBeforeCompletionAddsExtraSynchronizationInDifferentPriority() throws Exception {
         btm.begin();
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm;
+
+import junit.framework.TestCase;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class ParallelSynchronizationsTest extends TestCase {
+
+    private BitronixTransactionManager btm;
+
+    @Override
+    protected void setUp() throws Exception {
+        TransactionManagerServices.getConfiguration()
+                .setGracefulShutdownInterval(1)
+                .setAsynchronous2Pc(true)
+                .setParallelSynchronizations(true);
+        btm = TransactionManagerServices.getTransactionManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        btm.shutdown();
+    }
+
+    public void testSamePositionRunsConcurrently() throws Exception {
+        CountDownLatch before = new CountDownLatch(3);
+        CountDownLatch after = new CountDownLatch(3);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        btm.begin();
+        for (int i = 0; i < 3; i++) {
+            btm.getTransaction().registerSynchronization(new LatchSynchronization(before, after, events));
+        }
+        btm.commit();
+
+        // each callback waits for the other two, which only works if they run concurrently
+        assertEquals(Arrays.asList("before", "before", "before", "after", "after", "after"), events);
+    }
+
+    public void testInterposedSynchronizationsRunConcurrently() throws Exception {
+        CountDownLatch before = new CountDownLatch(3);
+        CountDownLatch after = new CountDownLatch(3);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        BitronixTransactionSynchronizationRegistry registry = TransactionManagerServices.getTransactionSynchronizationRegistry();
+
+        btm.begin();
+        registry.putResource("key", "value");
+        for (int i = 0; i < 3; i++) {
+            registry.registerInterposedSynchronization(new LatchSynchronization(before, after, events));
+        }
+        btm.commit();
+
+        assertEquals(Arrays.asList("before", "before", "before", "after", "after", "after"), events);
+
+        // the registry resources of the committing thread got cleared by it
+        btm.begin();
+        assertNull(registry.getResource("key"));
+        btm.rollback();
+    }
+
+    public void testPositionsKeepTheirOrder() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        btm.begin();
+        BitronixTransaction transaction = btm.getCurrentTransaction();
+        transaction.getSynchronizationScheduler().add(new RecordingSynchronization("1", events), 1);
+        transaction.getSynchronizationScheduler().add(new RecordingSynchronization("1", events), 1);
+        transaction.getSynchronizationScheduler().add(new RecordingSynchronization("2", events), 2);
+        transaction.getSynchronizationScheduler().add(new RecordingSynchronization("2", events), 2);
+        btm.commit();
+
+        assertEquals(Arrays.asList("before 2", "before 2", "before 1", "before 1", "after 1", "after 1", "after 2", "after 2"), events);
+    }
+
+    public void testBeforeCompletionFailureRollsBack() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        btm.begin();
+        btm.getTransaction().registerSynchronization(new RecordingSynchronization("ok", events));
+        btm.getTransaction().registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                throw new RuntimeException("beforeCompletion failure");
+            }
+            public void afterCompletion(int status) {
+            }
+        });
+
+        try {
+            btm.commit();
+            fail("expected RollbackException");
+        } catch (RollbackException ex) {
+            assertEquals("beforeCompletion failure", ex.getCause().getMessage());
+        }
+
+        assertTrue(events.contains("before ok"));
+        assertTrue(events.contains("after ok"));
+        assertNull(btm.getTransaction());
+    }
+
+    public void testTransactionIsBoundToExecutorThreads() throws Exception {
+        final Thread committingThread = Thread.currentThread();
+        final List<Object> boundTransactions = Collections.synchronizedList(new ArrayList<Object>());
+
+        btm.begin();
+        BitronixTransaction transaction = btm.getCurrentTransaction();
+        for (int i = 0; i < 2; i++) {
+            transaction.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                    if (Thread.currentThread() != committingThread)
+                        boundTransactions.add(btm.getCurrentTransaction());
+                }
+                public void afterCompletion(int status) {
+                    if (Thread.currentThread() != committingThread)
+                        boundTransactions.add(btm.getCurrentTransaction());
+                }
+            });
+        }
+        btm.commit();
+
+        assertEquals(Arrays.asList(transaction, transaction, transaction, transaction), boundTransactions);
+        assertNull(btm.getCurrentTransaction());
+    }
+
+    private static class LatchSynchronization implements Synchronization {
+        private final CountDownLatch before;
+        private final CountDownLatch after;
+        private final List<String> events;
+
+        private LatchSynchronization(CountDownLatch before, CountDownLatch after, List<String> events) {
+            this.before = before;
+            this.after = after;
+            this.events = events;
+        }
+
+        public void beforeCompletion() {
+            before.countDown();
+            if (await(before))
+                events.add("before");
+        }
+
+        public void afterCompletion(int status) {
+            after.countDown();
+            if (await(after) && status == Status.STATUS_COMMITTED)
+                events.add("after");
+        }
+
+        private static boolean await(CountDownLatch latch) {
+            try {
+                return latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+    }
+
+    private static class RecordingSynchronization implements Synchronization {
+        private final String name;
+        private final List<String> events;
+
+        private RecordingSynchronization(String name, List<String> events) {
+            this.name = name;
+            this.events = events;
+        }
+
+        public void beforeCompletion() {
+            events.add("before " + name);
+        }
+
+        public void afterCompletion(int status) {
+            events.add("after " + name);
+        }
+    }
+
+}
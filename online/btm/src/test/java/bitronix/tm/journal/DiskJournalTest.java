@@ -23,13 +23,17 @@ import junit.framework.TestCase;
 import javax.transaction.Status;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  *
@@ -187,6 +191,24 @@ public class DiskJournalTest extends TestCase {
         assertTrue(tlr.isCrc32Correct());
     }
 
+    public void testWrittenCrc32() throws Exception {
+        Set<String> names = new HashSet<String>();
+        names.add("ActiveMQ");
+        names.add("com.mysql.jdbc.jdbc2.optional.MysqlXADataSource");
+
+        TransactionLogRecord tlr = new TransactionLogRecord(Status.STATUS_COMMITTING, UidGenerator.generateUid(), names);
+        ByteBuffer buf = ByteBuffer.allocateDirect(tlr.calculateTotalRecordSize());
+        tlr.writeTo(buf);
+        assertFalse(buf.hasRemaining());
+
+        int writtenCrc32 = buf.getInt(24);
+        assertEquals(tlr.calculateCrc32(), writtenCrc32);
+        assertEquals(writtenCrc32, tlr.getCrc32());
+
+        TransactionLogRecord lazy = new TransactionLogRecord(Status.STATUS_COMMITTING, tlr.getGtrid(), new TreeSet<String>(names));
+        assertTrue(lazy.isCrc32Correct());
+    }
+
     public void testRollover() throws Exception {
     	TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
         DiskJournal journal = new DiskJournal();
@@ -223,6 +245,291 @@ public class DiskJournalTest extends TestCase {
         journal.shutdown();
     }
 
+    public void testStagedRollover() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        final int count = 20000;
+        List<Uid> gtrids = new ArrayList<Uid>();
+        for (int i = 0; i < count; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            gtrids.add(gtrid);
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+
+            if (i >= 50) {
+                journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 50), csvToSet("name1"));
+            }
+            if (i >= 100 && (i - 100) % 7 != 0) {
+                journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 100), csvToSet("name2"));
+            }
+        }
+
+        Map<Uid, JournalRecord> expected = new HashMap<Uid, JournalRecord>();
+        for (int i = 0; i < count; i++) {
+            String names;
+            if (i >= count - 50)
+                names = "name1,name2";
+            else if (i >= count - 100 || i % 7 == 0)
+                names = "name2";
+            else
+                continue;
+            expected.put(gtrids.get(i), new TransactionLogRecord(Status.STATUS_COMMITTING, gtrids.get(i), csvToSet(names)));
+        }
+
+        assertDanglingRecords(expected, journal.collectDanglingRecords());
+        // all rollovers got staged by the same thread, which is stopped by close()
+        List<Thread> stagers = findThreads("bitronix-disk-journal-stager");
+        assertEquals(1, stagers.size());
+        journal.close();
+        stagers.get(0).join(1000);
+        assertFalse(stagers.get(0).isAlive());
+
+        journal = new DiskJournal();
+        journal.open();
+        assertDanglingRecords(expected, journal.collectDanglingRecords());
+        journal.close();
+    }
+
+    private static List<Thread> findThreads(String name) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name))
+                threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static void assertDanglingRecords(Map<Uid, JournalRecord> expected, Map<Uid, JournalRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (JournalRecord record : expected.values()) {
+            JournalRecord actualRecord = actual.get(record.getGtrid());
+            assertNotNull("missing dangling record " + record.getGtrid(), actualRecord);
+            assertEquals(record.getUniqueNames(), actualRecord.getUniqueNames());
+        }
+    }
+
+    public void testParallelCollectDanglingRecords() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(4);
+        DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        List<Uid> gtrids = new ArrayList<Uid>();
+        for (int i = 0; i < 10000; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            gtrids.add(gtrid);
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+
+            if (i >= 20) {
+                journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 20), csvToSet("name1"));
+            }
+            if (i >= 40 && i % 3 != 0) {
+                journal.log(Status.STATUS_UNKNOWN, gtrids.get(i - 40), csvToSet("name2,name3"));
+            }
+            if (i >= 60 && i % 11 == 0) {
+                journal.log(Status.STATUS_COMMITTING, gtrids.get(i - 60), csvToSet("name4"));
+            }
+            if (i >= 80 && i % 13 == 0) {
+                journal.log(Status.STATUS_ROLLEDBACK, gtrids.get(i - 80), csvToSet("name3,name4"));
+            }
+        }
+        Map<Uid, JournalRecord> expected = journal.collectDanglingRecords();
+        assertFalse(expected.isEmpty());
+        journal.close();
+
+        File file = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+        TransactionLogAppender tla = new TransactionLogAppender(file, file.length());
+        try {
+            long startPosition = TransactionLogHeader.HEADER_LENGTH;
+            assertDanglingRecords(expected, DiskJournal.collectDanglingRecords(tla, startPosition));
+            assertDanglingRecords(expected, new DanglingRecordsScanner(tla, 4096).scan(startPosition));
+            assertDanglingRecords(expected, new DanglingRecordsScanner(tla, 64).scan(startPosition));
+        } finally {
+            tla.close();
+        }
+    }
+
+    public void testCheckpoint() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        TransactionManagerServices.getConfiguration().setCheckpointIntervalInKb(16);
+        try {
+            DiskJournal journal = new DiskJournal();
+            journal.open();
+
+            List<Uid> gtrids = new ArrayList<Uid>();
+            for (int i = 0; i < 2000; i++) {
+                Uid gtrid = UidGenerator.generateUid();
+                gtrids.add(gtrid);
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+
+                if (i >= 30) {
+                    journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 30), csvToSet("name1"));
+                }
+                if (i >= 60 && i % 9 != 0) {
+                    journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 60), csvToSet("name2"));
+                }
+            }
+            Map<Uid, JournalRecord> expected = journal.collectDanglingRecords();
+            assertEquals(216 + 60, expected.size());
+            journal.close();
+
+            File file = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+            TransactionLogAppender tla = new TransactionLogAppender(file, file.length());
+            try {
+                long checkpointPosition = tla.getCheckpointPosition();
+                assertTrue(checkpointPosition > TransactionLogHeader.HEADER_LENGTH);
+                assertTrue(checkpointPosition > tla.getPosition() - 32 * 1024);
+                assertDanglingRecords(expected, DiskJournal.collectDanglingRecords(tla, TransactionLogHeader.HEADER_LENGTH));
+                assertDanglingRecords(expected, DiskJournal.collectDanglingRecords(tla, checkpointPosition));
+            } finally {
+                tla.close();
+            }
+
+            journal = new DiskJournal();
+            journal.open();
+            assertDanglingRecords(expected, journal.collectDanglingRecords());
+
+            // the checkpoints written after reopening must still contain the records dangling before
+            for (int i = 0; i < 200; i++) {
+                Uid gtrid = UidGenerator.generateUid();
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+            }
+            assertDanglingRecords(expected, journal.collectDanglingRecords());
+            journal.close();
+        } finally {
+            TransactionManagerServices.getConfiguration().setCheckpointIntervalInKb(256);
+        }
+    }
+
+    public void testLogAsync() throws Exception {
+        DiskJournal journal = new DiskJournal();
+        try {
+            journal.logAsync(Status.STATUS_ACTIVE, UidGenerator.generateUid(), csvToSet("name1")).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException ex) {
+            assertEquals("cannot write log, disk logger is not open", ex.getCause().getMessage());
+        }
+
+        journal.open();
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        List<Uid> gtrids = new ArrayList<Uid>();
+        for (int i = 0; i < 100; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            gtrids.add(gtrid);
+            futures.add(journal.logAsync(Status.STATUS_PREPARING, gtrid, csvToSet("name1,name2")));
+            futures.add(journal.logAsync(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2")));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get();
+        }
+        journal.force();
+        assertEquals(100, journal.collectDanglingRecords().size());
+
+        // the queued records are written before the journal gets closed
+        for (Uid gtrid : gtrids) {
+            journal.logAsync(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+        }
+        journal.close();
+
+        journal.open();
+        assertEquals(0, journal.collectDanglingRecords().size());
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        journal.unsafeReadRecordsInto(records, false);
+        assertEquals(300, records.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Status.STATUS_PREPARING, records.get(i * 2).getStatus());
+            assertEquals(Status.STATUS_COMMITTING, records.get(i * 2 + 1).getStatus());
+            assertEquals(gtrids.get(i), records.get(i * 2 + 1).getGtrid());
+        }
+        journal.close();
+    }
+
+    public void testCompactFormat() throws Exception {
+        checkCompactFormat(false);
+    }
+
+    public void testMemoryMappedCompactFormat() throws Exception {
+        checkCompactFormat(true);
+    }
+
+    private void checkCompactFormat(boolean memoryMapped) throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        TransactionManagerServices.getConfiguration().setCheckpointIntervalInKb(16);
+        TransactionManagerServices.getConfiguration().setJournalFormatVersion(2);
+        TransactionManagerServices.getConfiguration().setMemoryMappedJournal(memoryMapped);
+        try {
+            DiskJournal journal = new DiskJournal();
+            journal.open();
+
+            List<Uid> gtrids = new ArrayList<Uid>();
+            for (int i = 0; i < 20000; i++) {
+                Uid gtrid = UidGenerator.generateUid();
+                gtrids.add(gtrid);
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name" + (i % 5) + ",other" + (i % 7)));
+
+                if (i >= 30) {
+                    journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 30), csvToSet("name" + ((i - 30) % 5)));
+                }
+                if (i >= 60 && i % 9 != 0) {
+                    journal.log(Status.STATUS_COMMITTED, gtrids.get(i - 60), csvToSet("other" + ((i - 60) % 7)));
+                }
+            }
+            Map<Uid, JournalRecord> expected = journal.collectDanglingRecords();
+            assertEquals(2216 + 60, expected.size());
+            journal.close();
+
+            File file1 = new File(TransactionManagerServices.getConfiguration().getLogPart1Filename());
+            File file2 = new File(TransactionManagerServices.getConfiguration().getLogPart2Filename());
+            File activeFile = bitronix.tm.gui.Console.pickCurrentLogFile(file1, file2);
+            TransactionLogAppender tla = new TransactionLogAppender(activeFile, activeFile.length());
+            try {
+                assertTrue(tla.getHeader().isCompactFormat());
+                assertEquals(12, tla.getDictionary().size());
+
+                TransactionLogRecord tlog = new TransactionLogRecord(Status.STATUS_COMMITTING, gtrids.get(0), csvToSet("name0,other0"));
+                assertTrue(tla.recordSize(tlog) < tlog.calculateTotalRecordSize() * 2 / 3);
+
+                long checkpointPosition = tla.getCheckpointPosition();
+                assertTrue(checkpointPosition > TransactionLogHeader.HEADER_LENGTH);
+                assertDanglingRecords(expected, DiskJournal.collectDanglingRecords(tla, TransactionLogHeader.HEADER_LENGTH));
+                assertDanglingRecords(expected, DiskJournal.collectDanglingRecords(tla, checkpointPosition));
+                assertDanglingRecords(expected, new DanglingRecordsScanner(tla, 512).scan(TransactionLogHeader.HEADER_LENGTH));
+            } finally {
+                tla.close();
+            }
+
+            // cursors used by the console know nothing about the dictionary
+            int count = 0;
+            TransactionLogCursor tlc = new TransactionLogCursor(activeFile);
+            try {
+                TransactionLogRecord tlog;
+                while ((tlog = tlc.readLog()) != null) {
+                    assertTrue(tlog.getStatus() != TransactionLogRecord.STATUS_NAME_DEFINITION);
+                    assertTrue(tlog.isCrc32Correct());
+                    count++;
+                }
+            } finally {
+                tlc.close();
+            }
+            assertTrue(count > expected.size());
+
+            journal = new DiskJournal();
+            journal.open();
+            assertDanglingRecords(expected, journal.collectDanglingRecords());
+            for (JournalRecord jr : expected.values()) {
+                journal.log(Status.STATUS_COMMITTED, jr.getGtrid(), jr.getUniqueNames());
+            }
+            journal.log(Status.STATUS_COMMITTING, gtrids.get(0), csvToSet("name9"));
+            assertEquals(1, journal.collectDanglingRecords().size());
+            journal.close();
+        } finally {
+            TransactionManagerServices.getConfiguration().setMemoryMappedJournal(false);
+            TransactionManagerServices.getConfiguration().setJournalFormatVersion(1);
+            TransactionManagerServices.getConfiguration().setCheckpointIntervalInKb(256);
+        }
+    }
+
     public void testJournalPerformance() throws IOException, InterruptedException {
         TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(40);
         TransactionManagerServices.getConfiguration().setForcedWriteEnabled(false);
@@ -316,6 +623,96 @@ public class DiskJournalTest extends TestCase {
         journal.shutdown();
     }
 
+    public void testForceBatching() throws IOException, InterruptedException {
+        TransactionManagerServices.getConfiguration().setForceBatchingEnabled(true);
+        final DiskJournal journal = new DiskJournal();
+        journal.open();
+
+        final int threads = 8;
+        final List<Uid> committing = new ArrayList<Uid>();
+
+        class Runner extends Thread {
+            private IOException failure;
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        Uid gtrid = UidGenerator.generateUid();
+                        journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                        journal.force();
+                        synchronized (committing) {
+                            committing.add(gtrid);
+                        }
+                    }
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+        }
+
+        Runner[] runners = new Runner[threads];
+        for (int i = 0; i < threads; i++) {
+            runners[i] = new Runner();
+            runners[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            runners[i].join();
+            assertNull(runners[i].failure);
+        }
+
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(threads * 100, danglingRecords.size());
+        assertTrue(danglingRecords.keySet().containsAll(committing));
+
+        journal.close();
+
+        try {
+            journal.force();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot force log writing, disk logger is not open", ex.getMessage());
+        }
+    }
+
+    public void testMemoryMappedRollover() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        TransactionManagerServices.getConfiguration().setMemoryMappedJournal(true);
+        try {
+            DiskJournal journal = new DiskJournal();
+            journal.open();
+
+            List<Uid> uncommitted = new ArrayList<Uid>();
+            for (int i = 1; i < 16000; i++) {
+                Uid gtrid = UidGenerator.generateUid();
+                journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                journal.force();
+
+                if (i < 15800) {
+                    journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+                } else {
+                    uncommitted.add(gtrid);
+                }
+            }
+            assertEquals(200, journal.collectDanglingRecords().size());
+            journal.close();
+
+            journal = new DiskJournal();
+            journal.open();
+            Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+            assertEquals(200, danglingRecords.size());
+            assertTrue(danglingRecords.keySet().containsAll(uncommitted));
+
+            for (Uid gtrid : uncommitted) {
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+            }
+            assertEquals(0, journal.collectDanglingRecords().size());
+            journal.close();
+        } finally {
+            TransactionManagerServices.getConfiguration().setMemoryMappedJournal(false);
+        }
+    }
+
     private SortedSet<String> csvToSet(String s) {
         SortedSet<String> result = new TreeSet<String>();
         String[] names = s.split("\\,");
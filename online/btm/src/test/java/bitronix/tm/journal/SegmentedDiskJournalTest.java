@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+import junit.framework.TestCase;
+
+import javax.transaction.Status;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class SegmentedDiskJournalTest extends TestCase {
+
+    protected void setUp() throws Exception {
+        deleteSegmentFiles();
+    }
+
+    protected void tearDown() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(2);
+        deleteSegmentFiles();
+    }
+
+    private static void deleteSegmentFiles() {
+        for (File file : segmentFiles()) {
+            file.delete();
+        }
+    }
+
+    private static List<File> segmentFiles() {
+        String filename = TransactionManagerServices.getConfiguration().getLogPart1Filename();
+        File directory = new File(filename).getAbsoluteFile().getParentFile();
+        List<File> files = new ArrayList<File>();
+        for (File file : directory.listFiles()) {
+            if (SegmentedDiskJournal.sequenceOf(file.getName(), filename) > 0)
+                files.add(file);
+        }
+        return files;
+    }
+
+    private static File segmentFile(long sequence) {
+        return new File(SegmentedDiskJournal.segmentFilename(TransactionManagerServices.getConfiguration().getLogPart1Filename(), sequence));
+    }
+
+    public void testSegmentFilename() throws Exception {
+        assertEquals("btm1.000001.tlog", SegmentedDiskJournal.segmentFilename("btm1.tlog", 1));
+        assertEquals("target/btm1.001234.tlog", SegmentedDiskJournal.segmentFilename("target/btm1.tlog", 1234));
+        assertEquals("target.dir/btm1.1234567", SegmentedDiskJournal.segmentFilename("target.dir/btm1", 1234567));
+
+        assertEquals(1L, SegmentedDiskJournal.sequenceOf("btm1.000001.tlog", "target/btm1.tlog"));
+        assertEquals(1234567L, SegmentedDiskJournal.sequenceOf("btm1.1234567", "btm1"));
+        assertEquals(-1L, SegmentedDiskJournal.sequenceOf("btm1.tlog", "btm1.tlog"));
+        assertEquals(-1L, SegmentedDiskJournal.sequenceOf("btm1-0.tlog", "btm1.tlog"));
+        assertEquals(-1L, SegmentedDiskJournal.sequenceOf("btm2.000001.tlog", "btm1.tlog"));
+        assertEquals(-1L, SegmentedDiskJournal.sequenceOf("btm1.00a001.tlog", "btm1.tlog"));
+    }
+
+    public void testExceptions() throws Exception {
+        SegmentedDiskJournal journal = new SegmentedDiskJournal();
+
+        try {
+            journal.force();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot force log writing, disk logger is not open", ex.getMessage());
+        }
+        try {
+            journal.log(0, null, null);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot write log, disk logger is not open", ex.getMessage());
+        }
+        try {
+            journal.collectDanglingRecords();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot collect dangling records, disk logger is not open", ex.getMessage());
+        }
+
+        journal.close();
+        journal.shutdown();
+    }
+
+    public void testCollectDanglingRecords() throws Exception {
+        SegmentedDiskJournal journal = new SegmentedDiskJournal();
+        journal.open();
+        assertTrue(segmentFile(1).exists());
+
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, gtrid1, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTING, gtrid2, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTED, gtrid1, csvToSet("name1,name2"));
+        journal.log(Status.STATUS_COMMITTED, gtrid2, csvToSet("name1"));
+        journal.force();
+
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(1, danglingRecords.size());
+        assertEquals(csvToSet("name2"), danglingRecords.get(gtrid2).getUniqueNames());
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        journal.unsafeReadRecordsInto(records, false);
+        assertEquals(4, records.size());
+        journal.close();
+
+        journal = new SegmentedDiskJournal();
+        journal.open();
+        danglingRecords = journal.collectDanglingRecords();
+        assertEquals(1, danglingRecords.size());
+        assertEquals(csvToSet("name2"), danglingRecords.get(gtrid2).getUniqueNames());
+        journal.close();
+    }
+
+    public void testResolvedSegmentsAreDeleted() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        SegmentedDiskJournal journal = new SegmentedDiskJournal();
+        journal.open();
+
+        Uid longRunning = UidGenerator.generateUid();
+        journal.log(Status.STATUS_COMMITTING, longRunning, csvToSet("name1"));
+
+        for (int i = 0; i < 30000; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+        }
+        journal.force();
+        journal.close();
+
+        // the first segment is held by the long running transaction, the ones after it have been deleted
+        assertTrue(segmentFile(1).exists());
+        assertFalse(segmentFile(2).exists());
+        assertTrue(segmentFiles().size() <= 3);
+
+        journal = new SegmentedDiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(1, danglingRecords.size());
+        assertTrue(danglingRecords.containsKey(longRunning));
+
+        journal.log(Status.STATUS_COMMITTED, longRunning, csvToSet("name1"));
+        assertEquals(0, journal.collectDanglingRecords().size());
+        journal.close();
+
+        assertFalse(segmentFile(1).exists());
+        assertTrue(segmentFiles().size() <= 2);
+    }
+
+    public void testDanglingRecordsExceedingASegment() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        SegmentedDiskJournal journal = new SegmentedDiskJournal();
+        journal.open();
+
+        // more dangling records than a single fragment of a DiskJournal could hold
+        List<Uid> uncommitted = new ArrayList<Uid>();
+        for (int i = 0; i < 30000; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2,name3"));
+            uncommitted.add(gtrid);
+        }
+        journal.force();
+        assertTrue(segmentFiles().size() > 1);
+        assertEquals(uncommitted.size(), journal.collectDanglingRecords().size());
+        journal.close();
+
+        journal = new SegmentedDiskJournal();
+        journal.open();
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(uncommitted.size(), danglingRecords.size());
+        assertTrue(danglingRecords.keySet().containsAll(uncommitted));
+
+        for (Uid gtrid : uncommitted) {
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2,name3"));
+        }
+        assertEquals(0, journal.collectDanglingRecords().size());
+        journal.close();
+
+        journal = new SegmentedDiskJournal();
+        journal.open();
+        assertEquals(0, journal.collectDanglingRecords().size());
+        journal.close();
+    }
+
+    private SortedSet<String> csvToSet(String s) {
+        SortedSet<String> result = new TreeSet<String>();
+        String[] names = s.split("\\,");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            result.add(name);
+        }
+        return result;
+    }
+
+}
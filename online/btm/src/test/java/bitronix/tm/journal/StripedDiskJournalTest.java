@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.journal;
+
+import bitronix.tm.Configuration;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+import junit.framework.TestCase;
+
+import javax.transaction.Status;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class StripedDiskJournalTest extends TestCase {
+
+    protected void setUp() throws Exception {
+        deleteSegmentFiles();
+    }
+
+    protected void tearDown() throws Exception {
+        TransactionManagerServices.getConfiguration().setJournalSegments(4);
+        deleteSegmentFiles();
+    }
+
+    private static void deleteSegmentFiles() {
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        for (int i = 0; i <= StripedDiskJournal.MAX_SEGMENTS; i++) {
+            new File(StripedDiskJournal.segmentFilename(configuration.getLogPart1Filename(), i)).delete();
+            new File(StripedDiskJournal.segmentFilename(configuration.getLogPart2Filename(), i)).delete();
+        }
+    }
+
+    public void testSegmentFilename() throws Exception {
+        assertEquals("btm1-0.tlog", StripedDiskJournal.segmentFilename("btm1.tlog", 0));
+        assertEquals("target/btm2-3.tlog", StripedDiskJournal.segmentFilename("target/btm2.tlog", 3));
+        assertEquals("target.dir/btm1-2", StripedDiskJournal.segmentFilename("target.dir/btm1", 2));
+        assertEquals(".btm-1", StripedDiskJournal.segmentFilename(".btm", 1));
+    }
+
+    public void testExceptions() throws Exception {
+        StripedDiskJournal journal = new StripedDiskJournal();
+
+        try {
+            journal.force();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot force log writing, disk logger is not open", ex.getMessage());
+        }
+        try {
+            journal.log(0, null, null);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot write log, disk logger is not open", ex.getMessage());
+        }
+        try {
+            journal.collectDanglingRecords();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("cannot collect dangling records, disk logger is not open", ex.getMessage());
+        }
+
+        journal.close();
+        journal.shutdown();
+    }
+
+    public void testCollectDanglingRecordsOfAllSegments() throws Exception {
+        StripedDiskJournal journal = new StripedDiskJournal();
+        journal.open();
+
+        List<Uid> uncommitted = new ArrayList<Uid>();
+        for (int i = 0; i < 100; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+            journal.force();
+            if (i % 10 == 0) {
+                uncommitted.add(gtrid);
+            } else {
+                journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+            }
+        }
+
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(10, danglingRecords.size());
+        assertTrue(danglingRecords.keySet().containsAll(uncommitted));
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        journal.unsafeReadRecordsInto(records, false);
+        assertEquals(190, records.size());
+
+        journal.close();
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(new File(StripedDiskJournal.segmentFilename(TransactionManagerServices.getConfiguration().getLogPart1Filename(), i)).exists());
+        }
+
+        journal = new StripedDiskJournal();
+        journal.open();
+        assertEquals(10, journal.collectDanglingRecords().size());
+        for (Uid gtrid : uncommitted) {
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1"));
+            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name2"));
+        }
+        assertEquals(0, journal.collectDanglingRecords().size());
+        journal.close();
+    }
+
+    public void testForceSegmentsWrittenByOtherThreads() throws Exception {
+        TransactionManagerServices.getConfiguration().setForcedWriteEnabled(true);
+        final StripedDiskJournal journal = new StripedDiskJournal();
+        journal.open();
+
+        final IOException[] failure = new IOException[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        journal.log(Status.STATUS_COMMITTING, UidGenerator.generateUid(), csvToSet("name1,name2"));
+                    }
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+            }
+        };
+        writer.start();
+        writer.join();
+        assertNull(failure[0]);
+        assertTrue(journal.getUnforcedSegments() != 0L);
+
+        journal.force();
+        assertEquals(0L, journal.getUnforcedSegments());
+
+        journal.close();
+    }
+
+    public void testSegmentCountCannotChange() throws Exception {
+        StripedDiskJournal journal = new StripedDiskJournal();
+        journal.open();
+        journal.close();
+
+        TransactionManagerServices.getConfiguration().setJournalSegments(2);
+        journal = new StripedDiskJournal();
+        try {
+            journal.open();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("striped disk journal files do not match the configured segment count of 2, segments cannot be added or removed as long as the journal is in use", ex.getMessage());
+        }
+
+        TransactionManagerServices.getConfiguration().setJournalSegments(8);
+        try {
+            journal.open();
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("striped disk journal files do not match the configured segment count of 8, segments cannot be added or removed as long as the journal is in use", ex.getMessage());
+        }
+    }
+
+    public void testConcurrentLogging() throws Exception {
+        TransactionManagerServices.getConfiguration().setMaxLogSizeInMb(1);
+        final StripedDiskJournal journal = new StripedDiskJournal();
+        journal.open();
+
+        class Runner extends Thread {
+            private final List<Uid> uncommitted = new ArrayList<Uid>();
+            private IOException failure;
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        Uid gtrid = UidGenerator.generateUid();
+                        journal.log(Status.STATUS_COMMITTING, gtrid, csvToSet("name1,name2"));
+                        journal.force();
+                        if (i % 100 == 0) {
+                            uncommitted.add(gtrid);
+                        } else {
+                            journal.log(Status.STATUS_COMMITTED, gtrid, csvToSet("name1,name2"));
+                        }
+                    }
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+        }
+
+        Runner[] runners = new Runner[4];
+        for (int i = 0; i < runners.length; i++) {
+            runners[i] = new Runner();
+            runners[i].start();
+        }
+
+        for (int i = 0; i < runners.length; i++) {
+            runners[i].join();
+            assertNull(runners[i].failure);
+        }
+
+        Map<Uid, JournalRecord> danglingRecords = journal.collectDanglingRecords();
+        assertEquals(runners.length * 50, danglingRecords.size());
+        for (int i = 0; i < runners.length; i++) {
+            assertTrue(danglingRecords.keySet().containsAll(runners[i].uncommitted));
+        }
+
+        journal.close();
+    }
+
+    private SortedSet<String> csvToSet(String s) {
+        SortedSet<String> result = new TreeSet<String>();
+        String[] names = s.split("\\,");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            result.add(name);
+        }
+        return result;
+    }
+
+}
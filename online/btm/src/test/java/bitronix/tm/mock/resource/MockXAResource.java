@@ -47,6 +47,7 @@ public class MockXAResource implements XAResource {
     private RuntimeException prepareRuntimeException;
     private XAException recoverException;
     private long recoveryDelay;
+    private long commitDelay;
 
     public MockXAResource(MockitoXADataSource xads) {
         this.xads = xads;
@@ -56,6 +57,10 @@ public class MockXAResource implements XAResource {
         this.recoveryDelay = recoveryDelay;
     }
 
+    public void setCommitDelay(long commitDelay) {
+        this.commitDelay = commitDelay;
+    }
+
     public void setPrepareRc(int prepareRc) {
         this.prepareRc = prepareRc;
     }
@@ -143,6 +148,14 @@ public class MockXAResource implements XAResource {
     }
 
     public void commit(Xid xid, boolean b) throws XAException {
+        if (commitDelay > 0) {
+            try {
+                Thread.sleep(commitDelay);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
         getEventRecorder().addEvent(new XAResourceCommitEvent(this, commitException, xid, b));
         if (commitException != null)
             throw commitException;
@@ -1,8 +1,10 @@
 package bitronix.tm.resource.jdbc;
 
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.ResourceRegistrar;
 import junit.framework.TestCase;
 
+import javax.transaction.xa.XAResource;
 import java.sql.Connection;
 
 /**
@@ -28,6 +30,30 @@ public class PoolingDataSourceTest extends TestCase {
         }
     }
 
+    public void testXAResourcesAreIndexed() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setUniqueName("pds");
+        pds.setMinPoolSize(1);
+        pds.setMaxPoolSize(1);
+        pds.setXaDataSource(new MockitoXADataSource());
+        pds.init();
+
+        XAResource xaResource;
+        try {
+            Connection connection = pds.getConnection();
+            JdbcPooledConnection pooledConnection = ((PooledConnectionProxy) connection).getPooledConnection();
+            xaResource = pooledConnection.getXAResource();
+
+            assertSame(pooledConnection, ResourceRegistrar.findXAResourceHolder(xaResource));
+
+            connection.close();
+        } finally {
+            pds.close();
+        }
+
+        assertNull(ResourceRegistrar.findXAResourceHolder(xaResource));
+    }
+
     public void testEffectiveConnectionTimeoutWhenSet() {
         PoolingDataSource pds = new PoolingDataSource();
         pds.setConnectionTestTimeout(10);
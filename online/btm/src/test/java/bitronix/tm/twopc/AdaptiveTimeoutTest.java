@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.BitronixTransaction;
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.BitronixXid;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.journal.Journal;
+import bitronix.tm.mock.AbstractMockJdbcTest;
+import bitronix.tm.mock.events.EventRecorder;
+import bitronix.tm.mock.events.JournalLogEvent;
+import bitronix.tm.mock.resource.MockJournal;
+import bitronix.tm.mock.resource.MockXAResource;
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.recovery.Recoverer;
+import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.resource.common.XAStatefulHolder;
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.PooledConnectionProxy;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import bitronix.tm.utils.UidGenerator;
+import junit.framework.TestCase;
+
+import javax.sql.XAConnection;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class AdaptiveTimeoutTest extends TestCase {
+
+    private PoolingDataSource poolingDataSource1;
+    private PoolingDataSource poolingDataSource2;
+    private BitronixTransactionManager tm;
+
+    public void testComputeTimeout() throws Exception {
+        ResourceLatency latency = new ResourceLatency();
+        for (int i = 0; i < 19; i++) {
+            latency.record(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertEquals(-1L, AbstractPhaseEngine.computeTimeout(latency, 4, 0));
+
+        latency.record(TimeUnit.MILLISECONDS.toNanos(10));
+        long timeout = AbstractPhaseEngine.computeTimeout(latency, 4, 0);
+        assertTrue("timeout is " + timeout, timeout >= 40L && timeout <= 80L);
+        assertEquals(1000L, AbstractPhaseEngine.computeTimeout(latency, 4, 1000));
+    }
+
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX resolution: committed
+     *
+     * XAResource 1 resolution: successful
+     * XAResource 2 resolution: commit takes longer than its deadline
+     *
+     * Expected outcome:
+     *   TM does not wait for resource 2 and leaves it to the recoverer, its connection
+     *   only goes back to the pool once the commit completed
+     */
+    public void testSlowCommitIsDeferred() throws Exception {
+        learnCommitLatencies();
+        EventRecorder.clear();
+
+        tm.begin();
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        connection1.close();
+        Connection connection2 = poolingDataSource2.getConnection();
+        JdbcPooledConnection pooledConnection2 = ((PooledConnectionProxy) connection2).getPooledConnection();
+        XAConnection xaConnection2 = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(pooledConnection2);
+        ((MockXAResource) xaConnection2.getXAResource()).setCommitDelay(2000);
+        connection2.createStatement();
+        connection2.close();
+
+        long before = System.currentTimeMillis();
+        tm.commit();
+        long duration = System.currentTimeMillis() - before;
+
+        assertTrue("commit took " + duration + "ms", duration < 1500L);
+        assertEquals(1L, TransactionManagerServices.getPhaseStatistics().getDeferredJobs());
+        assertTrue(pooledConnection2.getState() != XAStatefulHolder.State.IN_POOL);
+
+        JournalLogEvent committed = null;
+        List events = EventRecorder.getOrderedEvents();
+        for (Object event : events) {
+            if (event instanceof JournalLogEvent && ((JournalLogEvent) event).getStatus() == Status.STATUS_COMMITTED)
+                committed = (JournalLogEvent) event;
+        }
+        assertNotNull(committed);
+        assertTrue(committed.getJndiNames().contains("pds1"));
+        assertFalse(committed.getJndiNames().contains("pds2"));
+
+        for (int i = 0; i < 100 && pooledConnection2.getState() != XAStatefulHolder.State.IN_POOL; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(XAStatefulHolder.State.IN_POOL, pooledConnection2.getState());
+        ((MockXAResource) xaConnection2.getXAResource()).setCommitDelay(0);
+    }
+
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX resolution: committed
+     *
+     * XAResource 1 resolution: successful
+     * XAResource 2 resolution: commit takes longer than its deadline, recovery runs meanwhile
+     *
+     * Expected outcome:
+     *   the recoverer leaves the branch of resource 2 alone as long as its commit is running
+     */
+    public void testRecoverySkipsDeferredBranch() throws Exception {
+        learnCommitLatencies();
+
+        tm.begin();
+        BitronixTransaction deferredTransaction = tm.getCurrentTransaction();
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        connection1.close();
+        Connection connection2 = poolingDataSource2.getConnection();
+        JdbcPooledConnection pooledConnection2 = ((PooledConnectionProxy) connection2).getPooledConnection();
+        XAConnection xaConnection2 = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(pooledConnection2);
+        ((MockXAResource) xaConnection2.getXAResource()).setCommitDelay(2000);
+        connection2.createStatement();
+        connection2.close();
+        tm.commit();
+        assertEquals(1L, TransactionManagerServices.getPhaseStatistics().getDeferredJobs());
+
+        // the branch being committed is reported in-doubt by its resource
+        MockitoXADataSource xaDataSource2 = (MockitoXADataSource) poolingDataSource2.getXaDataSource();
+        xaDataSource2.addInDoubtXid(new BitronixXid(deferredTransaction.getResourceManager().getGtrid(), UidGenerator.generateUid()));
+
+        // a transaction younger than the deferred one is in-flight
+        tm.begin();
+        Transaction inFlightTransaction = tm.suspend();
+
+        Recoverer recoverer = TransactionManagerServices.getRecoverer();
+        recoverer.run();
+        assertNull(recoverer.getCompletionException());
+        assertEquals(0, recoverer.getRolledbackCount());
+
+        for (int i = 0; i < 100 && pooledConnection2.getState() != XAStatefulHolder.State.IN_POOL; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(XAStatefulHolder.State.IN_POOL, pooledConnection2.getState());
+
+        // once the commit completed the recoverer handles the branch again
+        recoverer.run();
+        assertNull(recoverer.getCompletionException());
+        assertEquals(1, recoverer.getRolledbackCount());
+
+        tm.resume(inFlightTransaction);
+        tm.rollback();
+        ((MockXAResource) xaConnection2.getXAResource()).setCommitDelay(0);
+    }
+
+    // learn the usual commit latency of both resources
+    private void learnCommitLatencies() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            tm.begin();
+            Connection connection1 = poolingDataSource1.getConnection();
+            connection1.createStatement();
+            connection1.close();
+            Connection connection2 = poolingDataSource2.getConnection();
+            connection2.createStatement();
+            connection2.close();
+            tm.commit();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Iterator<String> it = ResourceRegistrar.getResourcesUniqueNames().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            ResourceRegistrar.unregister(ResourceRegistrar.get(name));
+        }
+
+        EventRecorder.clear();
+
+        TransactionManagerServices.getConfiguration()
+                .setAsynchronous2Pc(true)
+                .setAdaptive2PcTimeouts(true)
+                .setAdaptive2PcMinTimeout(200);
+
+        // change disk journal into mock journal
+        Field field = TransactionManagerServices.class.getDeclaredField("journalRef");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        AtomicReference<Journal> journalRef = (AtomicReference<Journal>) field.get(TransactionManagerServices.class);
+        journalRef.set(new MockJournal());
+
+        poolingDataSource1 = new PoolingDataSource();
+        poolingDataSource1.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource1.setUniqueName("pds1");
+        poolingDataSource1.setMinPoolSize(5);
+        poolingDataSource1.setMaxPoolSize(5);
+        poolingDataSource1.setAutomaticEnlistingEnabled(true);
+        poolingDataSource1.init();
+
+        poolingDataSource2 = new PoolingDataSource();
+        poolingDataSource2.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource2.setUniqueName("pds2");
+        poolingDataSource2.setMinPoolSize(5);
+        poolingDataSource2.setMaxPoolSize(5);
+        poolingDataSource2.setAutomaticEnlistingEnabled(true);
+        poolingDataSource2.init();
+
+        tm = TransactionManagerServices.getTransactionManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        poolingDataSource1.close();
+        poolingDataSource2.close();
+        tm.shutdown();
+    }
+
+}
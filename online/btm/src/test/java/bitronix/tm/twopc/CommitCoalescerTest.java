@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.BitronixXid;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.internal.TransactionStatusChangeListener;
+import bitronix.tm.internal.XAResourceHolderState;
+import bitronix.tm.journal.Journal;
+import bitronix.tm.mock.AbstractMockJdbcTest;
+import bitronix.tm.mock.events.EventRecorder;
+import bitronix.tm.mock.events.XAResourceCommitEvent;
+import bitronix.tm.mock.resource.MockJournal;
+import bitronix.tm.mock.resource.MockXAResource;
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.PooledConnectionProxy;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import bitronix.tm.utils.Uid;
+import bitronix.tm.utils.UidGenerator;
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.XAConnection;
+import javax.transaction.Status;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class CommitCoalescerTest extends TestCase {
+
+    private final static Logger log = LoggerFactory.getLogger(CommitCoalescerTest.class);
+
+    private final static int THREADS = 5;
+    private final static int TRANSACTIONS_PER_THREAD = 10;
+
+    private PoolingDataSource poolingDataSource1;
+    private PoolingDataSource poolingDataSource2;
+    private BitronixTransactionManager tm;
+
+    public void testConcurrentCommitsAreCoalesced() throws Exception {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        // the first transactions of all threads start preparing together, their commits must then overlap
+        final CountDownLatch preparing = new CountDownLatch(THREADS);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                            tm.begin();
+                            if (j == 0)
+                                tm.getCurrentTransaction().addTransactionStatusChangeListener(new PreparingBarrier(preparing));
+                            Connection connection1 = poolingDataSource1.getConnection();
+                            connection1.createStatement();
+                            connection1.close();
+                            Connection connection2 = poolingDataSource2.getConnection();
+                            connection2.createStatement();
+                            connection2.close();
+                            tm.commit();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+
+        assertEquals("errors: " + errors, 0, errors.size());
+
+        int commitEventCount = 0;
+        for (Object event : EventRecorder.getOrderedEvents()) {
+            if (event instanceof XAResourceCommitEvent) {
+                assertFalse(((XAResourceCommitEvent) event).isOnePhase());
+                commitEventCount++;
+            }
+        }
+        int expectedCommits = 2 * THREADS * TRANSACTIONS_PER_THREAD;
+        assertEquals(expectedCommits, commitEventCount);
+
+        CommitCoalescer commitCoalescer = TransactionManagerServices.getCommitCoalescer();
+        assertEquals(expectedCommits, commitCoalescer.getCommits());
+        assertTrue("largest batch: " + commitCoalescer.getLargestBatch(), commitCoalescer.getLargestBatch() >= 2 && commitCoalescer.getLargestBatch() <= THREADS);
+        assertTrue("batches: " + commitCoalescer.getBatches(), commitCoalescer.getBatches() < commitCoalescer.getCommits());
+        assertEquals(0, commitCoalescer.getWaitingCommits());
+    }
+
+    public void testLoneCommitIsNotDelayed() throws Exception {
+        tm.begin();
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        connection1.close();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+        connection2.close();
+
+        long before = System.currentTimeMillis();
+        tm.commit();
+        long duration = System.currentTimeMillis() - before;
+
+        // the window is 200ms long but no other transaction is committing
+        assertTrue("commit took " + duration + "ms", duration < 100L);
+        CommitCoalescer commitCoalescer = TransactionManagerServices.getCommitCoalescer();
+        assertEquals(2L, commitCoalescer.getCommits());
+        assertEquals(2L, commitCoalescer.getBatches());
+    }
+
+    public void testSlowCommitDoesNotDelayOtherBranches() throws Exception {
+        final Throwable[] error = new Throwable[1];
+        Thread slowCommitter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    tm.begin();
+                    Connection connection1 = poolingDataSource1.getConnection();
+                    connection1.createStatement();
+                    connection1.close();
+                    Connection connection2 = poolingDataSource2.getConnection();
+                    JdbcPooledConnection pooledConnection2 = ((PooledConnectionProxy) connection2).getPooledConnection();
+                    XAConnection xaConnection2 = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(pooledConnection2);
+                    ((MockXAResource) xaConnection2.getXAResource()).setCommitDelay(1000);
+                    connection2.createStatement();
+                    connection2.close();
+                    try {
+                        tm.commit();
+                    } finally {
+                        ((MockXAResource) xaConnection2.getXAResource()).setCommitDelay(0);
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        slowCommitter.start();
+        Thread.sleep(200);
+
+        tm.begin();
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        connection1.close();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+        connection2.close();
+
+        long before = System.currentTimeMillis();
+        tm.commit();
+        long duration = System.currentTimeMillis() - before;
+        assertTrue("commit took " + duration + "ms", duration < 500L);
+
+        slowCommitter.join(5000);
+        assertNull(error[0]);
+    }
+
+    public void testOnePhaseCommitIsNotCoalesced() throws Exception {
+        tm.begin();
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        connection1.close();
+        tm.commit();
+
+        assertEquals(0L, TransactionManagerServices.getCommitCoalescer().getCommits());
+    }
+
+    /**
+     * Compare the log flushes done by a resource grouping the commits it receives concurrently, with and without the
+     * group-commit delay. Transactions arrive every 5ms on average on each thread, take 2ms to prepare and the
+     * resource needs 1ms per flush: many commits reach the resource alone and pay a flush of their own unless delayed.
+     */
+    public void testGroupCommitBenchmark() throws Exception {
+        long[] direct = runGroupCommitBenchmark(0);
+        long[] delayed = runGroupCommitBenchmark(3000);
+        log.info("group commit benchmark, " + BENCHMARK_THREADS * BENCHMARK_COMMITS_PER_THREAD + " commit(s): " +
+                direct[0] + " flush(es) and " + direct[1] + "us average commit time without delay, " +
+                delayed[0] + " flush(es) and " + delayed[1] + "us average commit time with delay");
+
+        // about a third of the flushes are saved, the assertion leaves room for slow machines
+        assertTrue("flushes without delay: " + direct[0] + ", with delay: " + delayed[0], delayed[0] < direct[0] * 9 / 10);
+    }
+
+    private final static int BENCHMARK_THREADS = 8;
+    private final static int BENCHMARK_COMMITS_PER_THREAD = 25;
+
+    /**
+     * @return the number of flushes done by the resource and the average commit time in microseconds.
+     */
+    private static long[] runGroupCommitBenchmark(int windowMicros) throws Exception {
+        final CommitCoalescer commitCoalescer = new CommitCoalescer(windowMicros, 64, "benchmark");
+        final GroupFlushingXAResource xaResource = new GroupFlushingXAResource(1);
+        final AtomicLong commitNanos = new AtomicLong();
+        final PoolingDataSource bean = new PoolingDataSource();
+        bean.setUniqueName("benchmark-rm");
+        final List<Throwable> errors = new ArrayList<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < BENCHMARK_THREADS; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        for (int j = 0; j < BENCHMARK_COMMITS_PER_THREAD; j++) {
+                            Thread.sleep(random.nextInt(10));
+                            Uid gtrid = UidGenerator.generateUid();
+                            commitCoalescer.expect(gtrid, Collections.singletonList(bean.getUniqueName()));
+                            // prepare
+                            Thread.sleep(2);
+                            XAResourceHolderState resourceHolder = new XAResourceHolderState(null, bean) {
+                                @Override
+                                public XAResource getXAResource() {
+                                    return xaResource;
+                                }
+                            };
+                            resourceHolder.setXid(new BitronixXid(gtrid, UidGenerator.generateUid()));
+                            long before = System.nanoTime();
+                            commitCoalescer.commit(resourceHolder);
+                            commitNanos.addAndGet(System.nanoTime() - before);
+                            commitCoalescer.forget(gtrid);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        commitCoalescer.shutdown();
+
+        assertEquals("errors: " + errors, 0, errors.size());
+        int commits = BENCHMARK_THREADS * BENCHMARK_COMMITS_PER_THREAD;
+        assertEquals(commits, xaResource.getCommits());
+        return new long[] { xaResource.getFlushes(), TimeUnit.NANOSECONDS.toMicros(commitNanos.get() / commits) };
+    }
+
+    /**
+     * A resource writing its log like databases do: a commit waits for the flush in progress to complete, then all
+     * the commits received in the meantime share the next flush.
+     */
+    private static class GroupFlushingXAResource extends MockXAResource {
+        private final long flushMillis;
+        private long requested;
+        private long flushed;
+        private long flushes;
+        private long commits;
+        private boolean flushing;
+
+        private GroupFlushingXAResource(long flushMillis) {
+            super(null);
+            this.flushMillis = flushMillis;
+        }
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) throws XAException {
+            long ticket;
+            synchronized (this) {
+                ticket = ++requested;
+                commits++;
+            }
+            while (true) {
+                long upTo;
+                synchronized (this) {
+                    while (flushing && flushed < ticket) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            throw new XAException(XAException.XAER_RMERR);
+                        }
+                    }
+                    if (flushed >= ticket)
+                        return;
+                    flushing = true;
+                    upTo = requested;
+                }
+                try {
+                    Thread.sleep(flushMillis);
+                } catch (InterruptedException ex) {
+                    throw new XAException(XAException.XAER_RMERR);
+                }
+                synchronized (this) {
+                    flushed = upTo;
+                    flushes++;
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized long getFlushes() {
+            return flushes;
+        }
+
+        private synchronized long getCommits() {
+            return commits;
+        }
+    }
+
+    private static class PreparingBarrier implements TransactionStatusChangeListener {
+        private final CountDownLatch preparing;
+
+        private PreparingBarrier(CountDownLatch preparing) {
+            this.preparing = preparing;
+        }
+
+        public void statusChanged(int oldStatus, int newStatus) {
+            if (newStatus != Status.STATUS_PREPARING)
+                return;
+            preparing.countDown();
+            try {
+                preparing.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Iterator<String> it = ResourceRegistrar.getResourcesUniqueNames().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            ResourceRegistrar.unregister(ResourceRegistrar.get(name));
+        }
+
+        EventRecorder.clear();
+
+        TransactionManagerServices.getConfiguration()
+                .setCommitCoalescing(true)
+                .setCommitCoalescingWindow(200000);
+
+        // change disk journal into mock journal
+        Field field = TransactionManagerServices.class.getDeclaredField("journalRef");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        AtomicReference<Journal> journalRef = (AtomicReference<Journal>) field.get(TransactionManagerServices.class);
+        journalRef.set(new MockJournal());
+
+        poolingDataSource1 = new PoolingDataSource();
+        poolingDataSource1.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource1.setUniqueName("pds1");
+        poolingDataSource1.setMinPoolSize(THREADS);
+        poolingDataSource1.setMaxPoolSize(THREADS);
+        poolingDataSource1.setAutomaticEnlistingEnabled(true);
+        poolingDataSource1.init();
+
+        poolingDataSource2 = new PoolingDataSource();
+        poolingDataSource2.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource2.setUniqueName("pds2");
+        poolingDataSource2.setMinPoolSize(THREADS);
+        poolingDataSource2.setMaxPoolSize(THREADS);
+        poolingDataSource2.setAutomaticEnlistingEnabled(true);
+        poolingDataSource2.init();
+
+        tm = TransactionManagerServices.getTransactionManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        poolingDataSource1.close();
+        poolingDataSource2.close();
+        tm.shutdown();
+    }
+
+}
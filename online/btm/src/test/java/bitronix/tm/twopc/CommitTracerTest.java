@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.internal.XAResourceHolderState;
+import bitronix.tm.journal.Journal;
+import bitronix.tm.mock.AbstractMockJdbcTest;
+import bitronix.tm.mock.events.EventRecorder;
+import bitronix.tm.mock.resource.MockJournal;
+import bitronix.tm.mock.resource.MockXAResource;
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.resource.jdbc.PooledConnectionProxy;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import junit.framework.TestCase;
+
+import javax.sql.XAConnection;
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAException;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class CommitTracerTest extends TestCase {
+
+    private PoolingDataSource poolingDataSource1;
+    private PoolingDataSource poolingDataSource2;
+    private BitronixTransactionManager tm;
+    private RecordingListener listener;
+
+    public void testTwoPhaseCommitIsTraced() throws Exception {
+        tm.begin();
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+        getXAResource(connection2).setCommitDelay(20);
+
+        tm.commit();
+
+        assertEquals(1, listener.traces.size());
+        CommitTrace trace = listener.traces.get(0);
+        assertTrue(trace.isCommitted());
+        assertTrue(trace.getStageNanos(CommitTrace.COMMIT) >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(trace.getTotalNanos() >= trace.getStageNanos(CommitTrace.BEFORE_COMPLETION) + trace.getStageNanos(CommitTrace.DELISTMENT) +
+                trace.getStageNanos(CommitTrace.PREPARE) + trace.getStageNanos(CommitTrace.COMMIT) + trace.getStageNanos(CommitTrace.AFTER_COMPLETION));
+        assertTrue(trace.getStageNanos(CommitTrace.JOURNAL) <= trace.getStageNanos(CommitTrace.PREPARE) + trace.getStageNanos(CommitTrace.COMMIT));
+
+        // one prepare and one commit per branch
+        assertEquals(4, listener.branches.size());
+
+        CommitTracer tracer = TransactionManagerServices.getCommitTracer();
+        assertEquals(1L, tracer.getTracedCommits());
+        assertEquals(0L, tracer.getFailedCommits());
+        assertEquals(1L, tracer.getBranchLatency("pds1", "prepare").getCount());
+        assertEquals(1L, tracer.getBranchLatency("pds2", "commit").getCount());
+        assertTrue(tracer.getBranchLatency("pds2", "commit").getMaxMicros() >= TimeUnit.MILLISECONDS.toMicros(20));
+    }
+
+    public void testFailedCommitIsTracedButNotAggregated() throws Exception {
+        tm.begin();
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+        getXAResource(connection2).setPrepareException(new XAException(XAException.XA_RBROLLBACK));
+
+        try {
+            tm.commit();
+            fail("expected RollbackException");
+        } catch (RollbackException ex) {
+            // expected
+        }
+
+        assertEquals(1, listener.traces.size());
+        CommitTrace trace = listener.traces.get(0);
+        assertFalse(trace.isCommitted());
+        assertEquals(0L, trace.getStageNanos(CommitTrace.PREPARE));
+        assertEquals(0L, trace.getStageNanos(CommitTrace.COMMIT));
+
+        CommitTracer tracer = TransactionManagerServices.getCommitTracer();
+        assertEquals(0L, tracer.getTracedCommits());
+        assertEquals(1L, tracer.getFailedCommits());
+    }
+
+    private static MockXAResource getXAResource(Connection connection) throws Exception {
+        PooledConnectionProxy handle = (PooledConnectionProxy) connection;
+        XAConnection xaConnection = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(handle.getPooledConnection());
+        return (MockXAResource) xaConnection.getXAResource();
+    }
+
+    private static class RecordingListener implements CommitTraceListener {
+        private final List<CommitTrace> traces = new ArrayList<CommitTrace>();
+        private final List<String> branches = new ArrayList<String>();
+
+        @Override
+        public synchronized void commitTraced(CommitTrace trace) {
+            traces.add(trace);
+        }
+
+        @Override
+        public synchronized void branchTraced(XAResourceHolderState resourceHolder, String phase, long nanos) {
+            branches.add(resourceHolder.getUniqueName() + " " + phase);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Iterator<String> it = ResourceRegistrar.getResourcesUniqueNames().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            ResourceRegistrar.unregister(ResourceRegistrar.get(name));
+        }
+
+        EventRecorder.clear();
+
+        TransactionManagerServices.getConfiguration().setCommitTracing(true);
+
+        // change disk journal into mock journal
+        Field field = TransactionManagerServices.class.getDeclaredField("journalRef");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        AtomicReference<Journal> journalRef = (AtomicReference<Journal>) field.get(TransactionManagerServices.class);
+        journalRef.set(new MockJournal());
+
+        poolingDataSource1 = new PoolingDataSource();
+        poolingDataSource1.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource1.setUniqueName("pds1");
+        poolingDataSource1.setMinPoolSize(5);
+        poolingDataSource1.setMaxPoolSize(5);
+        poolingDataSource1.setAutomaticEnlistingEnabled(true);
+        poolingDataSource1.init();
+
+        poolingDataSource2 = new PoolingDataSource();
+        poolingDataSource2.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource2.setUniqueName("pds2");
+        poolingDataSource2.setMinPoolSize(5);
+        poolingDataSource2.setMaxPoolSize(5);
+        poolingDataSource2.setAutomaticEnlistingEnabled(true);
+        poolingDataSource2.init();
+
+        tm = TransactionManagerServices.getTransactionManager();
+
+        listener = new RecordingListener();
+        TransactionManagerServices.getCommitTracer().addListener(listener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        poolingDataSource1.close();
+        poolingDataSource2.close();
+        tm.shutdown();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.utils.Scheduler;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class PhaseDependencyGraphTest extends TestCase {
+
+    public void testDefaultPositionDoesNotDependOnOthers() throws Exception {
+        Map<Integer, List<Integer>> dependencies = AbstractPhaseEngine.buildDependencyGraph(Arrays.asList(0, 1, 5));
+
+        assertEquals(Arrays.asList(0, 1, 5), new ArrayList<Integer>(dependencies.keySet()));
+        assertEquals(Collections.<Integer>emptyList(), dependencies.get(0));
+        assertEquals(Collections.<Integer>emptyList(), dependencies.get(1));
+        assertEquals(Collections.singletonList(0), dependencies.get(5));
+    }
+
+    public void testConfiguredPositionsAreOrdered() throws Exception {
+        Map<Integer, List<Integer>> dependencies = AbstractPhaseEngine.buildDependencyGraph(Arrays.asList(1, 2, 5, 10));
+
+        assertEquals(Collections.<Integer>emptyList(), dependencies.get(1));
+        assertEquals(Collections.<Integer>emptyList(), dependencies.get(2));
+        assertEquals(Collections.singletonList(2), dependencies.get(5));
+        assertEquals(Collections.singletonList(5), dependencies.get(10));
+    }
+
+    public void testReservedPositionsAreBarriers() throws Exception {
+        Integer first = Scheduler.ALWAYS_FIRST_POSITION;
+        Integer last = Scheduler.ALWAYS_LAST_POSITION;
+        Map<Integer, List<Integer>> dependencies = AbstractPhaseEngine.buildDependencyGraph(Arrays.asList(first, 1, 5, 10, last));
+
+        assertEquals(Collections.<Integer>emptyList(), dependencies.get(first));
+        assertEquals(Collections.singletonList(first), dependencies.get(1));
+        assertEquals(Collections.singletonList(first), dependencies.get(5));
+        assertEquals(Collections.singletonList(5), dependencies.get(10));
+        assertEquals(Arrays.asList(first, 1, 5, 10), dependencies.get(last));
+    }
+
+    public void testReverseOrder() throws Exception {
+        Integer first = Scheduler.ALWAYS_FIRST_POSITION;
+        Integer last = Scheduler.ALWAYS_LAST_POSITION;
+        Map<Integer, List<Integer>> dependencies = AbstractPhaseEngine.buildDependencyGraph(Arrays.asList(last, 10, 5, 1, first));
+
+        assertEquals(Collections.<Integer>emptyList(), dependencies.get(last));
+        assertEquals(Collections.singletonList(last), dependencies.get(10));
+        assertEquals(Collections.singletonList(10), dependencies.get(5));
+        assertEquals(Collections.singletonList(last), dependencies.get(1));
+        assertEquals(Arrays.asList(last, 10, 5, 1), dependencies.get(first));
+    }
+
+}
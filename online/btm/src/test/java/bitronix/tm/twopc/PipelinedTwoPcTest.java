@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.journal.Journal;
+import bitronix.tm.mock.AbstractMockJdbcTest;
+import bitronix.tm.mock.events.Event;
+import bitronix.tm.mock.events.EventRecorder;
+import bitronix.tm.mock.events.XAResourceCommitEvent;
+import bitronix.tm.mock.events.XAResourcePrepareEvent;
+import bitronix.tm.mock.resource.MockJournal;
+import bitronix.tm.mock.resource.MockXAResource;
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.PooledConnectionProxy;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import junit.framework.TestCase;
+
+import javax.sql.XAConnection;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class PipelinedTwoPcTest extends TestCase {
+
+    private final static long COMMIT_DELAY = 300L;
+
+    private PoolingDataSource poolingDataSource1;
+    private PoolingDataSource poolingDataSource2;
+    private PoolingDataSource poolingDataSource3;
+    private BitronixTransactionManager tm;
+
+    public void testConfiguredPositionsStayOrdered() throws Exception {
+        tm.begin();
+        MockXAResource xaResource1 = enlist(poolingDataSource1);
+        MockXAResource xaResource2 = enlist(poolingDataSource2);
+        MockXAResource xaResource3 = enlist(poolingDataSource3);
+        xaResource1.setCommitDelay(COMMIT_DELAY);
+        xaResource3.setCommitDelay(COMMIT_DELAY);
+
+        long before = System.currentTimeMillis();
+        try {
+            tm.commit();
+        } finally {
+            xaResource1.setCommitDelay(0);
+            xaResource3.setCommitDelay(0);
+        }
+        long duration = System.currentTimeMillis() - before;
+
+        // prepare runs positions 5 then 10, commit runs them in reverse order
+        assertTrue(findEvent(XAResourcePrepareEvent.class, xaResource2).getTimestamp() <= findEvent(XAResourcePrepareEvent.class, xaResource3).getTimestamp());
+        assertTrue(findEvent(XAResourceCommitEvent.class, xaResource3).getTimestamp() <= findEvent(XAResourceCommitEvent.class, xaResource2).getTimestamp());
+
+        // the resource at the default position does not wait for the slow position 10
+        assertTrue("commit took " + duration + "ms", duration < 2 * COMMIT_DELAY);
+    }
+
+    private static MockXAResource enlist(PoolingDataSource poolingDataSource) throws Exception {
+        Connection connection = poolingDataSource.getConnection();
+        JdbcPooledConnection pooledConnection = ((PooledConnectionProxy) connection).getPooledConnection();
+        XAConnection xaConnection = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(pooledConnection);
+        connection.createStatement();
+        connection.close();
+        return (MockXAResource) xaConnection.getXAResource();
+    }
+
+    private static Event findEvent(Class<? extends Event> eventClass, MockXAResource source) {
+        for (Object event : EventRecorder.getOrderedEvents()) {
+            if (eventClass.isInstance(event) && ((Event) event).getSource() == source)
+                return (Event) event;
+        }
+        fail("no " + eventClass.getSimpleName() + " recorded for " + source);
+        return null;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Iterator<String> it = ResourceRegistrar.getResourcesUniqueNames().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            ResourceRegistrar.unregister(ResourceRegistrar.get(name));
+        }
+
+        EventRecorder.clear();
+
+        TransactionManagerServices.getConfiguration()
+                .setAsynchronous2Pc(true)
+                .setPipelined2Pc(true);
+
+        // change disk journal into mock journal
+        Field field = TransactionManagerServices.class.getDeclaredField("journalRef");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        AtomicReference<Journal> journalRef = (AtomicReference<Journal>) field.get(TransactionManagerServices.class);
+        journalRef.set(new MockJournal());
+
+        poolingDataSource1 = createPoolingDataSource("pds1", 1);
+        poolingDataSource2 = createPoolingDataSource("pds2", 5);
+        poolingDataSource3 = createPoolingDataSource("pds3", 10);
+
+        tm = TransactionManagerServices.getTransactionManager();
+    }
+
+    private static PoolingDataSource createPoolingDataSource(String uniqueName, int twoPcOrderingPosition) {
+        PoolingDataSource poolingDataSource = new PoolingDataSource();
+        poolingDataSource.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource.setUniqueName(uniqueName);
+        poolingDataSource.setMinPoolSize(1);
+        poolingDataSource.setMaxPoolSize(1);
+        poolingDataSource.setAutomaticEnlistingEnabled(true);
+        poolingDataSource.setTwoPcOrderingPosition(twoPcOrderingPosition);
+        poolingDataSource.init();
+        return poolingDataSource;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        poolingDataSource1.close();
+        poolingDataSource2.close();
+        poolingDataSource3.close();
+        tm.shutdown();
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.journal.Journal;
+import bitronix.tm.mock.AbstractMockJdbcTest;
+import bitronix.tm.mock.events.EventRecorder;
+import bitronix.tm.mock.events.JournalLogEvent;
+import bitronix.tm.mock.events.XAResourceCommitEvent;
+import bitronix.tm.mock.resource.MockJournal;
+import bitronix.tm.mock.resource.MockXAResource;
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.ResourceRegistrar;
+import bitronix.tm.resource.jdbc.PooledConnectionProxy;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import junit.framework.TestCase;
+
+import javax.sql.XAConnection;
+import javax.transaction.Status;
+import javax.transaction.xa.XAResource;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class SkipUnneededStatusLogsTest extends TestCase {
+
+    private PoolingDataSource poolingDataSource1;
+    private PoolingDataSource poolingDataSource2;
+    private BitronixTransactionManager tm;
+
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX resolution: committed
+     *
+     * XAResource 1 resolution: voted read-only
+     * XAResource 2 resolution: voted read-only
+     *
+     * Expected journal events:
+     *   ACTIVE, PREPARING
+     */
+    public void testAllReadOnly() throws Exception {
+        tm.begin();
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+
+        getXAResource(connection1).setPrepareRc(XAResource.XA_RDONLY);
+        getXAResource(connection2).setPrepareRc(XAResource.XA_RDONLY);
+
+        tm.commit();
+
+        assertEquals(Arrays.asList(Status.STATUS_ACTIVE, Status.STATUS_PREPARING), getJournaledStatuses());
+        assertEquals(0, countCommitEvents());
+
+        PhaseStatistics statistics = TransactionManagerServices.getPhaseStatistics();
+        assertEquals(1L, statistics.getReadOnlyCommits());
+        assertEquals(0L, statistics.getOnePhaseCommits());
+        assertEquals(1L, statistics.getSkippedForces());
+        assertEquals(3L, statistics.getUnloggedStatuses());
+    }
+
+    /**
+     * Test scenario:
+     *
+     * XAResources: 1
+     * TX resolution: committed
+     *
+     * XAResource 1 resolution: successful (1PC)
+     *
+     * Expected journal events:
+     *   ACTIVE
+     */
+    public void testOnePhase() throws Exception {
+        tm.begin();
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+
+        tm.commit();
+
+        assertEquals(Arrays.asList(Status.STATUS_ACTIVE), getJournaledStatuses());
+        assertEquals(1, countCommitEvents());
+
+        PhaseStatistics statistics = TransactionManagerServices.getPhaseStatistics();
+        assertEquals(0L, statistics.getReadOnlyCommits());
+        assertEquals(1L, statistics.getOnePhaseCommits());
+        assertEquals(0L, statistics.getSkippedForces());
+        assertEquals(4L, statistics.getUnloggedStatuses());
+    }
+
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX resolution: committed
+     *
+     * XAResource 1 resolution: voted read-only
+     * XAResource 2 resolution: successful
+     *
+     * Expected journal events:
+     *   ACTIVE, PREPARING, PREPARED, COMMITTING, COMMITTED
+     */
+    public void testTwoPhaseIsLogged() throws Exception {
+        tm.begin();
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        Connection connection2 = poolingDataSource2.getConnection();
+        connection2.createStatement();
+
+        getXAResource(connection1).setPrepareRc(XAResource.XA_RDONLY);
+
+        tm.commit();
+
+        assertEquals(Arrays.asList(Status.STATUS_ACTIVE, Status.STATUS_PREPARING, Status.STATUS_PREPARED, Status.STATUS_COMMITTING, Status.STATUS_COMMITTED), getJournaledStatuses());
+        assertEquals(1, countCommitEvents());
+
+        PhaseStatistics statistics = TransactionManagerServices.getPhaseStatistics();
+        assertEquals(0L, statistics.getReadOnlyCommits());
+        assertEquals(0L, statistics.getOnePhaseCommits());
+        assertEquals(0L, statistics.getUnloggedStatuses());
+    }
+
+    private static MockXAResource getXAResource(Connection connection) throws Exception {
+        PooledConnectionProxy handle = (PooledConnectionProxy) connection;
+        XAConnection xaConnection = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(handle.getPooledConnection());
+        return (MockXAResource) xaConnection.getXAResource();
+    }
+
+    private static List<Integer> getJournaledStatuses() {
+        List<Integer> statuses = new ArrayList<Integer>();
+        for (Object event : EventRecorder.getOrderedEvents()) {
+            if (event instanceof JournalLogEvent)
+                statuses.add(((JournalLogEvent) event).getStatus());
+        }
+        return statuses;
+    }
+
+    private static int countCommitEvents() {
+        int count = 0;
+        for (Object event : EventRecorder.getOrderedEvents()) {
+            if (event instanceof XAResourceCommitEvent)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Iterator<String> it = ResourceRegistrar.getResourcesUniqueNames().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            ResourceRegistrar.unregister(ResourceRegistrar.get(name));
+        }
+
+        EventRecorder.clear();
+
+        TransactionManagerServices.getConfiguration().setSkipUnneededStatusLogs(true);
+
+        // change disk journal into mock journal
+        Field field = TransactionManagerServices.class.getDeclaredField("journalRef");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        AtomicReference<Journal> journalRef = (AtomicReference<Journal>) field.get(TransactionManagerServices.class);
+        journalRef.set(new MockJournal());
+
+        poolingDataSource1 = new PoolingDataSource();
+        poolingDataSource1.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource1.setUniqueName("pds1");
+        poolingDataSource1.setMinPoolSize(5);
+        poolingDataSource1.setMaxPoolSize(5);
+        poolingDataSource1.setAutomaticEnlistingEnabled(true);
+        poolingDataSource1.init();
+
+        poolingDataSource2 = new PoolingDataSource();
+        poolingDataSource2.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource2.setUniqueName("pds2");
+        poolingDataSource2.setMinPoolSize(5);
+        poolingDataSource2.setMaxPoolSize(5);
+        poolingDataSource2.setAutomaticEnlistingEnabled(true);
+        poolingDataSource2.init();
+
+        tm = TransactionManagerServices.getTransactionManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        poolingDataSource1.close();
+        poolingDataSource2.close();
+        tm.shutdown();
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc.executor;
+
+import bitronix.tm.internal.XAResourceHolderState;
+import bitronix.tm.resource.common.ResourceBean;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class BoundedExecutorTest extends TestCase {
+
+    public void testMaxJobsPerResource() throws Exception {
+        final BoundedExecutor executor = new BoundedExecutor(8, 2, 16, "test");
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            XAResourceHolderState resource = newResource("slow");
+
+            List<Job> jobs = new ArrayList<Job>();
+            for (int i = 0; i < 10; i++) {
+                Job job = new SleepingJob(resource, running, maxRunning, null);
+                executor.submit(job);
+                jobs.add(job);
+            }
+            for (Job job : jobs) {
+                job.getCompletion().get(5, TimeUnit.SECONDS);
+            }
+            // statistics are updated right after the completion
+            for (int i = 0; i < 100 && executor.getActiveJobs() > 0; i++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(2, maxRunning.get());
+            assertEquals(0, executor.getActiveJobs());
+            assertEquals(10L, executor.getLatency("sleep").getCount());
+            assertTrue(executor.getLatency("sleep").getMaxMicros() >= 20000L);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testCallerRunsWhenSaturated() throws Exception {
+        final BoundedExecutor executor = new BoundedExecutor(1, 10, 1, "test");
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+
+            // occupies the only thread, then the only queue slot
+            Job blocking = new SleepingJob(newResource("resource1"), running, maxRunning, release);
+            executor.submit(blocking);
+            Job queued = new SleepingJob(newResource("resource2"), running, maxRunning, null);
+            executor.submit(queued);
+
+            Job callerRun = new SleepingJob(newResource("resource3"), running, maxRunning, null);
+            executor.submit(callerRun);
+            assertTrue(callerRun.getCompletion().isDone());
+            assertEquals(1L, executor.getCallerRunJobs());
+            assertEquals(1, executor.getQueueDepth());
+
+            release.countDown();
+            assertSame(queued, queued.getCompletion().get(5, TimeUnit.SECONDS));
+            assertTrue(executor.getMaxThreads() == 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testCancelQueuedJob() throws Exception {
+        final BoundedExecutor executor = new BoundedExecutor(1, 10, 10, "test");
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+
+            Job blocking = new SleepingJob(newResource("resource1"), running, maxRunning, release);
+            executor.submit(blocking);
+            SleepingJob queued = new SleepingJob(newResource("resource2"), running, maxRunning, null);
+            executor.submit(queued);
+            for (int i = 0; i < 100 && running.get() == 0; i++) {
+                Thread.sleep(10);
+            }
+
+            assertTrue(queued.cancel());
+            assertTrue(queued.isCancelled());
+            assertTrue(queued.getCompletion().isDone());
+            assertFalse(blocking.cancel());
+
+            release.countDown();
+            assertSame(blocking, blocking.getCompletion().get(5, TimeUnit.SECONDS));
+            assertFalse(blocking.isCancelled());
+            assertFalse(blocking.isFailed());
+            assertEquals(0, queued.executions);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static XAResourceHolderState newResource(final String uniqueName) {
+        ResourceBean bean = new ResourceBean() {
+        };
+        bean.setUniqueName(uniqueName);
+        return new XAResourceHolderState(null, bean);
+    }
+
+    private static class SleepingJob extends Job {
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+        private final CountDownLatch release;
+        private volatile int executions;
+
+        private SleepingJob(XAResourceHolderState resourceHolder, AtomicInteger running, AtomicInteger maxRunning, CountDownLatch release) {
+            super(resourceHolder);
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.release = release;
+        }
+
+        @Override
+        public String getPhase() {
+            return "sleep";
+        }
+
+        @Override
+        protected void execute() {
+            executions++;
+            int current = running.incrementAndGet();
+            int max = maxRunning.get();
+            while (current > max && !maxRunning.compareAndSet(max, current)) {
+                max = maxRunning.get();
+            }
+            try {
+                if (release != null)
+                    release.await(5, TimeUnit.SECONDS);
+                else
+                    Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                runtimeException = new RuntimeException(ex);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+}
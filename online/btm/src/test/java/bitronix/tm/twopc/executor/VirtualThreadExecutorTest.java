@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc.executor;
+
+import bitronix.tm.internal.XAResourceHolderState;
+import bitronix.tm.resource.common.ResourceBean;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Ludovic Orban
+ */
+public class VirtualThreadExecutorTest extends TestCase {
+
+    public void testRunsJobsOnVirtualThreads() throws Exception {
+        if (!VirtualThreadExecutor.isSupported()) {
+            try {
+                new VirtualThreadExecutor();
+                fail("expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException ex) {
+                assertEquals("virtual threads are not supported by this JVM", ex.getMessage());
+            }
+            return;
+        }
+
+        VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        try {
+            List<RecordingJob> jobs = new ArrayList<RecordingJob>();
+            for (int i = 0; i < 50; i++) {
+                ResourceBean bean = new ResourceBean() {
+                };
+                bean.setUniqueName("resource" + i);
+                RecordingJob job = new RecordingJob(new XAResourceHolderState(null, bean));
+                executor.submit(job);
+                jobs.add(job);
+            }
+
+            Method isVirtual = Thread.class.getMethod("isVirtual");
+            for (RecordingJob job : jobs) {
+                job.getCompletion().get(5, TimeUnit.SECONDS);
+                assertNotNull(job.thread);
+                assertEquals(Boolean.TRUE, isVirtual.invoke(job.thread));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static class RecordingJob extends Job {
+        private volatile Thread thread;
+
+        private RecordingJob(XAResourceHolderState resourceHolder) {
+            super(resourceHolder);
+        }
+
+        @Override
+        protected void execute() {
+            thread = Thread.currentThread();
+        }
+    }
+
+}
@@ -57,4 +57,18 @@ public class EncoderTest extends TestCase {
         }
     }
 
+    public void testEncodingAtPosition() {
+        byte[] array = new byte[14];
+        array[0] = 0x7f;
+        array[13] = 0x7f;
+
+        Encoder.longToBytes(-2L, array, 1);
+        Encoder.intToBytes(0x01020304, array, 9);
+
+        assertEquals(0x7f, array[0]);
+        assertEquals(-2L, Encoder.bytesToLong(array, 1));
+        assertEquals(0x01020304, Encoder.bytesToInt(array, 9));
+        assertEquals(0x7f, array[13]);
+    }
+
 }
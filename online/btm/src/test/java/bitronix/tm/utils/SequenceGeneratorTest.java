@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.utils;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Ludovic Orban
+ */
+public class SequenceGeneratorTest extends TestCase {
+
+    public void testIncreasesWithinThread() throws Exception {
+        SequenceGenerator generator = new SequenceGenerator();
+
+        int previous = generator.next();
+        for (int i = 0; i < SequenceGenerator.BLOCK_SIZE * 3; i++) {
+            int next = generator.next();
+            assertTrue(next > previous);
+            previous = next;
+        }
+    }
+
+    public void testMultiThreadedUniqueness() throws Exception {
+        final SequenceGenerator generator = new SequenceGenerator();
+        final int concurrency = 16, callsPerThread = SequenceGenerator.BLOCK_SIZE * 2 + 1;
+        List<Future<List<Integer>>> handles = new ArrayList<Future<List<Integer>>>(concurrency);
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                handles.add(executorService.submit(new Callable<List<Integer>>() {
+                    @Override
+                    public List<Integer> call() throws Exception {
+                        List<Integer> sequences = new ArrayList<Integer>(callsPerThread);
+                        for (int i = 0; i < callsPerThread; i++)
+                            sequences.add(generator.next());
+                        return sequences;
+                    }
+                }));
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        Set<Integer> allSequences = new HashSet<Integer>(concurrency * callsPerThread);
+        for (Future<List<Integer>> handle : handles)
+            allSequences.addAll(handle.get());
+
+        assertEquals(concurrency * callsPerThread, allSequences.size());
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package bitronix.tm.utils;
 
+import bitronix.tm.TransactionManagerServices;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
@@ -95,6 +96,24 @@ public class UidGeneratorTest extends TestCase {
         assertTrue(uid2.equals(uid2));
     }
 
+    public void testGeneratedLayout() throws Exception {
+        long before = MonotonicClock.currentTimeMillis();
+        Uid uid1 = UidGenerator.generateUid();
+        Uid uid2 = UidGenerator.generateUid();
+        long after = MonotonicClock.currentTimeMillis();
+
+        byte[] serverId = TransactionManagerServices.getConfiguration().buildServerIdArray();
+        assertEquals(serverId.length + 8 + 4, uid1.length());
+        assertTrue(Arrays.equals(serverId, uid1.extractServerId()));
+        assertTrue(uid1.extractTimestamp() >= before && uid1.extractTimestamp() <= after);
+        assertTrue(uid2.extractSequence() > uid1.extractSequence());
+
+        Uid copy = new Uid(uid1.getArray());
+        assertEquals(uid1, copy);
+        assertEquals(uid1.hashCode(), copy.hashCode());
+        assertEquals(uid1.toString(), copy.toString());
+    }
+
     public void testExtracts() throws Exception {
         byte[] timestamp = Encoder.longToBytes(System.currentTimeMillis());
         byte[] sequence = Encoder.intToBytes(1);